@@ -1,25 +1,237 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
-public class AlertLogger {
+// Asynchronous sink for alerts.log and malicious_flows.csv. Callers only enqueue a line
+// into a bounded ring buffer; one writer thread drains it in groups and appends each group
+// with a single write per file to channels that stay open for the whole session.
+public class AlertLogger implements Closeable {
 
-    private String logFile;
+    // What logAlert/logFlow do when the buffer is full.
+    public enum Overflow {
+        BLOCK, DROP, DROP_OLDEST;
 
-    public AlertLogger(String logFile) {
-        this.logFile = logFile;
-        File parentDir = new File(logFile).getParentFile();
+        static Overflow parse(String name) {
+            return name == null || name.isEmpty() ? BLOCK : valueOf(name.toUpperCase());
+        }
+    }
+
+    public static final int DEFAULT_CAPACITY = 8192;
+    public static final long DEFAULT_FLUSH_MS = 200;
+    // Upper bound on lines per group commit.
+    private static final int MAX_GROUP = 1024;
+
+    private static class Entry {
+        final FileChannel target;
+        final String line;
+
+        Entry(FileChannel target, String line) {
+            this.target = target;
+            this.line = line;
+        }
+    }
+
+    private final FileChannel alertChannel;
+    private final FileChannel flowChannel;
+    private final ArrayBlockingQueue<Entry> buffer;
+    private final Overflow overflow;
+    private final long flushMs;
+    private final Thread writer;
+    private volatile boolean running = true;
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong writeErrors = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+
+    public AlertLogger(String logFile) throws IOException {
+        this(logFile, null, DEFAULT_CAPACITY, DEFAULT_FLUSH_MS, Overflow.BLOCK);
+    }
+
+    // flowCsv may be null when flows are not archived. flushMs is how long the writer keeps
+    // collecting after the first pending line before it writes the group out.
+    public AlertLogger(String logFile, String flowCsv, int capacity, long flushMs, Overflow overflow)
+            throws IOException {
+        File parentDir = new File(logFile).getAbsoluteFile().getParentFile();
         if (!parentDir.exists()) {
             parentDir.mkdirs();
         }
+        this.alertChannel = openAppend(logFile);
+        this.flowChannel = flowCsv != null ? openAppend(flowCsv) : null;
+        this.buffer = new ArrayBlockingQueue<>(Math.max(1, capacity));
+        this.flushMs = Math.max(0, flushMs);
+        this.overflow = overflow;
+
+        writer = new Thread(this::runWriter, "alert-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public static AlertLogger fromConfig(Config cfg, File logFile, File flowCsv) throws IOException {
+        return new AlertLogger(logFile.getAbsolutePath(), flowCsv != null ? flowCsv.getAbsolutePath() : null,
+                cfg.alertBufferSize > 0 ? cfg.alertBufferSize : DEFAULT_CAPACITY,
+                cfg.alertFlushMs > 0 ? cfg.alertFlushMs : DEFAULT_FLUSH_MS,
+                Overflow.parse(cfg.alertOverflow));
+    }
+
+    private static FileChannel openAppend(String path) throws IOException {
+        return FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND);
     }
 
     public void logAlert(String message) {
-        try (FileWriter fw = new FileWriter(logFile, true);
-             BufferedWriter bw = new BufferedWriter(fw);
-             PrintWriter out = new PrintWriter(bw)) {
-            out.println(LocalDateTime.now() + " - ALERT: " + message);
+        enqueue(new Entry(alertChannel, LocalDateTime.now() + " - ALERT: " + message + System.lineSeparator()));
+    }
+
+    // One row of malicious_flows.csv, without the line terminator.
+    public void logFlow(String csvRow) {
+        if (flowChannel != null) {
+            enqueue(new Entry(flowChannel, csvRow + System.lineSeparator()));
+        }
+    }
+
+    private void enqueue(Entry entry) {
+        if (!running) {
+            dropped.incrementAndGet();
+            return;
+        }
+        switch (overflow) {
+            case BLOCK:
+                try {
+                    buffer.put(entry);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    dropped.incrementAndGet();
+                }
+                break;
+            case DROP_OLDEST:
+                while (!buffer.offer(entry)) {
+                    if (buffer.poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                }
+                break;
+            default:
+                if (!buffer.offer(entry)) {
+                    dropped.incrementAndGet();
+                }
+        }
+    }
+
+    private void runWriter() {
+        List<Entry> group = new ArrayList<>(MAX_GROUP);
+        ByteArrayOutputStream alertBytes = new ByteArrayOutputStream(64 * 1024);
+        ByteArrayOutputStream flowBytes = new ByteArrayOutputStream(64 * 1024);
+        try {
+            while (running || !buffer.isEmpty()) {
+                Entry first = buffer.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null)
+                    continue;
+                group.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushMs);
+                while (running && group.size() < MAX_GROUP) {
+                    buffer.drainTo(group, MAX_GROUP - group.size());
+                    long wait = deadline - System.nanoTime();
+                    if (group.size() >= MAX_GROUP || wait <= 0)
+                        break;
+                    Entry next = buffer.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next != null)
+                        group.add(next);
+                }
+                buffer.drainTo(group, MAX_GROUP - group.size());
+                writeGroup(group, alertBytes, flowBytes);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        drain(group, alertBytes, flowBytes);
+    }
+
+    private void drain(List<Entry> group, ByteArrayOutputStream alertBytes, ByteArrayOutputStream flowBytes) {
+        while (buffer.drainTo(group, MAX_GROUP) > 0) {
+            writeGroup(group, alertBytes, flowBytes);
+        }
+        if (!group.isEmpty()) {
+            writeGroup(group, alertBytes, flowBytes);
+        }
+    }
+
+    private void writeGroup(List<Entry> group, ByteArrayOutputStream alertBytes, ByteArrayOutputStream flowBytes) {
+        for (Entry e : group) {
+            byte[] line = e.line.getBytes(StandardCharsets.UTF_8);
+            (e.target == alertChannel ? alertBytes : flowBytes).write(line, 0, line.length);
+        }
+        write(alertChannel, alertBytes);
+        write(flowChannel, flowBytes);
+        written.addAndGet(group.size());
+        flushes.incrementAndGet();
+        group.clear();
+    }
+
+    private void write(FileChannel channel, ByteArrayOutputStream bytes) {
+        if (bytes.size() == 0)
+            return;
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(bytes.toByteArray());
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        } catch (IOException e) {
+            writeErrors.incrementAndGet();
+            System.err.println("⚠️ Alert log write failed: " + e.getMessage());
+        }
+        bytes.reset();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getWriteErrors() {
+        return writeErrors.get();
+    }
+
+    public String summary() {
+        return "Alert log: written=" + written.get() + " dropped=" + dropped.get() + " writes=" + flushes.get()
+                + " errors=" + writeErrors.get();
+    }
+
+    // Stops accepting lines, waits for everything already buffered to be written and
+    // closes the files. Safe to call more than once.
+    @Override
+    public void close() {
+        if (!running && !writer.isAlive())
+            return;
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Lines from producers that raced with shutdown.
+        drain(new ArrayList<>(), new ByteArrayOutputStream(), new ByteArrayOutputStream());
+        closeQuietly(alertChannel);
+        closeQuietly(flowChannel);
+    }
+
+    private static void closeQuietly(FileChannel channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.force(false);
+            channel.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            System.err.println("⚠️ Could not close alert log: " + e.getMessage());
         }
     }
 }
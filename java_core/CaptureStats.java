@@ -0,0 +1,98 @@
+import org.pcap4j.core.*;
+
+// Per-handle capture counters: packets and bytes copied into the JVM, plus the kernel's
+// pcap_stats sampled at each window close. The window* values are deltas over the last
+// window. Written by the handle's capture thread only; readable from any thread.
+public class CaptureStats {
+
+    private long packets, bytes;
+    private long lastPackets, lastBytes;
+    private long lastReceived, lastDropped, lastIfDropped;
+
+    private volatile long totalPackets;
+    private volatile long windowPackets, windowBytes;
+    // -1 until pcap_stats has been read (it is not available for offline files).
+    private volatile long received = -1, dropped = -1, ifDropped = -1;
+    private volatile long windowReceived, windowDropped, windowIfDropped;
+
+    // capturedBytes is the captured length (at most snaplen), not the wire length.
+    void count(int capturedBytes) {
+        packets++;
+        bytes += capturedBytes;
+    }
+
+    // Closes a window: publishes the packet/byte deltas and reads the kernel counters.
+    void sample(PcapHandle handle) {
+        totalPackets = packets;
+        windowPackets = packets - lastPackets;
+        windowBytes = bytes - lastBytes;
+        lastPackets = packets;
+        lastBytes = bytes;
+        if (handle == null)
+            return;
+        try {
+            PcapStat stat = handle.getStats();
+            long r = stat.getNumPacketsReceived(), d = stat.getNumPacketsDropped(), i = stat.getNumPacketsDroppedByIf();
+            boolean first = received < 0;
+            windowReceived = first ? r : r - lastReceived;
+            windowDropped = first ? d : d - lastDropped;
+            windowIfDropped = first ? i : i - lastIfDropped;
+            lastReceived = r;
+            lastDropped = d;
+            lastIfDropped = i;
+            received = r;
+            dropped = d;
+            ifDropped = i;
+        } catch (PcapNativeException | NotOpenException e) {
+
+        }
+    }
+
+    public long getPackets() {
+        return totalPackets;
+    }
+
+    public long getWindowPackets() {
+        return windowPackets;
+    }
+
+    public long getWindowBytes() {
+        return windowBytes;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getIfDropped() {
+        return ifDropped;
+    }
+
+    public long getWindowReceived() {
+        return windowReceived;
+    }
+
+    public long getWindowDropped() {
+        return windowDropped;
+    }
+
+    public long getWindowIfDropped() {
+        return windowIfDropped;
+    }
+
+    public String summary() {
+        StringBuilder sb = new StringBuilder()
+                .append("pkts=").append(windowPackets)
+                .append(" copied=").append(windowBytes / 1024).append("KB");
+        if (received >= 0) {
+            sb.append(" kernel_recv=").append(windowReceived)
+                    .append(" kernel_drop=").append(windowDropped)
+                    .append(" if_drop=").append(windowIfDropped);
+        }
+        return sb.toString();
+    }
+}
@@ -4,19 +4,121 @@ import java.nio.charset.StandardCharsets;
 
 public class Config {
     public String interface_name;
+
+    // Several capture interfaces, each with an optional BPF filter; replaces interface_name.
+    public static class Interface {
+        public String name;
+        public String filter;
+    }
+
+    public java.util.List<Interface> interfaces;
     public int windowSeconds;
     public int batchSize;
     public String serverUrl;
+    public int maxInFlight;
+    public int connectTimeoutMs;
+    public int requestTimeoutMs;
+    public String wireFormat;
+    public String detector;
+    public String modelFile;
     public double mlThreshold;
+    public int queueCapacity;
+    public boolean rawCapture;
+    public int snaplen;
+    public String bpfFilter;
+    public int pcapBufferMb;
+    public boolean immediateMode;
+    public int flowIdleSeconds;
+    public int flowActiveSeconds;
+    public int maxFlows;
+    public int captureShards;
+    public int shardRing;
+    public int alertBufferSize;
+    public int alertFlushMs;
+    public String alertOverflow;
+    public String archiveDir;
+    public int archiveSegmentMb;
+    public int archiveSegmentMinutes;
+    public int metricsPort;
+    public boolean metricsJmx;
 
     public static class Rules {
         public int icmpRate;
         public int synRate;
         public int burstPkts;
+        public int scanPorts;
+        public int sweepPeers;
+        public int floodSources;
+        public int baselineZ;
+        public java.util.List<RuleEngine.Rule> table;
     }
 
     public Rules rules;
 
+    public static class Sketch {
+        public boolean disabled;
+        public int cmWidth;
+        public int cmDepth;
+        public int topTalkers;
+        public int hllRows;
+        public int hllPrecision;
+    }
+
+    public Sketch sketch;
+
+    // Per-host traffic baselines; see HostBaselines. halfLifeWindows and warmupWindows
+    // count the windows a host was active in.
+    public static class Baselines {
+        public boolean disabled;
+        public int memoryMb;
+        public int halfLifeWindows;
+        public int warmupWindows;
+        public int idleWindows;
+    }
+
+    public Baselines baselines;
+
+    // Flow and baseline snapshots for fast restarts in live mode; see StateSnapshots.
+    public static class Snapshot {
+        public boolean disabled;
+        public String file;
+        public int intervalSeconds;
+    }
+
+    public Snapshot snapshot;
+
+    // Score cache in front of the model; see ScoreCache.
+    public static class Cache {
+        public boolean disabled;
+        public int capacity;
+        public int ttlSeconds;
+        public int steps;
+    }
+
+    public Cache scoreCache;
+
+    // Live-mode degradation under load; see OverloadController. Lags are in windows.
+    public static class Overload {
+        public boolean disabled;
+        public double highLag;
+        public double lowLag;
+        public int calmWindows;
+        public int sampleRate;
+    }
+
+    public Overload overload;
+
+    // Live feed for web-dashboard; port 0 or a missing block turns it off.
+    public static class Dashboard {
+        public int port;
+        public int topFlows;
+        public int alertsPerWindow;
+        public int clientBuffer;
+        public int maxClients;
+    }
+
+    public Dashboard dashboard;
+
     public static Config load(String projectRoot) throws IOException {
         File cfg = new File(projectRoot, "config.json");
         try (InputStream is = new FileInputStream(cfg)) {
@@ -0,0 +1,369 @@
+import com.google.gson.*;
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+// Live feed for the web dashboard, served as Server-Sent Events from an embedded HTTP
+// server (GET /events). Each scored window becomes one compact delta: aggregate counts,
+// the top flows by packet rate and the window's alerts (both capped), never the full
+// window. Each client has a bounded queue; when a slow client falls behind, new deltas
+// are merged into its newest queued one instead of piling up, so memory per client is
+// fixed and the capture pipeline never waits on a browser.
+public class DashboardFeed {
+
+    private static final long HEARTBEAT_MS = 15_000;
+    private static final int RECENT_ALERTS = 100;
+
+    // One flow as the dashboard shows it; field names match the old /get_flows rows.
+    static class Row {
+        double duration, total_pkts, total_bytes, mean_pkt_len, pkt_rate, protocol;
+        @com.google.gson.annotations.SerializedName("interface")
+        String iface;
+        int prediction;
+        double score;
+        String severity;
+        boolean is_alert;
+        String reason;
+        long time;
+    }
+
+    // Window aggregates, or several windows' worth once coalesced for a slow client.
+    static class Delta {
+        long firstWindow, lastWindow, time;
+        int windows = 1;
+        long flows, alerts, packets, bytes;
+        final long[] severity = new long[RuleEngine.Severity.values().length];
+        // tcp, udp, icmp, other
+        final long[] protocols = new long[4];
+        List<Row> top;
+        List<Row> alertFlows;
+        long alertsDropped;
+
+        // Folds a later delta into this one: counts add up, top flows are the later
+        // window's, alerts are kept up to the cap and the rest are counted.
+        void merge(Delta later, int alertCap) {
+            lastWindow = later.lastWindow;
+            time = later.time;
+            windows += later.windows;
+            flows += later.flows;
+            alerts += later.alerts;
+            packets += later.packets;
+            bytes += later.bytes;
+            for (int i = 0; i < severity.length; i++) {
+                severity[i] += later.severity[i];
+            }
+            for (int i = 0; i < protocols.length; i++) {
+                protocols[i] += later.protocols[i];
+            }
+            top = later.top;
+            alertsDropped += later.alertsDropped;
+            for (Row row : later.alertFlows) {
+                if (alertFlows.size() < alertCap)
+                    alertFlows.add(row);
+                else
+                    alertsDropped++;
+            }
+        }
+    }
+
+    private class Client {
+        final ArrayDeque<Delta> queue = new ArrayDeque<>();
+        boolean closed;
+
+        synchronized void offer(Delta delta) {
+            if (closed)
+                return;
+            if (queue.size() < clientBuffer) {
+                queue.addLast(copy(delta));
+            } else {
+                queue.peekLast().merge(delta, alertsPerWindow * clientBuffer);
+                coalesced.incrementAndGet();
+            }
+            notifyAll();
+        }
+
+        synchronized Delta take(long timeoutMs) throws InterruptedException {
+            if (queue.isEmpty() && !closed)
+                wait(timeoutMs);
+            return queue.pollFirst();
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    private final int topFlows;
+    private final int alertsPerWindow;
+    private final int clientBuffer;
+    private final int maxClients;
+    private final Gson gson = new Gson();
+    private final Set<Client> clients = ConcurrentHashMap.newKeySet();
+    private HttpServer server;
+
+    // Cumulative state for clients that connect mid-session.
+    private final AtomicLong windows = new AtomicLong();
+    private final AtomicLong totalFlows = new AtomicLong();
+    private final AtomicLong totalAlerts = new AtomicLong();
+    private final ArrayDeque<Row> recentAlerts = new ArrayDeque<>();
+
+    private final AtomicLong eventsSent = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    public DashboardFeed(int topFlows, int alertsPerWindow, int clientBuffer, int maxClients) {
+        this.topFlows = topFlows;
+        this.alertsPerWindow = alertsPerWindow;
+        this.clientBuffer = Math.max(1, clientBuffer);
+        this.maxClients = Math.max(1, maxClients);
+    }
+
+    // Null when the dashboard block is missing or its port is 0.
+    public static DashboardFeed fromConfig(Config.Dashboard cfg) throws IOException {
+        if (cfg == null || cfg.port <= 0)
+            return null;
+        DashboardFeed feed = new DashboardFeed(cfg.topFlows > 0 ? cfg.topFlows : 20,
+                cfg.alertsPerWindow > 0 ? cfg.alertsPerWindow : 50, cfg.clientBuffer > 0 ? cfg.clientBuffer : 16,
+                cfg.maxClients > 0 ? cfg.maxClients : 8);
+        feed.start(cfg.port);
+        return feed;
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/events", this::stream);
+        // One thread per connected client, which blocks on that client's queue.
+        server.setExecutor(Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "dashboard-feed");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        System.out.println("✓ Dashboard feed on http://127.0.0.1:" + server.getAddress().getPort() + "/events");
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    // Called by the sink once per scored window, with the alert reason of each detected
+    // flow. Cost is one pass over the window plus the capped rows; nothing here blocks on
+    // a client.
+    public void publish(FlowProcessor.ScoredWindow window, String[] reasons) {
+        FlowBatch flows = window.flows;
+        long now = System.currentTimeMillis();
+        Delta d = new Delta();
+        d.firstWindow = d.lastWindow = windows.incrementAndGet();
+        d.time = now;
+        d.flows = flows.size();
+        d.alertFlows = new ArrayList<>();
+        for (int i = 0; i < flows.size(); i++) {
+            d.packets += (long) flows.totalPkts[i];
+            d.bytes += (long) flows.totalBytes[i];
+            d.severity[window.rules.severity(i).ordinal()]++;
+            int p = (int) flows.protocol[i];
+            d.protocols[p == 6 ? 0 : p == 17 ? 1 : p == 1 ? 2 : 3]++;
+            if (window.detected[i]) {
+                d.alerts++;
+                if (d.alertFlows.size() < alertsPerWindow)
+                    d.alertFlows.add(row(window, reasons, i, now));
+                else
+                    d.alertsDropped++;
+            }
+        }
+        int[] top = topByRate(flows.pktRate, flows.size(), topFlows);
+        d.top = new ArrayList<>(top.length);
+        for (int i : top) {
+            d.top.add(row(window, reasons, i, now));
+        }
+
+        totalFlows.addAndGet(d.flows);
+        totalAlerts.addAndGet(d.alerts);
+        synchronized (recentAlerts) {
+            for (Row r : d.alertFlows) {
+                if (recentAlerts.size() == RECENT_ALERTS)
+                    recentAlerts.pollFirst();
+                recentAlerts.addLast(r);
+            }
+        }
+        for (Client c : clients) {
+            c.offer(d);
+        }
+    }
+
+    private static Row row(FlowProcessor.ScoredWindow window, String[] reasons, int i, long now) {
+        FlowBatch flows = window.flows;
+        ThreatDetector.PredictionResult result = window.predictions.get(i);
+        RuleEngine.RuleResults rules = window.rules;
+        Row r = new Row();
+        r.duration = flows.duration[i];
+        r.total_pkts = flows.totalPkts[i];
+        r.total_bytes = flows.totalBytes[i];
+        r.mean_pkt_len = flows.meanPktLen[i];
+        r.pkt_rate = flows.pktRate[i];
+        r.protocol = flows.protocol[i];
+        r.iface = flows.interfaceName(i);
+        r.prediction = result.prediction;
+        r.score = result.score;
+        r.severity = rules.severity(i).name();
+        r.is_alert = window.detected[i];
+        r.reason = reasons[i];
+        r.time = now;
+        return r;
+    }
+
+    // Indices of the k highest values, highest first, via a size-k min-heap.
+    static int[] topByRate(double[] rate, int n, int k) {
+        k = Math.min(k, n);
+        int[] heap = new int[k];
+        int size = 0;
+        for (int i = 0; i < n; i++) {
+            if (size < k) {
+                int c = size++;
+                heap[c] = i;
+                while (c > 0 && rate[heap[(c - 1) / 2]] > rate[heap[c]]) {
+                    int parent = (c - 1) / 2;
+                    int t = heap[parent];
+                    heap[parent] = heap[c];
+                    heap[c] = t;
+                    c = parent;
+                }
+            } else if (k > 0 && rate[i] > rate[heap[0]]) {
+                heap[0] = i;
+                siftDown(heap, size, rate);
+            }
+        }
+        int[] out = new int[size];
+        for (int j = size - 1; j >= 0; j--) {
+            out[j] = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, size, rate);
+        }
+        return out;
+    }
+
+    private static void siftDown(int[] heap, int size, double[] rate) {
+        int c = 0;
+        while (true) {
+            int l = 2 * c + 1, r = l + 1, m = c;
+            if (l < size && rate[heap[l]] < rate[heap[m]])
+                m = l;
+            if (r < size && rate[heap[r]] < rate[heap[m]])
+                m = r;
+            if (m == c)
+                return;
+            int t = heap[m];
+            heap[m] = heap[c];
+            heap[c] = t;
+            c = m;
+        }
+    }
+
+    // Each client gets its own copy, since merging mutates the queued delta. Rows and the
+    // top list are never modified after publish, so they are shared.
+    private static Delta copy(Delta d) {
+        Delta c = new Delta();
+        c.firstWindow = d.firstWindow;
+        c.lastWindow = d.lastWindow;
+        c.time = d.time;
+        c.windows = d.windows;
+        c.flows = d.flows;
+        c.alerts = d.alerts;
+        c.packets = d.packets;
+        c.bytes = d.bytes;
+        System.arraycopy(d.severity, 0, c.severity, 0, c.severity.length);
+        System.arraycopy(d.protocols, 0, c.protocols, 0, c.protocols.length);
+        c.top = d.top;
+        c.alertFlows = new ArrayList<>(d.alertFlows);
+        c.alertsDropped = d.alertsDropped;
+        return c;
+    }
+
+    private void stream(HttpExchange exchange) throws IOException {
+        Headers h = exchange.getResponseHeaders();
+        h.set("Access-Control-Allow-Origin", "*");
+        Client client = new Client();
+        boolean full;
+        // Clients are only added here, so checking and adding under one lock keeps the
+        // limit exact.
+        synchronized (clients) {
+            full = clients.size() >= maxClients;
+            if (!full)
+                clients.add(client);
+        }
+        if (full) {
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        h.set("Content-Type", "text/event-stream; charset=utf-8");
+        h.set("Cache-Control", "no-cache");
+        try {
+            // Inside the try, so the client slot is freed if the headers fail.
+            exchange.sendResponseHeaders(200, 0);
+            OutputStream out = exchange.getResponseBody();
+            send(out, "hello", hello());
+            long lastWrite = System.currentTimeMillis();
+            while (true) {
+                Delta d = client.take(HEARTBEAT_MS);
+                if (d != null) {
+                    send(out, "window", d);
+                    lastWrite = System.currentTimeMillis();
+                } else if (client.closed) {
+                    break;
+                } else if (System.currentTimeMillis() - lastWrite >= HEARTBEAT_MS) {
+                    // Comment line: keeps proxies from timing out and detects gone clients.
+                    out.write(": ping\n\n".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    lastWrite = System.currentTimeMillis();
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+
+        } finally {
+            clients.remove(client);
+            client.close();
+            exchange.close();
+        }
+    }
+
+    private Map<String, Object> hello() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("windows", windows.get());
+        m.put("flows", totalFlows.get());
+        m.put("alerts", totalAlerts.get());
+        synchronized (recentAlerts) {
+            m.put("recentAlerts", new ArrayList<>(recentAlerts));
+        }
+        return m;
+    }
+
+    private void send(OutputStream out, String event, Object data) throws IOException {
+        String frame = "event: " + event + "\ndata: " + gson.toJson(data) + "\n\n";
+        out.write(frame.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        eventsSent.incrementAndGet();
+    }
+
+    public void registerMetrics(Metrics metrics) {
+        metrics.gauge("detector_dashboard_clients", "Connected dashboard feed clients", null, () -> clients.size());
+        metrics.counter("detector_dashboard_events_total", "Events written to dashboard clients", null,
+                eventsSent::get);
+        metrics.counter("detector_dashboard_coalesced_total", "Window deltas merged for slow dashboard clients",
+                null, coalesced::get);
+    }
+
+    public void close() {
+        for (Client c : clients) {
+            c.close();
+        }
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import org.pcap4j.core.*;
+
+// Live mode as a chain of threads: capture -> extract -> score -> sink, joined by
+// bounded queues. Capture never waits on a downstream stage; when a stage's queue is
+// full the window is dropped and counted against that stage instead. Replays run
+// lossless: a full queue blocks the producer so every window gets scored.
+public class DetectionPipeline {
+
+    public interface StageFunction<I, O> {
+        O apply(I input) throws Exception;
+    }
+
+    public class Stage<I, O> implements Runnable {
+        private final String name;
+        private final BlockingQueue<I> input;
+        private final StageFunction<I, O> function;
+        private Stage<O, ?> next;
+
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+
+        Stage(String name, int capacity, StageFunction<I, O> function) {
+            this.name = name;
+            this.input = new ArrayBlockingQueue<>(capacity);
+            this.function = function;
+        }
+
+        // Non-blocking hand-off outside lossless mode; a full queue means this stage is
+        // the bottleneck.
+        public boolean offer(I item) throws InterruptedException {
+            if (lossless) {
+                input.put(item);
+                return true;
+            }
+            if (input.offer(item)) {
+                return true;
+            }
+            dropped.incrementAndGet();
+            OverloadController o = overload;
+            if (o != null)
+                o.windowDropped();
+            return false;
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                I item;
+                try {
+                    item = input.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                boolean handedOff = false;
+                try {
+                    O out = function.apply(item);
+                    processed.incrementAndGet();
+                    if (next != null && out != null) {
+                        handedOff = next.offer(out);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                    System.err.println("  [" + name + "] " + e);
+                } finally {
+                    if (!handedOff) {
+                        inFlight.decrementAndGet();
+                    }
+                }
+            }
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getQueueDepth() {
+            return input.size();
+        }
+
+        public long getProcessed() {
+            return processed.get();
+        }
+
+        public long getDropped() {
+            return dropped.get();
+        }
+
+        public long getErrors() {
+            return errors.get();
+        }
+    }
+
+    private final PacketCapture capture;
+    private final int windowSeconds;
+    private final Stage<FlowBatch, FlowBatch> extractStage;
+    private final Stage<FlowBatch, FlowProcessor.ScoredWindow> scoreStage;
+    private final Stage<FlowProcessor.ScoredWindow, Void> sinkStage;
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicLong windowsCaptured = new AtomicLong();
+    private final AtomicLong flowsCaptured = new AtomicLong();
+    private volatile long lastWindowFlows;
+    // Windows accepted by the extract stage that have not yet left the pipeline.
+    private final AtomicLong inFlight = new AtomicLong();
+    private final boolean lossless;
+    private volatile boolean running;
+    private volatile OverloadController overload;
+
+    public DetectionPipeline(PacketCapture capture, FlowProcessor processor, int windowSeconds, int queueCapacity) {
+        this(capture, processor, windowSeconds, queueCapacity, false);
+    }
+
+    public DetectionPipeline(PacketCapture capture, FlowProcessor processor, int windowSeconds, int queueCapacity,
+            boolean lossless) {
+        this.capture = capture;
+        this.windowSeconds = windowSeconds;
+        this.lossless = lossless;
+        this.extractStage = new Stage<>("extract", queueCapacity, processor::extract);
+        this.scoreStage = new Stage<>("score", queueCapacity, processor::score);
+        this.sinkStage = new Stage<>("sink", queueCapacity, window -> {
+            processor.sink(window);
+            OverloadController o = overload;
+            if (o != null)
+                o.windowDone(window.flows);
+            System.out.println("  " + statusLine());
+            return null;
+        });
+        extractStage.next = scoreStage;
+        scoreStage.next = sinkStage;
+    }
+
+    // Live mode only: a lossless replay should score everything however long it takes.
+    public void setOverloadController(OverloadController overload) {
+        this.overload = overload;
+    }
+
+    public void start() {
+        running = true;
+        for (Stage<?, ?> stage : stages()) {
+            Thread t = new Thread(stage, "pipeline-" + stage.getName());
+            t.setDaemon(true);
+            t.start();
+            workers.add(t);
+        }
+    }
+
+    // Runs the capture loop on the calling thread until stop(), the handle closes or an
+    // offline file runs out.
+    public void runCapture() {
+        while (running) {
+            FlowBatch flows;
+            try {
+                flows = capture.captureNextWindow();
+            } catch (NotOpenException e) {
+                break;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (PcapNativeException e) {
+                System.err.println("  [capture] " + e.getMessage());
+                continue;
+            }
+
+            long windowCount = windowsCaptured.incrementAndGet();
+            System.out.println("\n📊 Window #" + windowCount + " (" + windowSeconds + "s)");
+            if (flows.isEmpty()) {
+                System.out.println("  No flows captured in this window.");
+            } else {
+                lastWindowFlows = flows.size();
+                flowsCaptured.addAndGet(flows.size());
+                inFlight.incrementAndGet();
+                boolean accepted;
+                try {
+                    accepted = extractStage.offer(flows);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    inFlight.decrementAndGet();
+                    break;
+                }
+                if (!accepted) {
+                    inFlight.decrementAndGet();
+                    System.out.println("  ⚠️ Pipeline backlogged, window dropped at extract stage");
+                }
+            }
+            if (capture.isExhausted()) {
+                break;
+            }
+        }
+    }
+
+    // Blocks until every accepted window has been sunk, dropped or failed.
+    public void awaitDrain() throws InterruptedException {
+        while (inFlight.get() > 0) {
+            Thread.sleep(10);
+        }
+    }
+
+    public void stop() {
+        running = false;
+        for (Thread t : workers) {
+            t.interrupt();
+        }
+    }
+
+    public List<Stage<?, ?>> stages() {
+        return Arrays.asList(extractStage, scoreStage, sinkStage);
+    }
+
+    public long getWindowsCaptured() {
+        return windowsCaptured.get();
+    }
+
+    public long getFlowsCaptured() {
+        return flowsCaptured.get();
+    }
+
+    public void registerMetrics(Metrics metrics) {
+        metrics.counter("detector_windows_total", "Capture windows closed", null, windowsCaptured::get);
+        metrics.counter("detector_flows_total", "Flows handed to the pipeline", null, flowsCaptured::get);
+        metrics.gauge("detector_window_flows", "Flows in the last non-empty window", null, () -> lastWindowFlows);
+        metrics.gauge("detector_pipeline_in_flight", "Windows accepted and not yet sunk", null, inFlight::get);
+        for (Stage<?, ?> stage : stages()) {
+            String label = "stage=\"" + stage.getName() + "\"";
+            metrics.gauge("detector_queue_depth", "Windows waiting in a stage's queue", label,
+                    () -> stage.getQueueDepth());
+            metrics.counter("detector_stage_processed_total", "Windows a stage completed", label, stage::getProcessed);
+            metrics.counter("detector_stage_dropped_total", "Windows dropped at a full stage queue", label,
+                    stage::getDropped);
+            metrics.counter("detector_stage_errors_total", "Windows a stage failed on", label, stage::getErrors);
+        }
+        if (overload != null)
+            overload.registerMetrics(metrics);
+    }
+
+    public String statusLine() {
+        StringBuilder sb = new StringBuilder("Pipeline:");
+        for (Stage<?, ?> stage : stages()) {
+            sb.append(' ').append(stage.getName())
+                    .append("[q=").append(stage.getQueueDepth())
+                    .append(" done=").append(stage.getProcessed())
+                    .append(" drop=").append(stage.getDropped())
+                    .append(" err=").append(stage.getErrors())
+                    .append(']');
+        }
+        OverloadController o = overload;
+        if (o != null && o.getLevel() != OverloadController.Level.NORMAL)
+            sb.append(" overload=").append(o.getLevel());
+        return sb.toString();
+    }
+}
@@ -1,35 +1,46 @@
-import java.util.*;
-
-// A utility class to extract features from network flow data represented as a map.
+// Computes the derived model features of a FlowBatch (mean packet length and, unless
+// capture already measured it, packet rate) from the raw counters, one column at a time.
 public class FeatureExtractor {
 
-    public static double[] extractFeatures(Map<String, String> flow) {
-        double duration = Double.parseDouble(flow.get("duration"));
-        double total_pkts = Double.parseDouble(flow.get("total_pkts"));
-        double total_bytes = Double.parseDouble(flow.get("total_bytes"));
-        double mean_pkt_len = Double.parseDouble(flow.get("mean_pkt_len"));
-        double pkt_rate = Double.parseDouble(flow.get("pkt_rate"));
-        String protoRaw = flow.get("protocol");
-        int protocol;
-        if (protoRaw != null && protoRaw.matches("\\d+")) {
-            // Protocol provided as numeric code (e.g., 6, 17, 1)
-            protocol = Integer.parseInt(protoRaw);
-        } else {
-            String proto = protoRaw == null ? "" : protoRaw.toUpperCase();
-            switch (proto) {
-                case "TCP":
-                    protocol = 6;
-                    break;
-                case "UDP":
-                    protocol = 17;
-                    break;
-                case "ICMP":
-                    protocol = 1;
-                    break;
-                default:
-                    protocol = 0;
-            }
+    public static FlowBatch extractFeatures(FlowBatch batch) {
+        int n = batch.size();
+        double[] duration = batch.duration;
+        double[] totalPkts = batch.totalPkts;
+        double[] totalBytes = batch.totalBytes;
+        double[] meanPktLen = batch.meanPktLen;
+        double[] pktRate = batch.pktRate;
+        for (int i = 0; i < n; i++) {
+            meanPktLen[i] = totalPkts[i] > 0 ? totalBytes[i] / totalPkts[i] : 0;
+        }
+        // Capture measures a sliding rate itself; only derive one for rows it did not.
+        boolean[] measured = batch.rateMeasured;
+        for (int i = 0; i < n; i++) {
+            if (!measured[i])
+                pktRate[i] = duration[i] > 0 ? totalPkts[i] / duration[i] : 0;
+        }
+        return batch;
+    }
+
+    // Protocol as a numeric code (e.g., 6, 17, 1) or a name; unknown names map to 0.
+    public static int protocolCode(String protoRaw) {
+        if (protoRaw == null || protoRaw.isEmpty())
+            return 0;
+        boolean numeric = true;
+        for (int i = 0; i < protoRaw.length() && numeric; i++) {
+            char c = protoRaw.charAt(i);
+            numeric = c >= '0' && c <= '9';
+        }
+        if (numeric)
+            return Integer.parseInt(protoRaw);
+        switch (protoRaw.toUpperCase()) {
+            case "TCP":
+                return 6;
+            case "UDP":
+                return 17;
+            case "ICMP":
+                return 1;
+            default:
+                return 0;
         }
-        return new double[] { duration, total_pkts, total_bytes, mean_pkt_len, pkt_rate, protocol };
     }
 }
@@ -0,0 +1,372 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.zip.*;
+
+// Time-partitioned archive of scored flows and alerts. Records are packed into blocks
+// that are deflated and appended to the current segment file; every block also gets a
+// fixed-size entry in the segment's .idx file with its time range and the severities it
+// contains. Queries read only the small index files and inflate just the blocks that can
+// match. A segment is rolled once it reaches its size or age limit.
+//
+// <start millis>.seg: [compressed block]...
+// <start millis>.idx: [offset i64 | compressed i32 | raw i32 | records i32 | min ts i64 | max ts i64 | severities u8]...
+public class FlowArchive implements Closeable {
+
+    public static final long DEFAULT_SEGMENT_BYTES = 64L << 20;
+    public static final long DEFAULT_SEGMENT_MILLIS = 60 * 60 * 1000L;
+    // Uncompressed bytes collected before a block is written.
+    private static final int BLOCK_BYTES = 64 * 1024;
+    private static final int INDEX_ENTRY_BYTES = 8 + 4 + 4 + 4 + 8 + 8 + 1;
+
+    private static final int FLAG_ALERT = 1;
+
+    private static final RuleEngine.Severity[] SEVERITIES = RuleEngine.Severity.values();
+
+    public static class Record {
+        public final long timestamp;
+        public final boolean alert;
+        public final RuleEngine.Severity severity;
+        public final int prediction;
+        public final double score;
+        public final double[] features;
+        public final long srcHi, srcLo, dstHi, dstLo;
+        public final String reason;
+
+        Record(long timestamp, boolean alert, RuleEngine.Severity severity, int prediction, double score,
+                double[] features, long srcHi, long srcLo, long dstHi, long dstLo, String reason) {
+            this.timestamp = timestamp;
+            this.alert = alert;
+            this.severity = severity;
+            this.prediction = prediction;
+            this.score = score;
+            this.features = features;
+            this.srcHi = srcHi;
+            this.srcLo = srcLo;
+            this.dstHi = dstHi;
+            this.dstLo = dstLo;
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return new Date(timestamp) + (alert ? " ALERT " : " flow ") + severity + " pred=" + prediction
+                    + String.format(" score=%.4f ", score) + Arrays.toString(features)
+                    + (reason.isEmpty() ? "" : " " + reason);
+        }
+    }
+
+    private static class IndexEntry {
+        long offset;
+        int compressed;
+        int raw;
+        int records;
+        long minTs;
+        long maxTs;
+        // Bits 0-3: severities of any record; bits 4-7: severities of alerts.
+        int severities;
+    }
+
+    private final File dir;
+    private final long segmentBytes;
+    private final long segmentMillis;
+
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_BYTES + 4096);
+    private final DataOutputStream blockOut = new DataOutputStream(block);
+    private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+    private byte[] compressBuf = new byte[BLOCK_BYTES];
+    private final IndexEntry pending = new IndexEntry();
+
+    private FileChannel segment;
+    private FileChannel index;
+    private long segmentStart;
+    private long segmentSize;
+
+    private boolean closed;
+    private long recordsWritten;
+    private long blocksWritten;
+    private long segmentsRolled;
+
+    public FlowArchive(File dir, long segmentBytes, long segmentMillis) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes > 0 ? segmentBytes : DEFAULT_SEGMENT_BYTES;
+        this.segmentMillis = segmentMillis > 0 ? segmentMillis : DEFAULT_SEGMENT_MILLIS;
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Cannot create archive directory " + dir);
+        resetPending();
+    }
+
+    // Off unless archiveDir is set: appends run on the sink thread, so archiving is only
+    // worth turning on where the disk keeps up with every scored flow.
+    public static FlowArchive fromConfig(Config cfg) throws IOException {
+        if (cfg.archiveDir == null || cfg.archiveDir.isEmpty())
+            return null;
+        return new FlowArchive(new File(cfg.archiveDir), (long) cfg.archiveSegmentMb << 20,
+                cfg.archiveSegmentMinutes * 60_000L);
+    }
+
+    // Appends flow i of a scored window. reason is only stored for alerts.
+    public synchronized void append(long timestamp, FlowBatch flows, int i, int prediction, double score,
+            RuleEngine.Severity severity, boolean alert, String reason) throws IOException {
+        if (closed)
+            throw new IOException("Archive " + dir + " is closed");
+        if (segment == null || timestamp - segmentStart >= segmentMillis || segmentSize >= segmentBytes) {
+            roll(timestamp);
+        }
+        blockOut.writeLong(timestamp);
+        blockOut.writeByte(alert ? FLAG_ALERT : 0);
+        blockOut.writeByte(severity.ordinal());
+        blockOut.writeByte(prediction);
+        blockOut.writeDouble(score);
+        blockOut.writeDouble(flows.duration[i]);
+        blockOut.writeDouble(flows.totalPkts[i]);
+        blockOut.writeDouble(flows.totalBytes[i]);
+        blockOut.writeDouble(flows.meanPktLen[i]);
+        blockOut.writeDouble(flows.pktRate[i]);
+        blockOut.writeDouble(flows.protocol[i]);
+        blockOut.writeLong(flows.srcHi[i]);
+        blockOut.writeLong(flows.srcLo[i]);
+        blockOut.writeLong(flows.dstHi[i]);
+        blockOut.writeLong(flows.dstLo[i]);
+        blockOut.writeUTF(alert && reason != null ? reason : "");
+
+        pending.records++;
+        pending.minTs = Math.min(pending.minTs, timestamp);
+        pending.maxTs = Math.max(pending.maxTs, timestamp);
+        pending.severities |= 1 << severity.ordinal();
+        if (alert)
+            pending.severities |= 1 << (4 + severity.ordinal());
+        recordsWritten++;
+
+        if (block.size() >= BLOCK_BYTES) {
+            flushBlock();
+        }
+    }
+
+    // Writes the partial block so everything appended so far is on disk and queryable.
+    public synchronized void flush() throws IOException {
+        flushBlock();
+    }
+
+    private void flushBlock() throws IOException {
+        if (pending.records == 0)
+            return;
+        byte[] raw = block.toByteArray();
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        int len = 0;
+        while (!deflater.finished()) {
+            if (len == compressBuf.length)
+                compressBuf = Arrays.copyOf(compressBuf, compressBuf.length * 2);
+            len += deflater.deflate(compressBuf, len, compressBuf.length - len);
+        }
+
+        pending.offset = segmentSize;
+        pending.compressed = len;
+        pending.raw = raw.length;
+        writeFully(segment, ByteBuffer.wrap(compressBuf, 0, len));
+        writeFully(index, encode(pending));
+        segmentSize += len;
+        blocksWritten++;
+
+        block.reset();
+        resetPending();
+    }
+
+    private void roll(long timestamp) throws IOException {
+        flushBlock();
+        closeSegment();
+        long start = timestamp;
+        while (new File(dir, start + ".seg").exists()) {
+            start++;
+        }
+        segment = FileChannel.open(new File(dir, start + ".seg").toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        index = FileChannel.open(new File(dir, start + ".idx").toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE);
+        segmentStart = timestamp;
+        segmentSize = 0;
+        segmentsRolled++;
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment != null) {
+            segment.force(false);
+            segment.close();
+            index.force(false);
+            index.close();
+            segment = null;
+            index = null;
+        }
+    }
+
+    private void resetPending() {
+        pending.records = 0;
+        pending.minTs = Long.MAX_VALUE;
+        pending.maxTs = Long.MIN_VALUE;
+        pending.severities = 0;
+    }
+
+    private static ByteBuffer encode(IndexEntry e) {
+        ByteBuffer buf = ByteBuffer.allocate(INDEX_ENTRY_BYTES);
+        buf.putLong(e.offset).putInt(e.compressed).putInt(e.raw).putInt(e.records).putLong(e.minTs)
+                .putLong(e.maxTs).put((byte) e.severities);
+        buf.flip();
+        return buf;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+    }
+
+    public long getRecordsWritten() {
+        return recordsWritten;
+    }
+
+    public String summary() {
+        return "Archive: records=" + recordsWritten + " blocks=" + blocksWritten + " segments=" + segmentsRolled;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        flushBlock();
+        closeSegment();
+        deflater.end();
+    }
+
+    // --- queries ---
+
+    // Records with from <= timestamp <= to whose severity is in the set, oldest segment
+    // first. alertsOnly skips flows that did not raise an alert. Blocks whose index entry
+    // rules them out are never read.
+    public static void scan(File dir, long from, long to, EnumSet<RuleEngine.Severity> severities,
+            boolean alertsOnly, Consumer<Record> out) throws IOException {
+        int wanted = 0;
+        for (RuleEngine.Severity s : severities) {
+            wanted |= 1 << (alertsOnly ? 4 + s.ordinal() : s.ordinal());
+        }
+        // Anything not named <start millis>.idx is not ours and is skipped.
+        File[] indexes = dir.listFiles((d, name) -> segmentStart(name) >= 0);
+        if (indexes == null || wanted == 0)
+            return;
+        Arrays.sort(indexes, Comparator.comparingLong(f -> segmentStart(f.getName())));
+
+        Inflater inflater = new Inflater();
+        try {
+            for (File idx : indexes) {
+                // Segments are named after their first timestamp and written in time order.
+                if (segmentStart(idx.getName()) > to)
+                    break;
+                List<IndexEntry> blocks = readIndex(idx);
+                File seg = new File(dir, idx.getName().replace(".idx", ".seg"));
+                FileChannel segment = null;
+                try {
+                    for (IndexEntry e : blocks) {
+                        if (e.maxTs < from || e.minTs > to || (e.severities & wanted) == 0)
+                            continue;
+                        if (segment == null)
+                            segment = FileChannel.open(seg.toPath(), StandardOpenOption.READ);
+                        byte[] raw = readBlock(segment, e, inflater);
+                        decode(raw, e.records, from, to, severities, alertsOnly, out);
+                    }
+                } finally {
+                    if (segment != null)
+                        segment.close();
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    // Start millis from an index file name, or -1 if the name is not <start millis>.idx.
+    private static long segmentStart(String name) {
+        if (!name.endsWith(".idx"))
+            return -1;
+        try {
+            return Long.parseLong(name.substring(0, name.length() - ".idx".length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static List<Record> query(File dir, long from, long to, EnumSet<RuleEngine.Severity> severities,
+            boolean alertsOnly) throws IOException {
+        List<Record> out = new ArrayList<>();
+        scan(dir, from, to, severities, alertsOnly, out::add);
+        return out;
+    }
+
+    private static List<IndexEntry> readIndex(File idx) throws IOException {
+        byte[] bytes = Files.readAllBytes(idx.toPath());
+        // A torn trailing entry (crash mid-write) is ignored.
+        int n = bytes.length / INDEX_ENTRY_BYTES;
+        ByteBuffer buf = ByteBuffer.wrap(bytes);
+        List<IndexEntry> entries = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            IndexEntry e = new IndexEntry();
+            e.offset = buf.getLong();
+            e.compressed = buf.getInt();
+            e.raw = buf.getInt();
+            e.records = buf.getInt();
+            e.minTs = buf.getLong();
+            e.maxTs = buf.getLong();
+            e.severities = buf.get() & 0xFF;
+            entries.add(e);
+        }
+        return entries;
+    }
+
+    private static byte[] readBlock(FileChannel segment, IndexEntry e, Inflater inflater) throws IOException {
+        ByteBuffer compressed = ByteBuffer.allocate(e.compressed);
+        while (compressed.hasRemaining()) {
+            if (segment.read(compressed, e.offset + compressed.position()) < 0)
+                throw new EOFException("Archive block at " + e.offset + " is truncated");
+        }
+        byte[] raw = new byte[e.raw];
+        inflater.reset();
+        inflater.setInput(compressed.array());
+        try {
+            int len = 0;
+            while (len < raw.length && !inflater.finished()) {
+                len += inflater.inflate(raw, len, raw.length - len);
+            }
+            if (len != raw.length)
+                throw new IOException("Archive block at " + e.offset + " inflated to " + len + " of " + raw.length + " bytes");
+        } catch (DataFormatException ex) {
+            throw new IOException("Corrupt archive block at " + e.offset + ": " + ex.getMessage());
+        }
+        return raw;
+    }
+
+    private static void decode(byte[] raw, int records, long from, long to, EnumSet<RuleEngine.Severity> severities,
+            boolean alertsOnly, Consumer<Record> out) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(raw));
+        for (int r = 0; r < records; r++) {
+            long ts = in.readLong();
+            boolean alert = (in.readByte() & FLAG_ALERT) != 0;
+            RuleEngine.Severity severity = SEVERITIES[in.readByte()];
+            int prediction = in.readByte();
+            double score = in.readDouble();
+            double[] features = new double[FlowBatch.FEATURE_COUNT];
+            for (int f = 0; f < features.length; f++) {
+                features[f] = in.readDouble();
+            }
+            long srcHi = in.readLong(), srcLo = in.readLong(), dstHi = in.readLong(), dstLo = in.readLong();
+            String reason = in.readUTF();
+            if (ts >= from && ts <= to && severities.contains(severity) && (alert || !alertsOnly)) {
+                out.accept(new Record(ts, alert, severity, prediction, score, features, srcHi, srcLo, dstHi, dstLo,
+                        reason));
+            }
+        }
+    }
+}
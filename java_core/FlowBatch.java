@@ -0,0 +1,209 @@
+// Columnar window of flows: one primitive array per model feature plus the packed flow
+// key from FlowTable (all zero for sources without addresses, such as CSV exports).
+// Capture also fills rule-only columns from TrafficSketch and HostBaselines; the model
+// never sees them.
+// Capture, extraction, rules and scoring all work on this directly, so numbers are never
+// formatted to strings and parsed back.
+public class FlowBatch {
+
+    public static final int FEATURE_COUNT = 6;
+    public static final String[] FEATURE_NAMES = {
+            "duration", "total_pkts", "total_bytes", "mean_pkt_len", "pkt_rate", "protocol" };
+    // Model features followed by the sketch and baseline columns, in the order rules can
+    // name them.
+    public static final String[] RULE_FEATURE_NAMES = {
+            "duration", "total_pkts", "total_bytes", "mean_pkt_len", "pkt_rate", "protocol",
+            "src_pkt_rate", "src_ports", "src_peers", "dst_peers",
+            "src_rate_z", "src_bytes_z", "src_flows_z", "dst_rate_z", "dst_bytes_z", "dst_flows_z" };
+
+    public final double[] duration;
+    public final double[] totalPkts;
+    public final double[] totalBytes;
+    public final double[] meanPktLen;
+    public final double[] pktRate;
+    public final double[] protocol;
+
+    // Window-wide estimates for the flow's source/destination; zero without a sketch.
+    public final double[] srcPktRate;
+    public final double[] srcPorts;
+    public final double[] srcPeers;
+    public final double[] dstPeers;
+
+    // How far this window's packet rate, byte rate and flow count of the flow's
+    // source/destination are from that host's baseline, in standard deviations; zero
+    // without baselines or while a host is still warming up.
+    public final double[] srcRateZ, srcBytesZ, srcFlowsZ;
+    public final double[] dstRateZ, dstBytesZ, dstFlowsZ;
+
+    public final long[] srcHi, srcLo, dstHi, dstLo;
+    // Index into interfaces of the capture interface each flow was seen on.
+    public final int[] iface;
+    public String[] interfaces;
+    // True when the flow's first packet fell in this window (capture only).
+    public final boolean[] newFlow;
+    // True when pktRate is capture's sliding-window rate, which may legitimately be 0;
+    // otherwise extraction derives it from the lifetime counters.
+    public final boolean[] rateMeasured;
+    // System.nanoTime() when capture closed the window, or 0; the pipeline's lag is
+    // measured from it.
+    public long closedAt;
+
+    private int size;
+
+    public FlowBatch(int capacity) {
+        duration = new double[capacity];
+        totalPkts = new double[capacity];
+        totalBytes = new double[capacity];
+        meanPktLen = new double[capacity];
+        pktRate = new double[capacity];
+        protocol = new double[capacity];
+        srcPktRate = new double[capacity];
+        srcPorts = new double[capacity];
+        srcPeers = new double[capacity];
+        dstPeers = new double[capacity];
+        srcRateZ = new double[capacity];
+        srcBytesZ = new double[capacity];
+        srcFlowsZ = new double[capacity];
+        dstRateZ = new double[capacity];
+        dstBytesZ = new double[capacity];
+        dstFlowsZ = new double[capacity];
+        srcHi = new long[capacity];
+        srcLo = new long[capacity];
+        dstHi = new long[capacity];
+        dstLo = new long[capacity];
+        iface = new int[capacity];
+        newFlow = new boolean[capacity];
+        rateMeasured = new boolean[capacity];
+    }
+
+    public int add(double duration, double totalPkts, double totalBytes, double meanPktLen, double pktRate,
+            double protocol) {
+        int i = size++;
+        this.duration[i] = duration;
+        this.totalPkts[i] = totalPkts;
+        this.totalBytes[i] = totalBytes;
+        this.meanPktLen[i] = meanPktLen;
+        this.pktRate[i] = pktRate;
+        this.protocol[i] = protocol;
+        srcPktRate[i] = 0;
+        srcPorts[i] = 0;
+        srcPeers[i] = 0;
+        dstPeers[i] = 0;
+        srcRateZ[i] = 0;
+        srcBytesZ[i] = 0;
+        srcFlowsZ[i] = 0;
+        dstRateZ[i] = 0;
+        dstBytesZ[i] = 0;
+        dstFlowsZ[i] = 0;
+        srcHi[i] = 0;
+        srcLo[i] = 0;
+        dstHi[i] = 0;
+        dstLo[i] = 0;
+        iface[i] = 0;
+        newFlow[i] = false;
+        rateMeasured[i] = false;
+        return i;
+    }
+
+    // Copies every row of other onto the end of this batch, which must have room.
+    public void append(FlowBatch other) {
+        int n = other.size, at = size;
+        System.arraycopy(other.duration, 0, duration, at, n);
+        System.arraycopy(other.totalPkts, 0, totalPkts, at, n);
+        System.arraycopy(other.totalBytes, 0, totalBytes, at, n);
+        System.arraycopy(other.meanPktLen, 0, meanPktLen, at, n);
+        System.arraycopy(other.pktRate, 0, pktRate, at, n);
+        System.arraycopy(other.protocol, 0, protocol, at, n);
+        System.arraycopy(other.srcPktRate, 0, srcPktRate, at, n);
+        System.arraycopy(other.srcPorts, 0, srcPorts, at, n);
+        System.arraycopy(other.srcPeers, 0, srcPeers, at, n);
+        System.arraycopy(other.dstPeers, 0, dstPeers, at, n);
+        System.arraycopy(other.srcRateZ, 0, srcRateZ, at, n);
+        System.arraycopy(other.srcBytesZ, 0, srcBytesZ, at, n);
+        System.arraycopy(other.srcFlowsZ, 0, srcFlowsZ, at, n);
+        System.arraycopy(other.dstRateZ, 0, dstRateZ, at, n);
+        System.arraycopy(other.dstBytesZ, 0, dstBytesZ, at, n);
+        System.arraycopy(other.dstFlowsZ, 0, dstFlowsZ, at, n);
+        System.arraycopy(other.srcHi, 0, srcHi, at, n);
+        System.arraycopy(other.srcLo, 0, srcLo, at, n);
+        System.arraycopy(other.dstHi, 0, dstHi, at, n);
+        System.arraycopy(other.dstLo, 0, dstLo, at, n);
+        System.arraycopy(other.iface, 0, iface, at, n);
+        System.arraycopy(other.newFlow, 0, newFlow, at, n);
+        System.arraycopy(other.rateMeasured, 0, rateMeasured, at, n);
+        size = at + n;
+    }
+
+    public void setKey(int i, long srcHi, long srcLo, long dstHi, long dstLo) {
+        this.srcHi[i] = srcHi;
+        this.srcLo[i] = srcLo;
+        this.dstHi[i] = dstHi;
+        this.dstLo[i] = dstLo;
+    }
+
+    public void setSketch(int i, double srcPktRate, double srcPorts, double srcPeers, double dstPeers) {
+        this.srcPktRate[i] = srcPktRate;
+        this.srcPorts[i] = srcPorts;
+        this.srcPeers[i] = srcPeers;
+        this.dstPeers[i] = dstPeers;
+    }
+
+    public void setBaseline(int i, double srcRateZ, double srcBytesZ, double srcFlowsZ, double dstRateZ,
+            double dstBytesZ, double dstFlowsZ) {
+        this.srcRateZ[i] = srcRateZ;
+        this.srcBytesZ[i] = srcBytesZ;
+        this.srcFlowsZ[i] = srcFlowsZ;
+        this.dstRateZ[i] = dstRateZ;
+        this.dstBytesZ[i] = dstBytesZ;
+        this.dstFlowsZ[i] = dstFlowsZ;
+    }
+
+    // Name of the interface row i was captured on, or null (CSV input, unnamed handles).
+    public String interfaceName(int i) {
+        return interfaces != null && iface[i] < interfaces.length ? interfaces[iface[i]] : null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return duration.length;
+    }
+
+    public boolean isFull() {
+        return size == duration.length;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public double feature(int i, int feature) {
+        switch (feature) {
+            case 0:
+                return duration[i];
+            case 1:
+                return totalPkts[i];
+            case 2:
+                return totalBytes[i];
+            case 3:
+                return meanPktLen[i];
+            case 4:
+                return pktRate[i];
+            case 5:
+                return protocol[i];
+            default:
+                throw new IndexOutOfBoundsException("feature " + feature);
+        }
+    }
+
+    // Row copy in model feature order, for logging and per-flow callers.
+    public double[] row(int i) {
+        return new double[] { duration[i], totalPkts[i], totalBytes[i], meanPktLen[i], pktRate[i], protocol[i] };
+    }
+}
@@ -0,0 +1,248 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Streams a flow CSV export in fixed-size FlowBatch chunks. The file is read through
+// one reusable direct buffer and parsed byte by byte into one reusable batch, so memory
+// use depends on the chunk size, not the file size. Columns are located by header name
+// (duration, total_pkts, total_bytes, mean_pkt_len, pkt_rate, protocol).
+public class FlowCsvReader implements Closeable {
+
+    public static final int DEFAULT_CHUNK_ROWS = 8192;
+
+    private static final String[] FEATURE_COLUMNS = FlowBatch.FEATURE_NAMES;
+    private static final int PROTOCOL_FEATURE = 5;
+    private static final int MAX_FIELD_BYTES = 64;
+    private static final double[] POW10 = new double[23];
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final FlowBatch chunk;
+
+    // column index in the file -> feature index, or -1 for columns we skip
+    private int[] columnToFeature;
+    private int lastFeatureColumn;
+    private boolean eof;
+
+    private final byte[] field = new byte[MAX_FIELD_BYTES];
+    private int fieldLen;
+    private int column;
+    private final double[] row = new double[FEATURE_COLUMNS.length];
+    private boolean rowHasData;
+    private long rowsRead;
+    private long rowsSkipped;
+
+    public FlowCsvReader(String path) throws IOException {
+        this(path, DEFAULT_CHUNK_ROWS, 1 << 20);
+    }
+
+    public FlowCsvReader(String path, int chunkRows, int bufferBytes) throws IOException {
+        this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        this.buffer = ByteBuffer.allocateDirect(bufferBytes);
+        this.buffer.flip();
+        this.chunk = new FlowBatch(chunkRows);
+        readHeader();
+    }
+
+    // Returns up to chunkRows flows, or null once the file is exhausted. The same batch
+    // is refilled on every call, so it is only valid until the next one.
+    public FlowBatch nextChunk() throws IOException {
+        chunk.clear();
+        while (!chunk.isFull()) {
+            if (!buffer.hasRemaining() && !fill()) {
+                if (rowHasData || fieldLen > 0) {
+                    endField();
+                    endRow();
+                }
+                break;
+            }
+            byte b = buffer.get();
+            if (b == ',') {
+                endField();
+            } else if (b == '\n') {
+                endField();
+                endRow();
+            } else if (b != '\r') {
+                if (fieldLen < MAX_FIELD_BYTES) {
+                    field[fieldLen] = b;
+                }
+                fieldLen++;
+                rowHasData = true;
+            }
+        }
+        return chunk.isEmpty() ? null : chunk;
+    }
+
+    public long getRowsRead() {
+        return rowsRead;
+    }
+
+    // Rows that were too short or had unparsable numbers.
+    public long getRowsSkipped() {
+        return rowsSkipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private void readHeader() throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        while (true) {
+            if (!buffer.hasRemaining() && !fill())
+                break;
+            byte b = buffer.get();
+            if (b == '\n')
+                break;
+            if (b != '\r')
+                header.write(b);
+        }
+        String[] names = header.toString(StandardCharsets.UTF_8.name()).split(",");
+        columnToFeature = new int[names.length];
+        Arrays.fill(columnToFeature, -1);
+        int matched = 0;
+        for (int c = 0; c < names.length; c++) {
+            String name = names[c].trim().replace("\"", "");
+            for (int f = 0; f < FEATURE_COLUMNS.length; f++) {
+                if (FEATURE_COLUMNS[f].equals(name)) {
+                    columnToFeature[c] = f;
+                    matched++;
+                }
+            }
+        }
+        if (matched < FEATURE_COLUMNS.length) {
+            // Same fixed layout readFlows() assumes: flow_key first, then the features.
+            columnToFeature = new int[FEATURE_COLUMNS.length + 2];
+            Arrays.fill(columnToFeature, -1);
+            for (int f = 0; f < FEATURE_COLUMNS.length; f++) {
+                columnToFeature[f + 1] = f;
+            }
+        }
+        for (int c = 0; c < columnToFeature.length; c++) {
+            if (columnToFeature[c] >= 0)
+                lastFeatureColumn = c;
+        }
+    }
+
+    private boolean fill() throws IOException {
+        if (eof)
+            return false;
+        buffer.clear();
+        int n = channel.read(buffer);
+        buffer.flip();
+        if (n <= 0) {
+            eof = true;
+            return false;
+        }
+        return true;
+    }
+
+    private void endField() {
+        int feature = column < columnToFeature.length ? columnToFeature[column] : -1;
+        if (feature >= 0) {
+            row[feature] = feature == PROTOCOL_FEATURE ? parseProtocol() : parseNumber();
+        }
+        column++;
+        fieldLen = 0;
+    }
+
+    private void endRow() {
+        boolean valid = column > lastFeatureColumn && !Double.isNaN(row[0] + row[1] + row[2] + row[3] + row[4]);
+        if (rowHasData) {
+            if (valid) {
+                chunk.add(row[0], row[1], row[2], row[3], row[4], row[5]);
+                rowsRead++;
+            } else {
+                rowsSkipped++;
+            }
+        }
+        column = 0;
+        fieldLen = 0;
+        rowHasData = false;
+    }
+
+    // Fast path for plain decimals (the common case in flow exports): an exact mantissa
+    // divided by an exact power of ten is correctly rounded, matching Double.parseDouble.
+    private double parseNumber() {
+        int len = Math.min(fieldLen, MAX_FIELD_BYTES);
+        int i = 0;
+        while (i < len && field[i] == ' ')
+            i++;
+        while (len > i && field[len - 1] == ' ')
+            len--;
+        boolean neg = false;
+        if (i < len && (field[i] == '-' || field[i] == '+')) {
+            neg = field[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int frac = -1;
+        for (; i < len; i++) {
+            byte b = field[i];
+            if (b >= '0' && b <= '9') {
+                mantissa = mantissa * 10 + (b - '0');
+                digits++;
+                if (frac >= 0)
+                    frac++;
+            } else if (b == '.' && frac < 0) {
+                frac = 0;
+            } else {
+                return parseSlow();
+            }
+        }
+        if (digits == 0)
+            return Double.NaN;
+        if (digits > 15 || frac > 22)
+            return parseSlow();
+        double v = frac > 0 ? mantissa / POW10[frac] : mantissa;
+        return neg ? -v : v;
+    }
+
+    private double parseSlow() {
+        if (fieldLen > MAX_FIELD_BYTES)
+            return Double.NaN;
+        try {
+            return Double.parseDouble(new String(field, 0, fieldLen, StandardCharsets.ISO_8859_1).trim());
+        } catch (NumberFormatException e) {
+            return Double.NaN;
+        }
+    }
+
+    // Numeric codes pass through; TCP/UDP/ICMP names map as in FeatureExtractor.
+    private double parseProtocol() {
+        int len = Math.min(fieldLen, MAX_FIELD_BYTES);
+        if (len > 0 && field[0] >= '0' && field[0] <= '9') {
+            double v = parseNumber();
+            return Double.isNaN(v) ? 0 : v;
+        }
+        if (matches("TCP", len))
+            return 6;
+        if (matches("UDP", len))
+            return 17;
+        if (matches("ICMP", len))
+            return 1;
+        return 0;
+    }
+
+    private boolean matches(String name, int len) {
+        if (len != name.length())
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (Character.toUpperCase((char) field[i]) != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+}
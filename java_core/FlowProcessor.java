@@ -0,0 +1,240 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// Extraction, scoring and sink steps for one window of flows. CSV mode runs them
+// back to back through process(); the live pipeline runs each step on its own stage.
+public class FlowProcessor {
+
+    public static class ScoredWindow {
+        public final FlowBatch flows;
+        public final List<ThreatDetector.PredictionResult> predictions;
+        public final RuleEngine.RuleResults rules;
+        public final boolean[] detected;
+
+        public ScoredWindow(FlowBatch flows, List<ThreatDetector.PredictionResult> predictions,
+                RuleEngine.RuleResults rules, boolean[] detected) {
+            this.flows = flows;
+            this.predictions = predictions;
+            this.rules = rules;
+            this.detected = detected;
+        }
+
+        public int size() {
+            return flows.size();
+        }
+    }
+
+    private final FlowScorer detector;
+    private final RuleEngine ruleEngine;
+    private final AlertLogger logger;
+    private final FlowArchive archive;
+    private final DashboardFeed feed;
+    private final double mlThreshold;
+
+    // One sample per window for each step; "ml" and "rules" split the score step.
+    private final LatencyHistogram extractLatency = new LatencyHistogram();
+    private final LatencyHistogram mlLatency = new LatencyHistogram();
+    private final LatencyHistogram ruleLatency = new LatencyHistogram();
+    private final LatencyHistogram sinkLatency = new LatencyHistogram();
+
+    // Set by OverloadController: rules run first and only rule-flagged flows and flows
+    // new in the window go to the model; the others get a zero score.
+    private volatile boolean triage;
+    private final AtomicLong mlSkipped = new AtomicLong();
+    private static final ThreatDetector.PredictionResult NOT_SCORED = new ThreatDetector.PredictionResult(0, 0.0);
+
+    public FlowProcessor(FlowScorer detector, RuleEngine ruleEngine, AlertLogger logger, double mlThreshold) {
+        this(detector, ruleEngine, logger, null, null, mlThreshold);
+    }
+
+    public FlowProcessor(FlowScorer detector, RuleEngine ruleEngine, AlertLogger logger, FlowArchive archive,
+            double mlThreshold) {
+        this(detector, ruleEngine, logger, archive, null, mlThreshold);
+    }
+
+    // archive may be null; otherwise every scored flow of each window is archived.
+    // feed may be null; otherwise each window is published to the dashboard.
+    public FlowProcessor(FlowScorer detector, RuleEngine ruleEngine, AlertLogger logger, FlowArchive archive,
+            DashboardFeed feed, double mlThreshold) {
+        this.detector = detector;
+        this.ruleEngine = ruleEngine;
+        this.logger = logger;
+        this.archive = archive;
+        this.feed = feed;
+        this.mlThreshold = mlThreshold;
+    }
+
+    // Raw capture counters: derive the remaining features, then score and sink.
+    public void process(FlowBatch flows) throws IOException {
+        sink(score(extract(flows)));
+    }
+
+    // Flows that already carry every feature, e.g. a chunk from FlowCsvReader.
+    public void processFeatures(FlowBatch flows) throws IOException {
+        sink(score(flows));
+    }
+
+    public FlowBatch extract(FlowBatch flows) {
+        long start = System.nanoTime();
+        FlowBatch out = FeatureExtractor.extractFeatures(flows);
+        extractLatency.recordNanos(System.nanoTime() - start);
+        return out;
+    }
+
+    public ScoredWindow score(FlowBatch flows) throws IOException {
+        List<ThreatDetector.PredictionResult> preds;
+        RuleEngine.RuleResults rules;
+        if (triage) {
+            rules = evaluateRules(flows);
+            long start = System.nanoTime();
+            preds = predictFlagged(flows, rules);
+            mlLatency.recordNanos(System.nanoTime() - start);
+        } else {
+            long start = System.nanoTime();
+            preds = detector.predictBatch(flows);
+            mlLatency.recordNanos(System.nanoTime() - start);
+            rules = evaluateRules(flows);
+        }
+        boolean[] detected = new boolean[flows.size()];
+        for (int i = 0; i < flows.size(); i++) {
+            ThreatDetector.PredictionResult result = preds.get(i);
+
+            boolean mlDetected = result.score >= mlThreshold;
+            RuleEngine.Severity severity = rules.severity(i);
+            boolean highRule = severity == RuleEngine.Severity.HIGH || severity == RuleEngine.Severity.CRITICAL;
+            detected[i] = mlDetected || highRule;
+        }
+        return new ScoredWindow(flows, preds, rules, detected);
+    }
+
+    private RuleEngine.RuleResults evaluateRules(FlowBatch flows) {
+        long start = System.nanoTime();
+        // Fresh per window: the sink may still be reading the previous window's results.
+        RuleEngine.RuleResults rules = ruleEngine.evaluateBatch(flows, ruleEngine.newResults(flows.size()));
+        ruleLatency.recordNanos(System.nanoTime() - start);
+        return rules;
+    }
+
+    private List<ThreatDetector.PredictionResult> predictFlagged(FlowBatch flows, RuleEngine.RuleResults rules)
+            throws IOException {
+        int n = flows.size();
+        int[] picked = new int[n];
+        int m = 0;
+        for (int i = 0; i < n; i++) {
+            if (rules.isSuspicious(i) || flows.newFlow[i])
+                picked[m++] = i;
+        }
+        FlowBatch subset = new FlowBatch(m);
+        for (int j = 0; j < m; j++) {
+            int i = picked[j];
+            subset.add(flows.duration[i], flows.totalPkts[i], flows.totalBytes[i], flows.meanPktLen[i],
+                    flows.pktRate[i], flows.protocol[i]);
+        }
+        List<ThreatDetector.PredictionResult> scored = m > 0 ? detector.predictBatch(subset)
+                : Collections.emptyList();
+        ThreatDetector.PredictionResult[] out = new ThreatDetector.PredictionResult[n];
+        Arrays.fill(out, NOT_SCORED);
+        for (int j = 0; j < m; j++) {
+            out[picked[j]] = scored.get(j);
+        }
+        mlSkipped.addAndGet(n - m);
+        return Arrays.asList(out);
+    }
+
+    public void setTriage(boolean triage) {
+        this.triage = triage;
+    }
+
+    public long getMlSkipped() {
+        return mlSkipped.get();
+    }
+
+    public void sink(ScoredWindow window) throws IOException {
+        long start = System.nanoTime();
+        int alertCount = 0;
+        String[] reasons = feed != null ? new String[window.size()] : null;
+        FlowBatch flows = window.flows;
+        RuleEngine.RuleResults rules = window.rules;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < window.size(); i++) {
+            ThreatDetector.PredictionResult result = window.predictions.get(i);
+            boolean mlDetected = result.score >= mlThreshold;
+            boolean detected = window.detected[i];
+            String reason = null;
+
+            if (detected) {
+                alertCount++;
+                double[] features = flows.row(i);
+                String confidence = String.format("%.2f%%", result.score * 100);
+                String severityIcon = getSeverityIcon(rules.severity(i));
+
+                if (mlDetected && rules.isSuspicious(i)) {
+                    reason = "ML+Rules [" + rules.severity(i) + "] (ML: " + confidence + ", "
+                            + rules.describe(i) + ")";
+                } else if (mlDetected) {
+                    reason = "ML (confidence: " + confidence + ")";
+                } else {
+                    reason = "Rules [" + rules.severity(i) + "]: " + rules.describe(i);
+                }
+
+                String iface = flows.interfaceName(i);
+                String where = iface != null ? " on " + iface : "";
+                logger.logAlert("Detected malicious/suspicious flow" + where + " (" + reason + "): "
+                        + Arrays.toString(features));
+                System.out.println(severityIcon + " ALERT!" + where + " " + reason);
+                System.out.println("   Features: " + Arrays.toString(features));
+                logger.logFlow(features[0] + "," + features[1] + "," + features[2] + "," +
+                        features[3] + "," + features[4] + "," + features[5]);
+                if (reasons != null)
+                    reasons[i] = reason;
+            }
+            if (archive != null) {
+                archive.append(now, flows, i, result.prediction, result.score, rules.severity(i), detected, reason);
+            }
+        }
+
+        if (archive != null) {
+            archive.flush();
+        }
+
+        System.out.println("  Processed " + window.size() + " flows → " + alertCount + " alerts");
+        String scorerStats = detector.stats();
+        if (scorerStats != null) {
+            System.out.println("  " + scorerStats);
+        }
+
+        if (feed != null) {
+            feed.publish(window, reasons);
+        }
+        sinkLatency.recordNanos(System.nanoTime() - start);
+    }
+
+    public void registerMetrics(Metrics metrics) {
+        String help = "Per-window processing time by step";
+        metrics.histogram("detector_step_seconds", help, "step=\"extract\"", extractLatency);
+        metrics.histogram("detector_step_seconds", help, "step=\"ml\"", mlLatency);
+        metrics.histogram("detector_step_seconds", help, "step=\"rules\"", ruleLatency);
+        metrics.histogram("detector_step_seconds", help, "step=\"sink\"", sinkLatency);
+        metrics.counter("detector_ml_skipped_flows_total", "Flows not sent to the model under overload triage", null,
+                mlSkipped::get);
+        detector.registerMetrics(metrics);
+        if (feed != null)
+            feed.registerMetrics(metrics);
+    }
+
+    private static String getSeverityIcon(RuleEngine.Severity severity) {
+        switch (severity) {
+            case CRITICAL:
+                return "🔴";
+            case HIGH:
+                return "🟠";
+            case MEDIUM:
+                return "🟡";
+            case LOW:
+                return "🟢";
+            default:
+                return "🚨";
+        }
+    }
+}
@@ -0,0 +1,28 @@
+import java.io.*;
+import java.util.*;
+
+// A model backend that scores a whole window: the Flask server (ThreatDetector) or the
+// in-process forest (LocalThreatDetector).
+public interface FlowScorer {
+
+    List<ThreatDetector.PredictionResult> predictBatch(FlowBatch flows) throws IOException;
+
+    // One-line summary for the per-window output, or null if there is nothing to report.
+    default String stats() {
+        return null;
+    }
+
+    default void registerMetrics(Metrics metrics) {
+    }
+
+    // Changes whenever the scorer starts using a different model, e.g. after a reload;
+    // anything cached from earlier scores is stale then.
+    default long modelVersion() {
+        return 0;
+    }
+
+    // Switches to a newer model if one is available. predictBatch does this itself, but a
+    // wrapper that may answer a window without calling it (ScoreCache) calls it first.
+    default void reloadIfChanged() {
+    }
+}
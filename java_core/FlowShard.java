@@ -0,0 +1,371 @@
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+// One partition of live flow state: a FlowTable plus its TrafficSketch. With a single
+// shard and a single interface, PacketCapture calls record() inline on the capture
+// thread. Otherwise each shard runs on its own thread and every capture thread (one per
+// interface) only parses headers and offers packets into its own ring on the shard: a
+// single-producer/single-consumer array of primitive columns, so dispatch allocates
+// nothing and needs no locks. A window close travels through every ring as a marker;
+// the shard stops draining a ring at its marker and aggregates once all rings have
+// delivered one, so every earlier packet is applied first. With interface readers the
+// close time is also published to the shard up front (hold, then cutoff): a packet
+// stamped after it waits in its ring for the next window even if it was offered before
+// that reader's marker.
+public class FlowShard implements Runnable {
+
+    private static final int MARKER = -1;
+    // cutoff values: no close pending, or a close whose time is still being taken.
+    private static final long OPEN = Long.MAX_VALUE, HOLD = Long.MIN_VALUE;
+    // sampling value that tracks no flows, only the sketch.
+    static final int SKETCH_ONLY = -1;
+
+    // Ring slots [tail, head) are published and not yet consumed.
+    private static final class Ring {
+        final long[] srcHi, srcLo, dstHi, dstLo, time;
+        final int[] meta, length;
+        final int mask;
+        final AtomicLong head = new AtomicLong();
+        final AtomicLong tail = new AtomicLong();
+        // Producer's last view of tail, so it rarely reads the consumer's counter.
+        long tailCache;
+        volatile long drops;
+
+        Ring(int capacity) {
+            int n = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+            mask = n - 1;
+            srcHi = new long[n];
+            srcLo = new long[n];
+            dstHi = new long[n];
+            dstLo = new long[n];
+            time = new long[n];
+            meta = new int[n];
+            length = new int[n];
+        }
+    }
+
+    final int id;
+    final FlowTable table = new FlowTable();
+    private TrafficSketch sketch;
+    // Empty sketch swapped in at each window close; PacketCapture returns the old one
+    // after merging it.
+    private volatile TrafficSketch spare;
+    private long overflowMark;
+
+    private final Ring[] rings;
+    private final BlockingQueue<FlowBatch> windows = new ArrayBlockingQueue<>(1);
+    private volatile boolean running = true;
+    // cutoffStart is written before cutoff and read after it.
+    private volatile long cutoff = OPEN;
+    private long cutoffStart;
+
+    // Results of the last window close, read by PacketCapture after pollWindow().
+    TrafficSketch windowSketch;
+    long windowShed;
+    int windowSampling;
+    // Set by PacketCapture before a window close that should also copy the table for a
+    // snapshot; collect() fills it and clears the field.
+    volatile StateSnapshots.Flows snapshotTo;
+
+    // Overload degradation, set from the capture side: 0 tracks every flow, k > 0 only
+    // flows whose key hash has k low zero bits (1 in 2^k, the same flows every window),
+    // SKETCH_ONLY none. The sketch sees every packet regardless. Set from any thread into
+    // nextSampling; the recording thread switches to it at the next window close, and
+    // sampledOut is published then, like packets.
+    private volatile int nextSampling;
+    private int sampling;
+    private long skipped;
+    private volatile long sampledOut;
+
+    // Counters: packets (as of the last window close) is a running total, flows is the
+    // table size at the last window close.
+    private long recorded;
+    private volatile long packets;
+    private volatile long flows;
+    private volatile long shedPackets;
+
+    FlowShard(int id, int producers, int ringCapacity) {
+        this.id = id;
+        rings = new Ring[producers];
+        for (int p = 0; p < producers; p++) {
+            rings[p] = new Ring(ringCapacity);
+        }
+    }
+
+    void setSketch(TrafficSketch sketch) {
+        this.sketch = sketch;
+        this.spare = sketch != null ? sketch.copyEmpty() : null;
+    }
+
+    TrafficSketch sketch() {
+        return sketch;
+    }
+
+    // Shard for a flow key. The hash is symmetric in source and destination, so both
+    // directions of a conversation share a shard.
+    static int shardOf(long sHi, long sLo, long dHi, long dLo, int protocol, int shards) {
+        return (int) (((flowHash(sHi, sLo, dHi, dLo, protocol) >>> 32) * shards) >>> 32);
+    }
+
+    static long flowHash(long sHi, long sLo, long dHi, long dLo, int protocol) {
+        long a = (sHi * 0x9E3779B97F4A7C15L ^ sLo) * 0xBF58476D1CE4E5B9L;
+        long b = (dHi * 0x9E3779B97F4A7C15L ^ dLo) * 0xBF58476D1CE4E5B9L;
+        long h = (a + b + protocol) * 0x94D049BB133111EBL;
+        return h ^ h >>> 31;
+    }
+
+    void record(long sHi, long sLo, long dHi, long dLo, int iface, int protocol, int dstPort, int length,
+            long now) {
+        recorded++;
+        int k = sampling;
+        if (k == 0 || k > 0 && (flowHash(sHi, sLo, dHi, dLo, protocol) & (1L << k) - 1) == 0)
+            table.record(sHi, sLo, dHi, dLo, FlowTable.packMeta(iface, protocol, 0, 0), length, now);
+        else
+            skipped++;
+        if (sketch != null)
+            sketch.record(sHi, sLo, dHi, dLo, protocol, dstPort, length);
+    }
+
+    // Called only by the capture thread of interface producer. A full ring drops the
+    // packet unless block is set (replay).
+    boolean offer(int producer, long sHi, long sLo, long dHi, long dLo, int protocol, int dstPort, int length,
+            long now, boolean block) {
+        Ring r = rings[producer];
+        long h = r.head.get();
+        if (h - r.tailCache > r.mask) {
+            r.tailCache = r.tail.get();
+            while (h - r.tailCache > r.mask) {
+                if (!block) {
+                    r.drops++;
+                    return false;
+                }
+                Thread.onSpinWait();
+                r.tailCache = r.tail.get();
+            }
+        }
+        int i = (int) h & r.mask;
+        r.srcHi[i] = sHi;
+        r.srcLo[i] = sLo;
+        r.dstHi[i] = dHi;
+        r.dstLo[i] = dLo;
+        r.time[i] = now;
+        r.meta[i] = (protocol & 0xFF) << 16 | (dstPort & 0xFFFF);
+        r.length[i] = length;
+        r.head.lazySet(h + 1);
+        return true;
+    }
+
+    // Producer side of a window close: queues a marker behind every packet it offered.
+    void requestClose(int producer, long windowStart, long now) {
+        offer(producer, windowStart, 0, 0, 0, 0, 0, MARKER, now, true);
+    }
+
+    // Reader mode, before the capture thread takes the close time: stops the shard from
+    // consuming packets until cutoff() publishes it, so none stamped later gets in first.
+    void hold() {
+        cutoff = HOLD;
+    }
+
+    void cutoff(long windowStart, long now) {
+        cutoffStart = windowStart;
+        cutoff = now;
+    }
+
+    // The next closed window, or null if none arrived within the timeout.
+    FlowBatch pollWindow(long millis) throws InterruptedException {
+        return windows.poll(millis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        int n = rings.length;
+        long[] tails = new long[n];
+        boolean[] parked = new boolean[n];
+        // early: parked at a packet stamped after the cutoff, so its marker is still ahead
+        // and is skipped (swallow) once the window has closed.
+        boolean[] early = new boolean[n], swallow = new boolean[n];
+        int parkedCount = 0;
+        long closeStart = 0, closeNow = 0;
+        int idle = 0;
+        while (running) {
+            boolean progress = false;
+            for (int p = 0; p < n; p++) {
+                if (parked[p])
+                    continue;
+                Ring r = rings[p];
+                long t = tails[p];
+                long h = r.head.get();
+                if (t == h)
+                    continue;
+                long c = cutoff;
+                if (c == HOLD)
+                    continue;
+                progress = true;
+                for (; t < h; t++) {
+                    int i = (int) t & r.mask;
+                    if (r.length[i] == MARKER) {
+                        if (swallow[p]) {
+                            swallow[p] = false;
+                            continue;
+                        }
+                        // Leave the marker unconsumed until every ring has reached one.
+                        parked[p] = true;
+                        parkedCount++;
+                        closeStart = r.srcHi[i];
+                        closeNow = Math.max(closeNow, r.time[i]);
+                        break;
+                    }
+                    if (r.time[i] > c) {
+                        // Read after the close; each reader's clock only moves forward, so
+                        // everything before it in this ring has been recorded.
+                        parked[p] = true;
+                        early[p] = true;
+                        parkedCount++;
+                        break;
+                    }
+                    int meta = r.meta[i];
+                    record(r.srcHi[i], r.srcLo[i], r.dstHi[i], r.dstLo[i], p, meta >>> 16, meta & 0xFFFF,
+                            r.length[i], r.time[i]);
+                }
+                tails[p] = t;
+                r.tail.lazySet(t);
+            }
+
+            if (parkedCount == n) {
+                long c = cutoff;
+                FlowBatch batch = c != OPEN ? collect(cutoffStart, c) : collect(closeStart, closeNow);
+                for (int p = 0; p < n; p++) {
+                    parked[p] = false;
+                    if (early[p]) {
+                        early[p] = false;
+                        swallow[p] = true;
+                    } else {
+                        rings[p].tail.lazySet(++tails[p]);
+                    }
+                }
+                parkedCount = 0;
+                closeNow = 0;
+                cutoff = OPEN;
+                try {
+                    windows.put(batch);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            if (progress) {
+                idle = 0;
+            } else if (++idle < 100) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(50_000);
+            }
+        }
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    void setSampling(int sampling) {
+        nextSampling = sampling;
+    }
+
+    // The sampling packets are recorded under; only for the thread that records them.
+    int sampling() {
+        return sampling;
+    }
+
+    // Packets only the sketch saw because sampling skipped their flow, as of the last
+    // window close.
+    public long getSampledOut() {
+        return sampledOut;
+    }
+
+    // Copies the flows that saw packets since windowStart into a batch (sketch columns are
+    // filled in after shards merge), expires idle/aged flows, copies what is left for a
+    // requested snapshot and swaps in the spare sketch.
+    FlowBatch collect(long windowStart, long now) {
+        FlowTable t = table;
+        int active = 0;
+        for (int i = 0; i < t.size(); i++) {
+            if (t.lastSeenAt(t.slot(i)) >= windowStart)
+                active++;
+        }
+        FlowBatch batch = new FlowBatch(active);
+        boolean measured = t.hasRateWindow();
+        for (int i = 0; i < t.size(); i++) {
+            int slot = t.slot(i);
+            if (t.lastSeenAt(slot) < windowStart)
+                continue;
+            double duration = (t.lastSeenAt(slot) - t.firstSeenAt(slot)) / 1e9;
+            int row = batch.add(duration, t.packetsAt(slot), t.bytesAt(slot), 0, t.rateAt(slot, now),
+                    t.protocolAt(slot));
+            batch.setKey(row, t.srcHiAt(slot), t.srcLoAt(slot), t.dstHiAt(slot), t.dstLoAt(slot));
+            batch.iface[row] = t.interfaceAt(slot);
+            batch.newFlow[row] = t.firstSeenAt(slot) >= windowStart;
+            batch.rateMeasured[row] = measured;
+        }
+        t.expire(now);
+        StateSnapshots.Flows snapshot = snapshotTo;
+        if (snapshot != null) {
+            t.copyTo(snapshot, now);
+            snapshotTo = null;
+        }
+
+        windowShed = t.getOverflowCount() - overflowMark;
+        overflowMark = t.getOverflowCount();
+        windowSketch = sketch;
+        if (sketch != null) {
+            sketch = spare;
+            spare = null;
+        }
+        flows = t.size();
+        packets = recorded;
+        shedPackets = overflowMark;
+        sampledOut = skipped;
+        windowSampling = sampling;
+        sampling = nextSampling;
+        return batch;
+    }
+
+    // Hands back the window's sketch, cleared, for the next window close.
+    void recycle(TrafficSketch used) {
+        used.reset();
+        spare = used;
+    }
+
+    void clear() {
+        table.clear();
+        overflowMark = 0;
+        if (sketch != null)
+            sketch.reset();
+    }
+
+    public long getPackets() {
+        return packets;
+    }
+
+    public long getFlows() {
+        return flows;
+    }
+
+    // The table's shed count as of the last window close.
+    public long getShedPackets() {
+        return shedPackets;
+    }
+
+    // Packets dropped because this shard's ring from the given producer was full.
+    public long getRingDrops(int producer) {
+        return rings[producer].drops;
+    }
+
+    public long getRingDrops() {
+        long drops = 0;
+        for (Ring r : rings) {
+            drops += r.drops;
+        }
+        return drops;
+    }
+}
@@ -0,0 +1,497 @@
+import java.net.*;
+import java.util.*;
+import java.util.function.IntConsumer;
+
+// Open-addressing flow table keyed on a packed binary 5-tuple. Addresses are stored as
+// two longs each (IPv4 in IPv4-mapped IPv6 form); protocol, ports and capture interface
+// share one long. Every column is a primitive array, so recording a packet for a known
+// flow allocates nothing; memory only grows when the table resizes. Not thread-safe:
+// one capture thread owns a table.
+//
+// With timeouts set, flows live across windows: each keeps its first/last-seen time and
+// a two-bucket sliding packet count, and a TimerWheel retires flows that went idle or
+// exceeded the active timeout. Removed slots become tombstones, so a slot number stays
+// valid for the life of its flow.
+public class FlowTable {
+
+    private static final float LOAD_FACTOR = 0.5f;
+    private static final long IPV4_MAPPED_PREFIX = 0x0000FFFF00000000L;
+
+    private static final byte EMPTY = 0, LIVE = 1, DELETED = 2;
+    private static final int WHEEL_BUCKETS = 512;
+    private static final long WHEEL_TICK_NANOS = 1_000_000_000L;
+
+    private int maxFlows;
+
+    private long[] srcHi, srcLo, dstHi, dstLo, meta;
+    private int[] packets;
+    private long[] bytes;
+    private byte[] state;
+    private int mask;
+
+    private long[] firstSeen, lastSeen;
+    // Packets in the current and previous rate bucket, and the current bucket's number.
+    private int[] ratePrev, rateCur;
+    private long[] rateEpoch;
+
+    // Occupied slots, so iteration and clear() cost O(size) rather than O(capacity).
+    // Removal swaps the last entry into the hole; orderIndex maps a slot back to it.
+    private int[] order;
+    private int[] orderIndex;
+    private int size;
+    private int tombstones;
+    private long overflowCount;
+    private long expiredCount;
+
+    private long idleNanos, activeNanos;
+    private long rateWindowNanos;
+    // Rate bucket of the most recent packet, cached to skip a division per packet.
+    private long epoch, epochStart = Long.MAX_VALUE, epochEnd = Long.MIN_VALUE;
+    private TimerWheel wheel;
+    private long expireNow;
+    private final IntConsumer onDue = this::onDue;
+
+    public FlowTable(int initialCapacity, int maxFlows) {
+        this.maxFlows = maxFlows > 0 ? maxFlows : Integer.MAX_VALUE;
+        allocate(tableSizeFor(initialCapacity));
+    }
+
+    public FlowTable() {
+        this(1024, 0);
+    }
+
+    // Flows beyond maxFlows (0 = unbounded) are shed: their packets are not recorded.
+    public void setMaxFlows(int maxFlows) {
+        this.maxFlows = maxFlows > 0 ? maxFlows : Integer.MAX_VALUE;
+    }
+
+    // Idle and active timeouts (0 disables either) turn on expiry through expire().
+    public void setTimeouts(long idleNanos, long activeNanos) {
+        this.idleNanos = idleNanos;
+        this.activeNanos = activeNanos;
+        if (idleNanos > 0 || activeNanos > 0) {
+            wheel = new TimerWheel(WHEEL_BUCKETS, WHEEL_TICK_NANOS, state.length);
+            for (int i = 0; i < size; i++) {
+                wheel.schedule(order[i], dueAt(order[i]));
+            }
+        } else {
+            wheel = null;
+        }
+    }
+
+    public long idleTimeoutNanos() {
+        return idleNanos;
+    }
+
+    public long activeTimeoutNanos() {
+        return activeNanos;
+    }
+
+    // Width of the sliding window behind rateAt(); 0 disables rate tracking.
+    public void setRateWindow(long nanos) {
+        this.rateWindowNanos = nanos;
+        epochStart = Long.MAX_VALUE;
+        epochEnd = Long.MIN_VALUE;
+    }
+
+    public boolean hasRateWindow() {
+        return rateWindowNanos > 0;
+    }
+
+    public static long ipv4Lo(int address) {
+        return IPV4_MAPPED_PREFIX | (address & 0xFFFFFFFFL);
+    }
+
+    public static long packMeta(int protocol, int srcPort, int dstPort) {
+        return ((long) (protocol & 0xFF) << 32) | ((long) (srcPort & 0xFFFF) << 16) | (dstPort & 0xFFFF);
+    }
+
+    // Meta with the capture interface as part of the key, so the same conversation seen on
+    // two interfaces is two flows.
+    public static long packMeta(int iface, int protocol, int srcPort, int dstPort) {
+        return ((long) (iface & 0xFF) << 40) | packMeta(protocol, srcPort, dstPort);
+    }
+
+    public int record(long sHi, long sLo, long dHi, long dLo, int protocol, int srcPort, int dstPort, int length) {
+        return record(sHi, sLo, dHi, dLo, protocol, srcPort, dstPort, length, 0L);
+    }
+
+    // Returns the slot that now holds the flow, or -1 if the table is at maxFlows and
+    // the flow is new (counted in getOverflowCount()). now is the packet time in nanos.
+    public int record(long sHi, long sLo, long dHi, long dLo, int protocol, int srcPort, int dstPort, int length,
+            long now) {
+        return record(sHi, sLo, dHi, dLo, packMeta(protocol, srcPort, dstPort), length, now);
+    }
+
+    // Same, with the key's protocol, ports and interface already packed by packMeta.
+    public int record(long sHi, long sLo, long dHi, long dLo, long m, int length, long now) {
+        int slot = hash(sHi, sLo, dHi, dLo, m) & mask;
+        int free = -1;
+        byte st;
+        while ((st = state[slot]) != EMPTY) {
+            if (st == LIVE) {
+                if (srcLo[slot] == sLo && dstLo[slot] == dLo && meta[slot] == m
+                        && srcHi[slot] == sHi && dstHi[slot] == dHi) {
+                    packets[slot]++;
+                    bytes[slot] += length;
+                    lastSeen[slot] = now;
+                    countRate(slot, now);
+                    return slot;
+                }
+            } else if (free < 0) {
+                free = slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size >= maxFlows) {
+            overflowCount++;
+            return -1;
+        }
+        if (free >= 0) {
+            slot = free;
+            tombstones--;
+        } else if (size + tombstones + 1 > (int) (state.length * LOAD_FACTOR)) {
+            // Mostly tombstones: rehash at the same size rather than grow.
+            resize(tombstones > size ? state.length : state.length << 1);
+            return record(sHi, sLo, dHi, dLo, m, length, now);
+        }
+
+        state[slot] = LIVE;
+        srcHi[slot] = sHi;
+        srcLo[slot] = sLo;
+        dstHi[slot] = dHi;
+        dstLo[slot] = dLo;
+        meta[slot] = m;
+        packets[slot] = 1;
+        bytes[slot] = length;
+        firstSeen[slot] = now;
+        lastSeen[slot] = now;
+        rateEpoch[slot] = Long.MIN_VALUE;
+        countRate(slot, now);
+        orderIndex[slot] = size;
+        order[size++] = slot;
+        if (wheel != null) {
+            wheel.schedule(slot, dueAt(slot));
+        }
+        return slot;
+    }
+
+    // Convenience for callers holding InetAddress objects. IPv4 reads the address
+    // through Inet4Address.hashCode(), which is the address itself, so it does not copy.
+    public int record(InetAddress src, InetAddress dst, int protocol, int srcPort, int dstPort, int length) {
+        return record(src, dst, protocol, srcPort, dstPort, length, 0L);
+    }
+
+    public int record(InetAddress src, InetAddress dst, int protocol, int srcPort, int dstPort, int length,
+            long now) {
+        return record(addressHi(src), addressLo(src), addressHi(dst), addressLo(dst), protocol, srcPort, dstPort,
+                length, now);
+    }
+
+    // The two longs an address is keyed on; IPv4 is mapped into the low one.
+    public static long addressHi(InetAddress a) {
+        return a instanceof Inet4Address ? 0 : readLong(a.getAddress(), 0);
+    }
+
+    public static long addressLo(InetAddress a) {
+        return a instanceof Inet4Address ? ipv4Lo(a.hashCode()) : readLong(a.getAddress(), 8);
+    }
+
+    private void countRate(int slot, long now) {
+        if (rateWindowNanos <= 0)
+            return;
+        if (now < epochStart || now >= epochEnd) {
+            epoch = Math.floorDiv(now, rateWindowNanos);
+            epochStart = epoch * rateWindowNanos;
+            epochEnd = epochStart + rateWindowNanos;
+        }
+        long e = rateEpoch[slot];
+        if (e != epoch) {
+            ratePrev[slot] = e == epoch - 1 ? rateCur[slot] : 0;
+            rateCur[slot] = 0;
+            rateEpoch[slot] = epoch;
+        }
+        rateCur[slot]++;
+    }
+
+    // Packets per second over the rate window ending at now: the current bucket plus the
+    // previous one weighted by how much of it is still inside the window.
+    public double rateAt(int slot, long now) {
+        if (rateWindowNanos <= 0)
+            return 0;
+        long current = Math.floorDiv(now, rateWindowNanos);
+        long e = rateEpoch[slot];
+        double cur, prev;
+        if (e == current) {
+            cur = rateCur[slot];
+            prev = ratePrev[slot];
+        } else if (e == current - 1) {
+            cur = 0;
+            prev = rateCur[slot];
+        } else {
+            return 0;
+        }
+        double elapsed = (double) (now - current * rateWindowNanos) / rateWindowNanos;
+        return (prev * (1 - elapsed) + cur) / (rateWindowNanos / 1e9);
+    }
+
+    // When the flow should next be looked at: its idle or active deadline, whichever is first.
+    private long dueAt(int slot) {
+        long due = Long.MAX_VALUE;
+        if (idleNanos > 0)
+            due = lastSeen[slot] + idleNanos;
+        if (activeNanos > 0)
+            due = Math.min(due, firstSeen[slot] + activeNanos);
+        return due;
+    }
+
+    // Retires flows idle for idleNanos or alive for activeNanos as of now. Only the flows
+    // scheduled in the elapsed ticks are touched; one that saw packets since it was
+    // scheduled is just rescheduled. Returns the number of flows removed.
+    public int expire(long now) {
+        if (wheel == null)
+            return 0;
+        long before = expiredCount;
+        expireNow = now;
+        wheel.advance(now, onDue);
+        return (int) (expiredCount - before);
+    }
+
+    private void onDue(int slot) {
+        long due = dueAt(slot);
+        if (due <= expireNow) {
+            remove(slot);
+            expiredCount++;
+        } else {
+            wheel.schedule(slot, due);
+        }
+    }
+
+    public void remove(int slot) {
+        if (state[slot] != LIVE)
+            return;
+        // A tombstone is only needed if a probe can run on past this slot.
+        if (state[(slot + 1) & mask] == EMPTY) {
+            state[slot] = EMPTY;
+        } else {
+            state[slot] = DELETED;
+            tombstones++;
+        }
+        int at = orderIndex[slot];
+        int last = order[--size];
+        order[at] = last;
+        orderIndex[last] = at;
+        if (wheel != null) {
+            wheel.cancel(slot);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public long getOverflowCount() {
+        return overflowCount;
+    }
+
+    public long getExpiredCount() {
+        return expiredCount;
+    }
+
+    public int capacity() {
+        return state.length;
+    }
+
+    // Accessors by iteration index (0 <= i < size()). Order is first-seen until flows
+    // are removed.
+    public int slot(int i) {
+        return order[i];
+    }
+
+    public int protocolAt(int slot) {
+        return (int) (meta[slot] >>> 32) & 0xFF;
+    }
+
+    public int interfaceAt(int slot) {
+        return (int) (meta[slot] >>> 40) & 0xFF;
+    }
+
+    public int srcPortAt(int slot) {
+        return (int) (meta[slot] >>> 16) & 0xFFFF;
+    }
+
+    public int dstPortAt(int slot) {
+        return (int) meta[slot] & 0xFFFF;
+    }
+
+    public long srcHiAt(int slot) {
+        return srcHi[slot];
+    }
+
+    public long srcLoAt(int slot) {
+        return srcLo[slot];
+    }
+
+    public long dstHiAt(int slot) {
+        return dstHi[slot];
+    }
+
+    public long dstLoAt(int slot) {
+        return dstLo[slot];
+    }
+
+    public int packetsAt(int slot) {
+        return packets[slot];
+    }
+
+    public long bytesAt(int slot) {
+        return bytes[slot];
+    }
+
+    public long firstSeenAt(int slot) {
+        return firstSeen[slot];
+    }
+
+    public long lastSeenAt(int slot) {
+        return lastSeen[slot];
+    }
+
+    // Appends every live flow to out, with its times as ages before now.
+    void copyTo(StateSnapshots.Flows out, long now) {
+        out.ensureRoom(size);
+        for (int i = 0; i < size; i++) {
+            int slot = order[i];
+            out.add(srcHi[slot], srcLo[slot], dstHi[slot], dstLo[slot], meta[slot], packets[slot], bytes[slot],
+                    now - firstSeen[slot], now - lastSeen[slot], ratePrev[slot], rateCur[slot]);
+        }
+    }
+
+    // Grows the table once for flows more, rather than doubling repeatedly as they arrive.
+    void ensureCapacity(int flows) {
+        int capacity = tableSizeFor((int) Math.min(1 << 30, (long) ((size + flows) / LOAD_FACTOR) + 1));
+        if (capacity > state.length)
+            resize(capacity);
+    }
+
+    // Puts back a flow from a snapshot, its times already moved onto this clock. The rate
+    // buckets are taken as those of the bucket lastSeen falls in. Returns false when the
+    // table is at maxFlows.
+    boolean restore(long sHi, long sLo, long dHi, long dLo, long m, int packets, long bytes, long firstSeen,
+            long lastSeen, int ratePrev, int rateCur) {
+        int slot = record(sHi, sLo, dHi, dLo, m, 0, lastSeen);
+        if (slot < 0)
+            return false;
+        this.packets[slot] = packets;
+        this.bytes[slot] = bytes;
+        this.firstSeen[slot] = firstSeen;
+        this.ratePrev[slot] = ratePrev;
+        this.rateCur[slot] = rateCur;
+        if (rateWindowNanos > 0)
+            rateEpoch[slot] = Math.floorDiv(lastSeen, rateWindowNanos);
+        if (wheel != null)
+            wheel.schedule(slot, dueAt(slot));
+        return true;
+    }
+
+    public void clear() {
+        if (tombstones > 0) {
+            Arrays.fill(state, EMPTY);
+        } else {
+            for (int i = 0; i < size; i++) {
+                state[order[i]] = EMPTY;
+            }
+        }
+        size = 0;
+        tombstones = 0;
+        overflowCount = 0;
+        if (wheel != null) {
+            wheel.reset(state.length);
+        }
+    }
+
+    // Rehashes every live flow into a table of newCapacity, dropping tombstones. Slots
+    // change, so the timer wheel is rebuilt from each flow's deadline.
+    private void resize(int newCapacity) {
+        long[] oSrcHi = srcHi, oSrcLo = srcLo, oDstHi = dstHi, oDstLo = dstLo, oMeta = meta, oBytes = bytes;
+        long[] oFirst = firstSeen, oLast = lastSeen, oEpoch = rateEpoch;
+        int[] oPackets = packets, oOrder = order, oPrev = ratePrev, oCur = rateCur;
+        int oSize = size;
+
+        allocate(newCapacity);
+        if (wheel != null) {
+            wheel.reset(newCapacity);
+        }
+        for (int i = 0; i < oSize; i++) {
+            int from = oOrder[i];
+            int slot = hash(oSrcHi[from], oSrcLo[from], oDstHi[from], oDstLo[from], oMeta[from]) & mask;
+            while (state[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            state[slot] = LIVE;
+            srcHi[slot] = oSrcHi[from];
+            srcLo[slot] = oSrcLo[from];
+            dstHi[slot] = oDstHi[from];
+            dstLo[slot] = oDstLo[from];
+            meta[slot] = oMeta[from];
+            packets[slot] = oPackets[from];
+            bytes[slot] = oBytes[from];
+            firstSeen[slot] = oFirst[from];
+            lastSeen[slot] = oLast[from];
+            ratePrev[slot] = oPrev[from];
+            rateCur[slot] = oCur[from];
+            rateEpoch[slot] = oEpoch[from];
+            orderIndex[slot] = size;
+            order[size++] = slot;
+            if (wheel != null) {
+                wheel.schedule(slot, dueAt(slot));
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        srcHi = new long[capacity];
+        srcLo = new long[capacity];
+        dstHi = new long[capacity];
+        dstLo = new long[capacity];
+        meta = new long[capacity];
+        packets = new int[capacity];
+        bytes = new long[capacity];
+        state = new byte[capacity];
+        firstSeen = new long[capacity];
+        lastSeen = new long[capacity];
+        ratePrev = new int[capacity];
+        rateCur = new int[capacity];
+        rateEpoch = new long[capacity];
+        order = new int[(int) (capacity * LOAD_FACTOR) + 1];
+        orderIndex = new int[capacity];
+        mask = capacity - 1;
+        size = 0;
+        tombstones = 0;
+    }
+
+    private static int hash(long sHi, long sLo, long dHi, long dLo, long m) {
+        long h = sHi * 0x9E3779B97F4A7C15L;
+        h = (h ^ sLo) * 0x9E3779B97F4A7C15L;
+        h = (h ^ dHi) * 0x9E3779B97F4A7C15L;
+        h = (h ^ dLo) * 0x9E3779B97F4A7C15L;
+        h = (h ^ m) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int tableSizeFor(int n) {
+        int cap = 16;
+        while (cap < n && cap < (1 << 30)) {
+            cap <<= 1;
+        }
+        return cap;
+    }
+
+    static long readLong(byte[] a, int off) {
+        long v = 0;
+        for (int i = 0; i < 8; i++) {
+            v = (v << 8) | (a[off + i] & 0xFF);
+        }
+        return v;
+    }
+}
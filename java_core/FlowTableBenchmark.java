@@ -0,0 +1,83 @@
+import java.lang.management.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+// Compares the old String-keyed ConcurrentHashMap flow aggregation against FlowTable.
+// Run: java -cp "lib/*;." FlowTableBenchmark [packets]
+public class FlowTableBenchmark {
+
+    private static final int[] FLOW_COUNTS = { 1_000, 10_000, 100_000 };
+    private static final int ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int packets = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+        System.out.printf("%-12s %10s %12s %12s%n", "impl", "flows", "Mpps", "B/packet");
+
+        for (int flows : FLOW_COUNTS) {
+            Random rnd = new Random(42);
+            InetAddress[] srcs = new InetAddress[flows];
+            InetAddress[] dsts = new InetAddress[flows];
+            int[] protos = new int[flows];
+            for (int i = 0; i < flows; i++) {
+                srcs[i] = InetAddress.getByAddress(new byte[] { 10, (byte) rnd.nextInt(256), (byte) rnd.nextInt(256), (byte) i });
+                dsts[i] = InetAddress.getByAddress(new byte[] { (byte) 192, (byte) 168, (byte) (i >> 8), (byte) i });
+                protos[i] = i % 3 == 0 ? 17 : 6;
+            }
+            // Skewed traffic: most packets belong to a small share of the flows.
+            int[] stream = new int[packets];
+            for (int i = 0; i < packets; i++) {
+                stream[i] = rnd.nextInt(4) == 0 ? rnd.nextInt(flows) : rnd.nextInt(Math.max(1, flows / 10));
+            }
+
+            report("string-map", flows, packets, () -> runStringMap(srcs, dsts, protos, stream));
+            FlowTable table = new FlowTable(flows * 2, 0);
+            report("flow-table", flows, packets, () -> runFlowTable(table, srcs, dsts, protos, stream));
+        }
+    }
+
+    private static long runStringMap(InetAddress[] srcs, InetAddress[] dsts, int[] protos, int[] stream) {
+        Map<String, long[]> map = new ConcurrentHashMap<>();
+        for (int f : stream) {
+            String key = srcs[f].getHostAddress() + "-" + dsts[f].getHostAddress() + "-" + protos[f];
+            long[] stats = map.computeIfAbsent(key, k -> new long[2]);
+            stats[0]++;
+            stats[1] += 60;
+        }
+        return map.size();
+    }
+
+    private static long runFlowTable(FlowTable table, InetAddress[] srcs, InetAddress[] dsts, int[] protos, int[] stream) {
+        table.clear();
+        for (int f : stream) {
+            table.record(srcs[f], dsts[f], protos[f], 0, 0, 60);
+        }
+        return table.size();
+    }
+
+    private interface Run {
+        long run();
+    }
+
+    private static void report(String name, int flows, int packets, Run run) {
+        com.sun.management.ThreadMXBean mx = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long tid = Thread.currentThread().getId();
+        long sink = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            sink += run.run();
+        }
+
+        long bestNanos = Long.MAX_VALUE;
+        long allocated = 0;
+        for (int i = 0; i < ROUNDS; i++) {
+            long a0 = mx.getThreadAllocatedBytes(tid);
+            long t0 = System.nanoTime();
+            sink += run.run();
+            long t1 = System.nanoTime();
+            allocated = mx.getThreadAllocatedBytes(tid) - a0;
+            bestNanos = Math.min(bestNanos, t1 - t0);
+        }
+        System.out.printf("%-12s %10d %12.2f %12.1f%s%n", name, flows, packets / (bestNanos / 1e3),
+                (double) allocated / packets, sink == 42 ? " " : "");
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.*;
+
+// Flows/sec of the flattened forest evaluator for different batch sizes and tree
+// counts, on synthetic depth-10 trees shaped like the exported RandomForest.
+// Run: java -cp "lib/*;." ForestBenchmark
+public class ForestBenchmark {
+
+    private static final int[] TREE_COUNTS = { 10, 100, 500 };
+    private static final int[] BATCH_SIZES = { 1, 100, 10_000 };
+    private static final long RUN_NANOS = 1_000_000_000L;
+
+    public static void main(String[] args) {
+        System.out.printf("%8s %10s %14s%n", "trees", "batch", "flows/s");
+        for (int trees : TREE_COUNTS) {
+            ForestModel model = randomForest(trees, 10, new Random(trees));
+            for (int batch : BATCH_SIZES) {
+                // Rotate through distinct inputs so small batches do not replay one row
+                // the branch predictor has already learned.
+                Random rnd = new Random(batch);
+                float[][][] inputs = new float[Math.max(1, 10_000 / batch)][][];
+                for (int k = 0; k < inputs.length; k++) {
+                    inputs[k] = randomInput(batch, rnd);
+                }
+                double[] out = new double[batch];
+                run(model, inputs, batch, out, RUN_NANOS / 2);
+                double flowsPerSec = run(model, inputs, batch, out, RUN_NANOS);
+                System.out.printf("%8d %10d %14.0f%n", trees, batch, flowsPerSec);
+            }
+        }
+    }
+
+    private static double run(ForestModel model, float[][][] inputs, int n, double[] out, long nanos) {
+        long flows = 0;
+        int k = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            model.scoreBatch(inputs[k], n, out);
+            k = k + 1 == inputs.length ? 0 : k + 1;
+            flows += n;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        return flows / (elapsed / 1e9);
+    }
+
+    private static float[][] randomInput(int n, Random rnd) {
+        float[][] x = new float[FlowBatch.FEATURE_COUNT][n];
+        for (float[] column : x) {
+            for (int i = 0; i < n; i++) {
+                column[i] = (float) rnd.nextGaussian();
+            }
+        }
+        return x;
+    }
+
+    static ForestModel randomForest(int trees, int depth, Random rnd) {
+        ForestModel.Tree[] forest = new ForestModel.Tree[trees];
+        for (int t = 0; t < trees; t++) {
+            int nodes = (1 << (depth + 1)) - 1;
+            ForestModel.Tree tree = new ForestModel.Tree();
+            tree.feature = new int[nodes];
+            tree.threshold = new double[nodes];
+            tree.left = new int[nodes];
+            tree.right = new int[nodes];
+            tree.value = new double[nodes];
+            // Depth-first numbering, as sklearn lays out its nodes.
+            build(tree, 0, depth, rnd, new int[] { 1 });
+            forest[t] = tree;
+        }
+        double[] mean = new double[FlowBatch.FEATURE_COUNT];
+        double[] scale = new double[FlowBatch.FEATURE_COUNT];
+        Arrays.fill(scale, 1);
+        return new ForestModel(mean, scale, new String[0], forest, null, null);
+    }
+
+    private static void build(ForestModel.Tree tree, int node, int depth, Random rnd, int[] next) {
+        if (depth == 0) {
+            tree.feature[node] = -2;
+            tree.left[node] = -1;
+            tree.right[node] = -1;
+            tree.value[node] = rnd.nextDouble();
+            return;
+        }
+        tree.feature[node] = rnd.nextInt(FlowBatch.FEATURE_COUNT);
+        tree.threshold[node] = rnd.nextGaussian();
+        int l = next[0]++;
+        tree.left[node] = l;
+        build(tree, l, depth - 1, rnd, next);
+        int r = next[0]++;
+        tree.right[node] = r;
+        build(tree, r, depth - 1, rnd, next);
+    }
+}
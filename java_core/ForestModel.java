@@ -0,0 +1,207 @@
+import com.google.gson.*;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+
+// RandomForest exported by train_model.py (rf_model.json): the StandardScaler, the
+// protocol LabelEncoder classes and every tree. All trees are flattened into one set of
+// primitive node arrays, and batches are scored tree by tree so each tree stays in cache
+// while it is applied to a block of rows. Large batches are split across cores.
+public class ForestModel {
+
+    public static final int SUPPORTED_VERSION = 1;
+
+    // Rows per fork/join leaf task; the per-row sums of one block fit in L1.
+    private static final int BLOCK_ROWS = 1024;
+    // Below this many rows the batch is scored on the calling thread.
+    private static final int PARALLEL_THRESHOLD = 4 * BLOCK_ROWS;
+
+    // Shape of rf_model.json, filled in by Gson.
+    private static class Export {
+        int version;
+        double[] scaler_mean;
+        double[] scaler_scale;
+        String[] protocol_classes;
+        Tree[] trees;
+        double[][] check_inputs;
+        double[] check_scores;
+    }
+
+    static class Tree {
+        int[] feature;
+        double[] threshold;
+        int[] left;
+        int[] right;
+        double[] value;
+    }
+
+    final double[] mean;
+    final double[] scale;
+    final String[] protocolClasses;
+    private final double[][] checkInputs;
+    private final double[] checkScores;
+
+    // Flattened forest. Child indexes are absolute; a negative feature marks a leaf,
+    // whose class-1 probability is in leafValue.
+    private final int treeCount;
+    private final int[] roots;
+    private final int[] feature;
+    private final float[] threshold;
+    private final int[] left;
+    private final int[] right;
+    private final double[] leafValue;
+
+    private ForestModel(Export e) {
+        this(e.scaler_mean, e.scaler_scale, e.protocol_classes, e.trees, e.check_inputs, e.check_scores);
+    }
+
+    ForestModel(double[] mean, double[] scale, String[] protocolClasses, Tree[] trees,
+            double[][] checkInputs, double[] checkScores) {
+        this.mean = mean;
+        this.scale = scale;
+        this.protocolClasses = protocolClasses != null ? protocolClasses : new String[0];
+        this.checkInputs = checkInputs != null ? checkInputs : new double[0][];
+        this.checkScores = checkScores != null ? checkScores : new double[0];
+
+        int nodes = 0;
+        for (Tree t : trees) {
+            nodes += t.feature.length;
+        }
+        treeCount = trees.length;
+        roots = new int[treeCount];
+        feature = new int[nodes];
+        threshold = new float[nodes];
+        left = new int[nodes];
+        right = new int[nodes];
+        leafValue = new double[nodes];
+
+        int base = 0;
+        for (int ti = 0; ti < treeCount; ti++) {
+            Tree t = trees[ti];
+            roots[ti] = base;
+            for (int n = 0; n < t.feature.length; n++) {
+                int at = base + n;
+                boolean leaf = t.left[n] < 0;
+                feature[at] = leaf ? -1 : t.feature[n];
+                threshold[at] = leaf ? 0f : floatFloor(t.threshold[n]);
+                left[at] = leaf ? -1 : base + t.left[n];
+                right[at] = leaf ? -1 : base + t.right[n];
+                leafValue[at] = leaf ? t.value[n] : 0;
+            }
+            base += t.feature.length;
+        }
+    }
+
+    public static ForestModel load(String path) throws IOException {
+        Export e;
+        try (Reader r = new InputStreamReader(new FileInputStream(path), StandardCharsets.UTF_8)) {
+            e = new Gson().fromJson(r, Export.class);
+        } catch (JsonParseException ex) {
+            throw new IOException("Malformed model file " + path + ": " + ex.getMessage());
+        }
+        if (e == null || e.version != SUPPORTED_VERSION)
+            throw new IOException("Unsupported model file version in " + path);
+        if (e.trees == null || e.trees.length == 0 || e.scaler_mean == null || e.scaler_scale == null
+                || e.scaler_mean.length != FlowBatch.FEATURE_COUNT || e.scaler_scale.length != FlowBatch.FEATURE_COUNT)
+            throw new IOException("Incomplete model file " + path);
+        return new ForestModel(e);
+    }
+
+    public int treeCount() {
+        return treeCount;
+    }
+
+    public int nodeCount() {
+        return feature.length;
+    }
+
+    // Probability of the malicious class for one encoded (unscaled) feature row.
+    public double score(double[] row) {
+        float[][] x = new float[row.length][1];
+        for (int f = 0; f < row.length; f++) {
+            x[f][0] = scaleValue(f, row[f]);
+        }
+        double[] out = new double[1];
+        scoreBatch(x, 1, out);
+        return out[0];
+    }
+
+    // sklearn trees compare float32 inputs against their thresholds.
+    float scaleValue(int f, double value) {
+        return (float) ((value - mean[f]) / scale[f]);
+    }
+
+    // Scores n rows of scaled, column-major input (x[feature][row]) into out.
+    public void scoreBatch(float[][] x, int n, double[] out) {
+        if (n >= PARALLEL_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(new BlockTask(x, out, 0, n));
+        } else {
+            scoreRange(x, out, 0, n);
+        }
+    }
+
+    private void scoreRange(float[][] x, double[] out, int from, int to) {
+        for (int start = from; start < to; start += BLOCK_ROWS) {
+            int end = Math.min(to, start + BLOCK_ROWS);
+            for (int i = start; i < end; i++) {
+                out[i] = 0;
+            }
+            for (int t = 0; t < treeCount; t++) {
+                int root = roots[t];
+                for (int i = start; i < end; i++) {
+                    int node = root;
+                    int f;
+                    while ((f = feature[node]) >= 0) {
+                        node = x[f][i] <= threshold[node] ? left[node] : right[node];
+                    }
+                    out[i] += leafValue[node];
+                }
+            }
+            for (int i = start; i < end; i++) {
+                out[i] /= treeCount;
+            }
+        }
+    }
+
+    private class BlockTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final float[][] x;
+        private final double[] out;
+        private final int from, to;
+
+        BlockTask(float[][] x, double[] out, int from, int to) {
+            this.x = x;
+            this.out = out;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 2 * BLOCK_ROWS) {
+                scoreRange(x, out, from, to);
+                return;
+            }
+            int mid = from + ((to - from) / 2 / BLOCK_ROWS) * BLOCK_ROWS;
+            invokeAll(new BlockTask(x, out, from, mid), new BlockTask(x, out, mid, to));
+        }
+    }
+
+    // Largest float <= t. For a float x, x <= floatFloor(t) exactly when x <= t, so the
+    // thresholds can be stored as floats without changing any split.
+    private static float floatFloor(double t) {
+        float f = (float) t;
+        return f > t ? Math.nextDown(f) : f;
+    }
+
+    // Re-scores the rows train_model.py stored with its own predict_proba output.
+    // Returns the largest absolute difference.
+    public double verify() {
+        double worst = 0;
+        for (int i = 0; i < checkInputs.length && i < checkScores.length; i++) {
+            worst = Math.max(worst, Math.abs(score(checkInputs[i]) - checkScores[i]));
+        }
+        return worst;
+    }
+}
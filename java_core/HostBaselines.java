@@ -0,0 +1,364 @@
+import java.util.*;
+
+// What each host normally does, learned window by window: for every source and every
+// destination address, exponentially weighted mean and variance of its packet rate, byte
+// rate and flow count over the windows it was active in. Traffic volumes are heavy-tailed,
+// so the statistics are kept on log1p of each value and a z-score of 3 means "about
+// e^(3 sd) times the usual". At window close each host's totals are compared against its
+// baseline before the baseline learns from them, and the z-scores are written to the
+// FlowBatch baseline columns of every flow of that host, for rules (src_rate_z,
+// dst_flows_z, ...) and for scorers that want them. What the baseline learns from a warm
+// host is clipped to CLIP_SD standard deviations, so one flood window cannot make the
+// next one look normal; a lasting change is still absorbed over a few half-lives.
+//
+// Each direction is one open-addressing table of primitive columns sized from a memory
+// budget at construction and never grown. When it fills past its high-water mark, hosts
+// idle for idleWindows are evicted, then hosts still warming up, coldest first. A warm
+// baseline is never evicted to make room for a new host, so a spoofed-source flood cannot
+// flush the baselines it is meant to stand out from: hosts that arrive while the table
+// is full are not tracked and get zero z-scores. Not thread-safe:
+// capture calls observe() once per window, and takes snapshots on the same thread.
+public class HostBaselines {
+
+    public static final int DEFAULT_MEMORY_MB = 64;
+    public static final int DEFAULT_HALF_LIFE_WINDOWS = 120;
+    public static final int DEFAULT_WARMUP_WINDOWS = 12;
+    public static final int DEFAULT_IDLE_WINDOWS = 720;
+
+    static final int METRICS = 3;
+    static final int RATE = 0, BYTES = 1, FLOWS = 2;
+    // Key, window stamps, then mean, variance and the window accumulator per metric, and
+    // one slot of the per-window touched list.
+    static final int SLOT_BYTES = 16 + 4 + 4 + 3 * METRICS * 4 + 4;
+    private static final double LOAD_FACTOR = 0.75;
+    // The (log) standard deviation never counts as less than MIN_SD, about a 28% change,
+    // so a host with perfectly steady traffic does not alarm on a small one.
+    private static final double MIN_SD = 0.25;
+    private static final double CLIP_SD = 3;
+
+    private final Table sources;
+    private final Table destinations;
+    private final double alpha;
+    private final int warmupWindows;
+    private final int idleWindows;
+    private int window;
+
+    private int[] srcSlot = new int[1024];
+    private int[] dstSlot = new int[1024];
+
+    // memoryMb is split evenly between the two directions; halfLifeWindows is how many
+    // active windows it takes for an observation's weight to halve.
+    public HostBaselines(int memoryMb, int halfLifeWindows, int warmupWindows, int idleWindows) {
+        long perTable = Math.max(1, memoryMb) * 1024L * 1024L / 2 / SLOT_BYTES;
+        int capacity = Integer.highestOneBit((int) Math.min(1 << 30, Math.max(1024, perTable)));
+        this.sources = new Table(capacity);
+        this.destinations = new Table(capacity);
+        this.alpha = 1 - Math.pow(0.5, 1.0 / Math.max(1, halfLifeWindows));
+        this.warmupWindows = Math.max(1, warmupWindows);
+        this.idleWindows = Math.max(1, idleWindows);
+    }
+
+    // Null when the block disables baselines; defaults when it is missing.
+    public static HostBaselines fromConfig(Config.Baselines cfg) {
+        if (cfg == null)
+            return new HostBaselines(DEFAULT_MEMORY_MB, DEFAULT_HALF_LIFE_WINDOWS, DEFAULT_WARMUP_WINDOWS,
+                    DEFAULT_IDLE_WINDOWS);
+        if (cfg.disabled)
+            return null;
+        return new HostBaselines(
+                cfg.memoryMb > 0 ? cfg.memoryMb : DEFAULT_MEMORY_MB,
+                cfg.halfLifeWindows > 0 ? cfg.halfLifeWindows : DEFAULT_HALF_LIFE_WINDOWS,
+                cfg.warmupWindows > 0 ? cfg.warmupWindows : DEFAULT_WARMUP_WINDOWS,
+                cfg.idleWindows > 0 ? cfg.idleWindows : DEFAULT_IDLE_WINDOWS);
+    }
+
+    // Scores every row's source and destination against their baselines, then folds this
+    // window into the baselines unless learn is false (sampled windows understate traffic).
+    // Rows without an address (CSV input, the destination of top-talker rows) are skipped.
+    public void observe(FlowBatch batch, boolean learn) {
+        int n = batch.size();
+        if (srcSlot.length < n) {
+            srcSlot = new int[n];
+            dstSlot = new int[n];
+        }
+        window++;
+        sources.makeRoom(window, idleWindows, warmupWindows);
+        destinations.makeRoom(window, idleWindows, warmupWindows);
+
+        for (int i = 0; i < n; i++) {
+            double pkts = batch.totalPkts[i];
+            double rate = batch.pktRate[i];
+            double bytes = pkts > 0 ? rate * batch.totalBytes[i] / pkts : 0;
+            srcSlot[i] = sources.accumulate(batch.srcHi[i], batch.srcLo[i], window, rate, bytes);
+            dstSlot[i] = destinations.accumulate(batch.dstHi[i], batch.dstLo[i], window, rate, bytes);
+        }
+        sources.score(alpha, warmupWindows, learn);
+        destinations.score(alpha, warmupWindows, learn);
+
+        for (int i = 0; i < n; i++) {
+            int s = srcSlot[i] * METRICS, d = dstSlot[i] * METRICS;
+            batch.setBaseline(i,
+                    s >= 0 ? sources.acc[s + RATE] : 0, s >= 0 ? sources.acc[s + BYTES] : 0,
+                    s >= 0 ? sources.acc[s + FLOWS] : 0, d >= 0 ? destinations.acc[d + RATE] : 0,
+                    d >= 0 ? destinations.acc[d + BYTES] : 0, d >= 0 ? destinations.acc[d + FLOWS] : 0);
+        }
+    }
+
+    public int sourceCount() {
+        return sources.size;
+    }
+
+    public int destinationCount() {
+        return destinations.size;
+    }
+
+    // Hosts each direction can hold before eviction starts.
+    public int hostCapacity() {
+        return sources.maxSize;
+    }
+
+    public long memoryBytes() {
+        return 2L * sources.capacity() * SLOT_BYTES;
+    }
+
+    // Copies every tracked host into the snapshot; see StateSnapshots.
+    void copyTo(StateSnapshots.Image image) {
+        image.baselineWindow = window;
+        image.sources = sources.copy(window);
+        image.destinations = destinations.copy(window);
+    }
+
+    // Puts back the hosts of a snapshot, before the first observe(). Hosts past this
+    // table's size (a smaller memoryMb than when it was taken) are left out. Returns the
+    // number restored.
+    int restore(StateSnapshots.Image image) {
+        window = Math.max(window, image.baselineWindow);
+        return sources.restore(image.sources, window) + destinations.restore(image.destinations, window);
+    }
+
+    public void registerMetrics(Metrics metrics) {
+        metrics.gauge("detector_baseline_hosts", "Hosts with a baseline", "direction=\"src\"",
+                () -> sources.size);
+        metrics.gauge("detector_baseline_hosts", "Hosts with a baseline", "direction=\"dst\"",
+                () -> destinations.size);
+        metrics.counter("detector_baseline_evictions_total", "Idle or cold hosts dropped to make room", null,
+                () -> sources.evictions + destinations.evictions);
+        metrics.counter("detector_baseline_untracked_total", "Host-windows not tracked because the table was full",
+                null, () -> sources.untracked + destinations.untracked);
+    }
+
+    // One direction. Slot s holds hi/lo, last (window it was last active, 0 = empty) and
+    // seen (windows learned so far); its metrics are at [s * METRICS, s * METRICS + METRICS).
+    // acc sums the current window and holds its z-scores once score() has run.
+    static final class Table {
+        final long[] hi, lo;
+        final int[] last, seen;
+        final float[] mean, var, acc;
+        private final int[] touched;
+        private final int mask;
+        final int maxSize;
+        private int touchedCount;
+        volatile int size;
+        volatile long evictions, untracked;
+
+        Table(int capacity) {
+            hi = new long[capacity];
+            lo = new long[capacity];
+            last = new int[capacity];
+            seen = new int[capacity];
+            mean = new float[capacity * METRICS];
+            var = new float[capacity * METRICS];
+            acc = new float[capacity * METRICS];
+            mask = capacity - 1;
+            maxSize = (int) (capacity * LOAD_FACTOR);
+            touched = new int[maxSize];
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+
+        // Slot of the host, inserting it on its first packet of the window; -1 when it has
+        // no address or the table is full.
+        int accumulate(long h, long l, int window, double rate, double bytes) {
+            if (h == 0 && l == 0)
+                return -1;
+            int s = find(h, l);
+            if (s < 0) {
+                if (size >= maxSize) {
+                    untracked++;
+                    return -1;
+                }
+                s = ~s;
+                hi[s] = h;
+                lo[s] = l;
+                seen[s] = 0;
+                size++;
+            } else if (last[s] == window) {
+                int m = s * METRICS;
+                acc[m + RATE] += rate;
+                acc[m + BYTES] += bytes;
+                acc[m + FLOWS] += 1;
+                return s;
+            }
+            last[s] = window;
+            touched[touchedCount++] = s;
+            int m = s * METRICS;
+            acc[m + RATE] = (float) rate;
+            acc[m + BYTES] = (float) bytes;
+            acc[m + FLOWS] = 1;
+            return s;
+        }
+
+        // Turns each active host's totals into z-scores against its baseline, then updates
+        // the baseline with them.
+        void score(double alpha, int warmupWindows, boolean learn) {
+            for (int t = 0; t < touchedCount; t++) {
+                int s = touched[t];
+                boolean warm = seen[s] >= warmupWindows;
+                // Plain running mean and variance until there are 1 / alpha windows, so a
+                // young baseline is not dominated by its zero starting point.
+                double a = Math.max(alpha, 1.0 / (seen[s] + 1));
+                for (int m = s * METRICS, end = m + METRICS; m < end; m++) {
+                    double x = Math.log1p(acc[m]);
+                    double mu = mean[m];
+                    double sd = Math.max(Math.sqrt(var[m]), MIN_SD);
+                    double d = x - mu;
+                    if (learn) {
+                        double c = warm ? Math.max(-CLIP_SD * sd, Math.min(CLIP_SD * sd, d)) : d;
+                        mean[m] = (float) (mu + a * c);
+                        var[m] = (float) ((1 - a) * (var[m] + a * c * c));
+                    }
+                    acc[m] = warm ? (float) (d / sd) : 0;
+                }
+                if (learn)
+                    seen[s]++;
+            }
+            touchedCount = 0;
+        }
+
+        // Before a window starts: past seven eighths of maxSize, evicts hosts idle for
+        // idleWindows, then hosts seen in fewer than warmupWindows windows by coldness
+        // (fewest windows seen, then longest idle) until the table is back under three
+        // quarters. Warm hosts are left alone even if that is not enough.
+        void makeRoom(int window, int idleWindows, int warmupWindows) {
+            if (size < maxSize - maxSize / 8)
+                return;
+            evict(window, idleWindows, -1, 0);
+            int excess = size - (maxSize - maxSize / 4);
+            if (excess <= 0)
+                return;
+
+            // Coldest seen count that must go, then how idle the hosts with exactly that
+            // count must be; both from histograms, so this stays one pass per step.
+            int[] bySeen = new int[warmupWindows];
+            for (int s = 0; s <= mask; s++) {
+                if (last[s] != 0 && seen[s] < warmupWindows)
+                    bySeen[seen[s]]++;
+            }
+            int coldSeen = 0;
+            while (coldSeen < warmupWindows && excess > bySeen[coldSeen]) {
+                excess -= bySeen[coldSeen++];
+            }
+            if (coldSeen == warmupWindows) {
+                evict(window, idleWindows, warmupWindows, Integer.MAX_VALUE);
+                return;
+            }
+            int[] byIdle = new int[idleWindows];
+            for (int s = 0; s <= mask; s++) {
+                if (last[s] != 0 && seen[s] == coldSeen)
+                    byIdle[Math.min(window - last[s], idleWindows - 1)]++;
+            }
+            int coldIdle = idleWindows - 1;
+            while (coldIdle > 0 && excess > byIdle[coldIdle]) {
+                excess -= byIdle[coldIdle--];
+            }
+            evict(window, idleWindows, coldSeen, coldIdle);
+        }
+
+        // Evicts hosts idle for idleWindows, hosts seen fewer than coldSeen times, and
+        // hosts seen exactly coldSeen times that have been idle for coldIdle windows.
+        private void evict(int window, int idleWindows, int coldSeen, int coldIdle) {
+            int removed = 0;
+            for (int s = 0; s <= mask;) {
+                int idle = window - last[s];
+                if (last[s] != 0 && (idle >= idleWindows || seen[s] < coldSeen
+                        || seen[s] == coldSeen && idle >= coldIdle)) {
+                    delete(s);
+                    removed++;
+                } else {
+                    s++;
+                }
+            }
+            size -= removed;
+            evictions += removed;
+        }
+
+        // Linear-probing delete by backward shift, so there are no tombstones: later
+        // entries of the probe run move up into the hole. Callers revisit slot s.
+        private void delete(int s) {
+            int hole = s;
+            for (int j = (s + 1) & mask; last[j] != 0; j = (j + 1) & mask) {
+                int home = home(hi[j], lo[j]);
+                boolean stays = hole <= j ? hole < home && home <= j : hole < home || home <= j;
+                if (stays)
+                    continue;
+                move(j, hole);
+                hole = j;
+            }
+            last[hole] = 0;
+        }
+
+        private void move(int from, int to) {
+            hi[to] = hi[from];
+            lo[to] = lo[from];
+            last[to] = last[from];
+            seen[to] = seen[from];
+            System.arraycopy(mean, from * METRICS, mean, to * METRICS, METRICS);
+            System.arraycopy(var, from * METRICS, var, to * METRICS, METRICS);
+        }
+
+        StateSnapshots.Hosts copy(int window) {
+            StateSnapshots.Hosts out = new StateSnapshots.Hosts(size);
+            for (int s = 0; s <= mask; s++) {
+                if (last[s] != 0)
+                    out.add(hi[s], lo[s], window - last[s], seen[s], mean, var, s * METRICS);
+            }
+            return out;
+        }
+
+        int restore(StateSnapshots.Hosts in, int window) {
+            int restored = 0;
+            for (int i = 0; i < in.count && size < maxSize; i++) {
+                int s = find(in.hi[i], in.lo[i]);
+                if (s >= 0)
+                    continue;
+                s = ~s;
+                hi[s] = in.hi[i];
+                lo[s] = in.lo[i];
+                last[s] = Math.max(1, window - in.idle[i]);
+                seen[s] = in.seen[i];
+                System.arraycopy(in.mean, i * METRICS, mean, s * METRICS, METRICS);
+                System.arraycopy(in.var, i * METRICS, var, s * METRICS, METRICS);
+                size++;
+                restored++;
+            }
+            return restored;
+        }
+
+        // Slot of the key, or ~slot of the empty slot where it would go.
+        int find(long h, long l) {
+            for (int s = home(h, l);; s = (s + 1) & mask) {
+                if (last[s] == 0)
+                    return ~s;
+                if (hi[s] == h && lo[s] == l)
+                    return s;
+            }
+        }
+
+        private int home(long h, long l) {
+            long x = (h * 0x9E3779B97F4A7C15L ^ l) * 0x9E3779B97F4A7C15L;
+            return (int) (x ^ (x >>> 32)) & mask;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.net.InetAddress;
+import java.util.concurrent.*;
+import org.pcap4j.core.*;
+import org.pcap4j.packet.*;
+
+// One interface of a multi-interface PacketCapture, read on its own thread. Each packet
+// is parsed to its flow key and offered to the owning shard's ring for this interface, so
+// interfaces never contend with each other. Window closes are requested by PacketCapture
+// through a sequence number that the reader checks between packets (the handle's read
+// timeout bounds the wait); it then samples pcap stats and queues its close markers.
+public class InterfaceReader implements Runnable {
+
+    final int index;
+    final String name;
+    final PcapHandle handle;
+    private final RawPacketParser rawParser;
+    private final PacketCapture owner;
+    private long closeSeen;
+    // Packets that failed to parse; only the first is logged.
+    private long errors;
+    private volatile boolean running = true;
+
+    private final CaptureStats stats = new CaptureStats();
+
+    InterfaceReader(int index, String name, PcapHandle handle, boolean rawCapture, PacketCapture owner) {
+        this.index = index;
+        this.name = name;
+        this.handle = handle;
+        this.owner = owner;
+        int dlt = handle.getDlt().value();
+        this.rawParser = rawCapture && RawPacketParser.isSupported(dlt) ? new RawPacketParser(dlt) : null;
+    }
+
+    @Override
+    public void run() {
+        boolean open = true;
+        while (running) {
+            long seq = owner.closeSeq;
+            if (seq != closeSeen) {
+                closeSeen = seq;
+                // Before the markers: once the last one is in, the window may be reported.
+                stats.sample(handle);
+                for (FlowShard shard : owner.shards) {
+                    shard.requestClose(index, owner.closeStart, owner.closeNow);
+                }
+            }
+            if (!open) {
+                // Keep answering window closes so the other interfaces are not held up.
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                readOne();
+            } catch (TimeoutException e) {
+
+            } catch (NotOpenException | java.io.EOFException e) {
+                open = false;
+            } catch (PcapNativeException e) {
+                System.err.println("  [" + name + "] " + e.getMessage());
+            } catch (RuntimeException e) {
+                // A bad packet must not end the thread: the shards would wait for its
+                // close markers forever.
+                if (errors++ == 0)
+                    System.err.println("  [" + name + "] skipping unparseable packet: " + e);
+            }
+        }
+    }
+
+    private void readOne() throws PcapNativeException, NotOpenException, TimeoutException, java.io.EOFException {
+        long now;
+        if (rawParser != null) {
+            byte[] frame = handle.getNextRawPacketEx();
+            now = System.nanoTime();
+            stats.count(frame.length);
+            RawPacketParser p = rawParser;
+            if (p.parse(frame, frame.length))
+                dispatch(p.srcHi, p.srcLo, p.dstHi, p.dstLo, p.protocol, p.dstPort, p.ipLength, now);
+            return;
+        }
+        Packet packet = handle.getNextPacketEx();
+        now = System.nanoTime();
+        stats.count(packet.length());
+        IpPacket ip = packet.get(IpPacket.class);
+        if (ip == null)
+            return;
+        InetAddress src = ip.getHeader().getSrcAddr(), dst = ip.getHeader().getDstAddr();
+        dispatch(FlowTable.addressHi(src), FlowTable.addressLo(src), FlowTable.addressHi(dst),
+                FlowTable.addressLo(dst), ip.getHeader().getProtocol().value() & 0xFF, PacketCapture.dstPort(packet),
+                PacketCapture.ipLength(ip), now);
+    }
+
+    private void dispatch(long sHi, long sLo, long dHi, long dLo, int protocol, int dstPort, int length, long now) {
+        FlowShard[] shards = owner.shards;
+        int s = FlowShard.shardOf(sHi, sLo, dHi, dLo, protocol, shards.length);
+        shards[s].offer(index, sHi, sLo, dHi, dLo, protocol, dstPort, length, now, false);
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    // Packets read from the handle, as of the last window close.
+    public long getPackets() {
+        return stats.getPackets();
+    }
+
+    public CaptureStats getStats() {
+        return stats;
+    }
+
+    // Packets this process dropped because a shard ring was full.
+    public long getRingDrops() {
+        long drops = 0;
+        for (FlowShard shard : owner.shards) {
+            drops += shard.getRingDrops(index);
+        }
+        return drops;
+    }
+}
@@ -0,0 +1,170 @@
+import java.io.*;
+import java.util.*;
+
+// Scores flows in the JVM with the exported forest instead of POSTing them to
+// predict_server.py. Mirrors the server's preprocessing and post-processing so the
+// results line up with the HTTP path.
+public class LocalThreatDetector implements FlowScorer {
+
+    // Same values as predict_server.py
+    private static final double ALERT_SCORE_THRESHOLD = 0.7;
+
+    // How often load()ed detectors look for a newer export of their model file.
+    static final long RELOAD_CHECK_MS = 10_000;
+
+    private ForestModel model;
+    // Encoder index per protocol code, or -1 when the encoder lacks the code's class.
+    private final int[] protocolIndex = new int[256];
+    private boolean hasEncoder;
+
+    private String modelFile;
+    private long modelModified;
+    private long nextCheck;
+    private long version;
+
+    public LocalThreatDetector(ForestModel model) {
+        use(model);
+    }
+
+    // The detector also reloads modelFile when train_model.py writes a new export.
+    public static LocalThreatDetector load(String modelFile) throws IOException {
+        long modified = new File(modelFile).lastModified();
+        ForestModel model = verified(modelFile);
+        System.out.println("✓ Loaded in-process model: " + model.treeCount() + " trees from " + modelFile);
+        LocalThreatDetector detector = new LocalThreatDetector(model);
+        detector.modelFile = modelFile;
+        detector.modelModified = modified;
+        detector.nextCheck = System.currentTimeMillis() + RELOAD_CHECK_MS;
+        return detector;
+    }
+
+    private static ForestModel verified(String modelFile) throws IOException {
+        ForestModel model = ForestModel.load(modelFile);
+        double drift = model.verify();
+        if (drift > 1e-9) {
+            throw new IOException("Model check rows differ from training scores by " + drift);
+        }
+        return model;
+    }
+
+    private void use(ForestModel model) {
+        this.model = model;
+        List<String> classes = Arrays.asList(model.protocolClasses);
+        hasEncoder = !classes.isEmpty();
+        for (int code = 0; code < protocolIndex.length; code++) {
+            protocolIndex[code] = classes.indexOf(protocolName(code));
+        }
+    }
+
+    // Runs on the scoring thread before each window, so a swap never races a batch. A
+    // file that fails to load (e.g. still being written) keeps the current model and is
+    // retried once its timestamp changes again.
+    @Override
+    public void reloadIfChanged() {
+        long now = System.currentTimeMillis();
+        if (modelFile == null || now < nextCheck)
+            return;
+        nextCheck = now + RELOAD_CHECK_MS;
+        long modified = new File(modelFile).lastModified();
+        if (modified == 0 || modified == modelModified)
+            return;
+        modelModified = modified;
+        try {
+            ForestModel next = verified(modelFile);
+            use(next);
+            version++;
+            System.out.println("✓ Reloaded in-process model: " + next.treeCount() + " trees from " + modelFile);
+        } catch (IOException e) {
+            System.err.println("⚠️ Keeping the current model, could not reload " + modelFile + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public long modelVersion() {
+        return version;
+    }
+
+    @Override
+    public List<ThreatDetector.PredictionResult> predictBatch(FlowBatch flows) {
+        reloadIfChanged();
+        int n = flows.size();
+        float[][] x = new float[FlowBatch.FEATURE_COUNT][n];
+        scaleColumn(flows.duration, 0, n, x[0]);
+        scaleColumn(flows.totalPkts, 1, n, x[1]);
+        scaleColumn(flows.totalBytes, 2, n, x[2]);
+        scaleColumn(flows.meanPktLen, 3, n, x[3]);
+        scaleColumn(flows.pktRate, 4, n, x[4]);
+        double[] protocol = new double[n];
+        encodeProtocols(flows.protocol, n, protocol);
+        scaleColumn(protocol, 5, n, x[5]);
+
+        double[] scores = new double[n];
+        model.scoreBatch(x, n, scores);
+
+        List<ThreatDetector.PredictionResult> out = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            out.add(postProcess(flows, i, scores[i]));
+        }
+        return out;
+    }
+
+    private void scaleColumn(double[] column, int feature, int n, float[] out) {
+        for (int i = 0; i < n; i++) {
+            out[i] = model.scaleValue(feature, column[i]);
+        }
+    }
+
+    ThreatDetector.PredictionResult postProcess(FlowBatch flows, int i, double score) {
+        // suppress_small_flow: keep-alives and DNS noise
+        if (flows.totalPkts[i] <= 2 && flows.totalBytes[i] < 800 && flows.pktRate[i] < 3) {
+            return new ThreatDetector.PredictionResult(0, 0.0);
+        }
+        int prediction = score > 0.5 ? 1 : 0;
+        // apply_score_threshold
+        if (score < ALERT_SCORE_THRESHOLD) {
+            prediction = 0;
+        }
+        return new ThreatDetector.PredictionResult(prediction, score);
+    }
+
+    // encode_protocol in predict_server.py: codes other than TCP, UDP and ICMP are OTHER,
+    // and if the encoder lacks any class in the batch, the whole column falls back to
+    // {TCP: 6, UDP: 17, ICMP: 1, OTHER: 0}.
+    void encodeProtocols(double[] protocol, int n, double[] out) {
+        if (!hasEncoder) {
+            System.arraycopy(protocol, 0, out, 0, n);
+            return;
+        }
+        boolean known = true;
+        for (int i = 0; i < n && known; i++) {
+            known = protocolIndex[protocolCode(protocol[i])] >= 0;
+        }
+        for (int i = 0; i < n; i++) {
+            int code = protocolCode(protocol[i]);
+            out[i] = known ? protocolIndex[code] : fallbackCode(code);
+        }
+    }
+
+    // Anything outside the byte range maps to OTHER, like any other unlisted code.
+    private static int protocolCode(double protocol) {
+        int code = (int) protocol;
+        return code >= 0 && code < 256 ? code : 0;
+    }
+
+    private static int fallbackCode(int code) {
+        return code == 6 || code == 17 || code == 1 ? code : 0;
+    }
+
+    private static String protocolName(int code) {
+        switch (code) {
+            case 6:
+                return "TCP";
+            case 17:
+                return "UDP";
+            case 1:
+                return "ICMP";
+            default:
+                return "OTHER";
+        }
+    }
+}
@@ -1,7 +1,5 @@
 import java.io.*;
-import java.net.*;
 import java.util.*;
-import com.google.gson.*;
 
 public class Main {
 
@@ -10,17 +8,22 @@ public class Main {
         File projectRoot = new File("..");
         Config cfg = Config.load(projectRoot.getAbsolutePath());
 
-        String serverUrl = cfg.serverUrl;
         boolean liveMode = args.length > 0 && args[0].equals("--live");
+        String replayFile = args.length > 1 && args[0].equals("--replay") ? args[1] : null;
+        double replaySpeed = 0;
+        if (args.length > 3 && args[2].equals("--speed") && !args[3].equalsIgnoreCase("max")) {
+            replaySpeed = Double.parseDouble(args[3]);
+        }
+
+        if (args.length > 0 && args[0].equals("--query")) {
+            queryArchive(cfg, args);
+            return;
+        }
 
         File logsFolder = new File("../logs");
         if (!logsFolder.exists())
             logsFolder.mkdirs();
 
-        File logFile = new File(logsFolder, "alerts.log");
-        AlertLogger logger = new AlertLogger(logFile.getAbsolutePath());
-        logger.logAlert("=== New detection session started ===");
-
         File maliciousCsv = new File(logsFolder, "malicious_flows.csv");
         if (!maliciousCsv.exists()) {
             try (PrintWriter pw = new PrintWriter(new FileWriter(maliciousCsv, true))) {
@@ -28,152 +31,262 @@ public class Main {
             }
         }
 
-        ThreatDetector detector = new ThreatDetector(serverUrl);
-        RuleEngine ruleEngine = new RuleEngine();
+        File logFile = new File(logsFolder, "alerts.log");
+        AlertLogger logger = AlertLogger.fromConfig(cfg, logFile, maliciousCsv);
+        logger.logAlert("=== New detection session started ===");
+
+        FlowScorer detector = ScoreCache.wrap(createDetector(cfg), cfg.scoreCache);
+        RuleEngine ruleEngine = new RuleEngine(cfg.rules);
+        FlowArchive archive = FlowArchive.fromConfig(cfg);
+        DashboardFeed feed = createFeed(cfg);
+        FlowProcessor processor = new FlowProcessor(detector, ruleEngine, logger, archive, feed, cfg.mlThreshold);
+        Metrics metrics = createMetrics(cfg);
+        if (metrics != null) {
+            processor.registerMetrics(metrics);
+            metrics.counter("detector_alerts_logged_total", "Alert log lines written", null, logger::getWritten);
+            metrics.counter("detector_alerts_dropped_total", "Alert log lines dropped at a full buffer", null,
+                    logger::getDropped);
+        }
 
         if (liveMode) {
-            System.out.println("🔴 LIVE MODE: Capturing from interface: " + cfg.interface_name);
-            if (cfg.interface_name == null || cfg.interface_name.isEmpty()) {
+            boolean multi = cfg.interfaces != null && !cfg.interfaces.isEmpty();
+            System.out.println("🔴 LIVE MODE: Capturing from " + (multi ? cfg.interfaces.size() + " interfaces"
+                    : "interface: " + cfg.interface_name));
+            if (!multi && (cfg.interface_name == null || cfg.interface_name.isEmpty())) {
                 System.err.println("❌ No interface specified in config.json");
                 PacketCapture.listInterfaces();
                 return;
             }
-            PacketCapture capture = new PacketCapture(cfg.interface_name, cfg.windowSeconds);
+            PacketCapture.Options options = PacketCapture.Options.fromConfig(cfg);
+            PacketCapture capture = multi
+                    ? PacketCapture.openLive(cfg.interfaces, cfg.windowSeconds, cfg.rawCapture, options)
+                    : new PacketCapture(cfg.interface_name, cfg.windowSeconds, cfg.rawCapture, options);
+            configureCapture(cfg, capture);
+            int queueCapacity = cfg.queueCapacity > 0 ? cfg.queueCapacity : 4;
+            DetectionPipeline pipeline = new DetectionPipeline(capture, processor, cfg.windowSeconds, queueCapacity);
+            pipeline.setOverloadController(
+                    OverloadController.fromConfig(cfg.overload, capture, processor, cfg.windowSeconds));
+            registerMetrics(metrics, capture, pipeline);
+            StateSnapshots snapshots = StateSnapshots.fromConfig(cfg.snapshot);
+            if (snapshots != null) {
+                snapshots.restore(capture);
+                capture.setSnapshots(snapshots);
+                if (metrics != null)
+                    snapshots.registerMetrics(metrics);
+            }
 
+            Thread captureThread = Thread.currentThread();
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                pipeline.stop();
                 capture.close();
-                System.out.println("\nCapture stopped.");
+                // Wakes it from a window wait, so it lets go of the tables for the snapshot.
+                captureThread.interrupt();
+                if (snapshots != null)
+                    closeSnapshots(snapshots, capture);
+                logger.close();
+                closeArchive(archive);
+                if (metrics != null)
+                    metrics.close();
+                if (feed != null)
+                    feed.close();
+                System.out.println("\nCapture stopped. " + pipeline.statusLine());
+                System.out.println("  " + logger.summary());
             }));
 
-            int windowCount = 0;
-            while (true) {
-                windowCount++;
-                System.out.println("\n📊 Window #" + windowCount + " (" + cfg.windowSeconds + "s)");
+            pipeline.start();
+            pipeline.runCapture();
 
-                List<Map<String, String>> flows = capture.captureNextWindow();
-                if (flows.isEmpty()) {
-                    System.out.println("  No flows captured in this window.");
-                } else {
-                    processFlows(flows, detector, ruleEngine, logger, maliciousCsv, cfg.mlThreshold);
-                }
+        } else if (replayFile != null) {
+            System.out.println("⏩ REPLAY MODE: " + replayFile);
+            PacketCapture capture = PacketCapture.openOffline(replayFile, cfg.windowSeconds, cfg.rawCapture, replaySpeed);
+            configureCapture(cfg, capture);
+            int queueCapacity = cfg.queueCapacity > 0 ? cfg.queueCapacity : 4;
+            DetectionPipeline pipeline = new DetectionPipeline(capture, processor, cfg.windowSeconds, queueCapacity, true);
+            registerMetrics(metrics, capture, pipeline);
 
-                try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
-                }
+            long start = System.nanoTime();
+            pipeline.start();
+            pipeline.runCapture();
+            pipeline.awaitDrain();
+            pipeline.stop();
+            capture.close();
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.println("\n⏱️ Replay finished: " + capture.getPacketCount() + " packets, "
+                    + pipeline.getWindowsCaptured() + " windows, " + pipeline.getFlowsCaptured() + " flows in "
+                    + String.format("%.2fs", seconds) + " → "
+                    + String.format("%.0f pkts/s, %.0f flows/s", capture.getPacketCount() / seconds,
+                            pipeline.getFlowsCaptured() / seconds));
+            if (capture.getShedPackets() > 0) {
+                System.out.println("  Flow table full: " + capture.getShedPackets() + " packets of untracked flows");
             }
+            System.out.println("  " + pipeline.statusLine());
+            if (metrics != null)
+                metrics.close();
+            if (feed != null)
+                feed.close();
+            logger.close();
+            closeArchive(archive);
+            System.out.println("  " + logger.summary());
 
         } else {
-            System.out.println("📁 CSV MODE: Processing sample_traffic.csv");
-            String csvFile = "../datasets/sample_traffic.csv";
-            PacketCapture capture = new PacketCapture(csvFile);
-            List<Map<String, String>> flows = capture.readFlows();
-            processFlows(flows, detector, ruleEngine, logger, maliciousCsv, cfg.mlThreshold);
+            String csvFile = args.length > 1 && args[0].equals("--csv") ? args[1] : "../datasets/sample_traffic.csv";
+            System.out.println("📁 CSV MODE: Processing " + csvFile);
+            try (FlowCsvReader reader = new FlowCsvReader(csvFile)) {
+                FlowBatch chunk;
+                while ((chunk = reader.nextChunk()) != null) {
+                    processor.processFeatures(chunk);
+                }
+                System.out.println("  Read " + reader.getRowsRead() + " rows, skipped " + reader.getRowsSkipped());
+            }
+            if (metrics != null)
+                metrics.close();
+            if (feed != null)
+                feed.close();
+            logger.close();
+            closeArchive(archive);
+            System.out.println("  " + logger.summary());
         }
     }
 
-    private static void processFlows(List<Map<String, String>> flows, ThreatDetector detector,
-            RuleEngine ruleEngine, AlertLogger logger, File maliciousCsv,
-            double mlThreshold) throws Exception {
-        List<double[]> featureList = new ArrayList<>(flows.size());
-        for (Map<String, String> flowMap : flows) {
-            featureList.add(FeatureExtractor.extractFeatures(flowMap));
+    private static void configureCapture(Config cfg, PacketCapture capture) {
+        capture.setFlowTimeouts(cfg.flowIdleSeconds > 0 ? cfg.flowIdleSeconds : PacketCapture.DEFAULT_IDLE_SECONDS,
+                cfg.flowActiveSeconds > 0 ? cfg.flowActiveSeconds : PacketCapture.DEFAULT_ACTIVE_SECONDS);
+        capture.setMaxFlows(cfg.maxFlows);
+        TrafficSketch sketch = TrafficSketch.fromConfig(cfg.sketch);
+        capture.setSketch(sketch);
+        capture.setShards(cfg.captureShards, cfg.shardRing > 0 ? cfg.shardRing : PacketCapture.DEFAULT_SHARD_RING);
+        if (sketch != null) {
+            System.out.println("✓ Traffic sketches: " + sketch.memoryBytes() / 1024 + " KB per shard"
+                    + (cfg.maxFlows > 0 ? ", flow table capped at " + cfg.maxFlows : ""));
+        }
+        HostBaselines baselines = HostBaselines.fromConfig(cfg.baselines);
+        capture.setBaselines(baselines);
+        if (baselines != null) {
+            System.out.println("✓ Host baselines: up to " + baselines.hostCapacity() + " sources and destinations in "
+                    + baselines.memoryBytes() / (1024 * 1024) + " MB");
         }
+    }
 
-        List<ThreatDetector.PredictionResult> preds = detector.predictBatch(featureList);
-
-        int alertCount = 0;
-        List<Map<String, Object>> resultPayload = new ArrayList<>();
-        for (int i = 0; i < featureList.size(); i++) {
-            double[] features = featureList.get(i);
-            ThreatDetector.PredictionResult result = preds.get(i);
-            RuleEngine.RuleResult ruleResult = ruleEngine.evaluate(features);
-
-            boolean mlDetected = result.score >= mlThreshold;
-            boolean highRule = ruleResult.severity == RuleEngine.Severity.HIGH
-                    || ruleResult.severity == RuleEngine.Severity.CRITICAL;
-            boolean detected = mlDetected || highRule;
-
-            if (i < 3) {
-                System.out.println("  [DEBUG] Flow " + i + ": pred=" + result.prediction +
-                        ", score=" + String.format("%.4f", result.score) +
-                        ", threshold=" + String.format("%.4f", mlThreshold) +
-                        ", features=" + Arrays.toString(features));
-            }
+    // metricsPort > 0 serves Prometheus text on 127.0.0.1; metricsJmx registers the MBean.
+    // Null when both are off.
+    private static Metrics createMetrics(Config cfg) {
+        if (cfg.metricsPort <= 0 && !cfg.metricsJmx)
+            return null;
+        Metrics metrics = new Metrics();
+        try {
+            if (cfg.metricsPort > 0)
+                metrics.startHttp(cfg.metricsPort);
+        } catch (IOException e) {
+            System.err.println("⚠️ Could not serve metrics on port " + cfg.metricsPort + ": " + e.getMessage());
+        }
+        try {
+            if (cfg.metricsJmx)
+                metrics.registerJmx();
+        } catch (javax.management.JMException e) {
+            System.err.println("⚠️ Could not register metrics MBean: " + e.getMessage());
+        }
+        return metrics;
+    }
 
-            if (detected) {
-                alertCount++;
-                String confidence = String.format("%.2f%%", result.score * 100);
-                String severityIcon = getSeverityIcon(ruleResult.severity);
-
-                String reason;
-                if (mlDetected && ruleResult.isSuspicious) {
-                    reason = "ML+Rules [" + ruleResult.severity + "] (ML: " + confidence + ", "
-                            + String.join("; ", ruleResult.reasons) + ")";
-                } else if (mlDetected) {
-                    reason = "ML (confidence: " + confidence + ")";
-                } else {
-                    reason = "Rules [" + ruleResult.severity + "]: " + String.join("; ", ruleResult.reasons);
-                }
+    private static DashboardFeed createFeed(Config cfg) {
+        try {
+            return DashboardFeed.fromConfig(cfg.dashboard);
+        } catch (IOException e) {
+            System.err.println("⚠️ Could not serve dashboard feed on port " + cfg.dashboard.port + ": "
+                    + e.getMessage());
+            return null;
+        }
+    }
 
-                logger.logAlert("Detected malicious/suspicious flow (" + reason + "): " + Arrays.toString(features));
-                System.out.println(severityIcon + " ALERT! " + reason);
-                System.out.println("   Features: " + Arrays.toString(features));
-                try (PrintWriter pw = new PrintWriter(new FileWriter(maliciousCsv, true))) {
-                    pw.println(features[0] + "," + features[1] + "," + features[2] + "," +
-                            features[3] + "," + features[4] + "," + features[5]);
-                }
-            }
+    // After configureCapture, which may replace the capture's shards.
+    private static void registerMetrics(Metrics metrics, PacketCapture capture, DetectionPipeline pipeline) {
+        if (metrics == null)
+            return;
+        capture.registerMetrics(metrics);
+        pipeline.registerMetrics(metrics);
+    }
 
-            Map<String, Object> entry = new LinkedHashMap<>();
-            entry.put("duration", features[0]);
-            entry.put("total_pkts", features[1]);
-            entry.put("total_bytes", features[2]);
-            entry.put("mean_pkt_len", features[3]);
-            entry.put("pkt_rate", features[4]);
-            entry.put("protocol", features[5]);
-            entry.put("prediction", result.prediction);
-            entry.put("score", result.score);
-            entry.put("severity", ruleResult.severity.toString());
-            entry.put("is_alert", detected);
-            resultPayload.add(entry);
+    // The last snapshot is taken once the capture and shard threads have let go of the
+    // flow tables; if they have not within a second, the last periodic snapshot stands.
+    private static void closeSnapshots(StateSnapshots snapshots, PacketCapture capture) {
+        StateSnapshots.Image last = null;
+        try {
+            last = capture.snapshotNow();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        if (last == null)
+            System.err.println("⚠️ Final snapshot skipped: capture threads did not stop in time; "
+                    + snapshots.getFile() + " keeps the last periodic one");
+        snapshots.close(last);
+    }
 
-        System.out.println("  Processed " + flows.size() + " flows → " + alertCount + " alerts");
-
+    private static void closeArchive(FlowArchive archive) {
+        if (archive == null)
+            return;
         try {
-            URL updateUrl = new URL("http://127.0.0.1:5000/update_flows");
-            HttpURLConnection conn = (HttpURLConnection) updateUrl.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
-            conn.setDoOutput(true);
-
-            Gson gson = new Gson();
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = gson.toJson(resultPayload).getBytes("utf-8");
-                os.write(input, 0, input.length);
+            archive.close();
+            System.out.println("  " + archive.summary());
+        } catch (IOException e) {
+            System.err.println("⚠️ Could not close archive: " + e.getMessage());
+        }
+    }
+
+    // --query <SEVERITY[,SEVERITY...]|ALL> <from> <to> [--flows]: prints archived alerts (or,
+    // with --flows, all scored flows) in the range. Times are epoch millis or local ISO
+    // date-times such as 2025-01-31T14:00.
+    private static void queryArchive(Config cfg, String[] args) throws IOException {
+        if (args.length < 4 || cfg.archiveDir == null || cfg.archiveDir.isEmpty()) {
+            System.err.println("Usage: Main --query <SEVERITY[,SEVERITY...]|ALL> <from> <to> [--flows] (needs archiveDir)");
+            return;
+        }
+        EnumSet<RuleEngine.Severity> severities = EnumSet.noneOf(RuleEngine.Severity.class);
+        if (args[1].equalsIgnoreCase("ALL")) {
+            severities = EnumSet.allOf(RuleEngine.Severity.class);
+        } else {
+            for (String s : args[1].split(",")) {
+                severities.add(RuleEngine.Severity.valueOf(s.trim().toUpperCase()));
             }
+        }
+        boolean alertsOnly = !(args.length > 4 && args[4].equals("--flows"));
 
-            conn.getResponseCode();
-        } catch (Exception e) {
+        long start = System.nanoTime();
+        long[] matches = { 0 };
+        FlowArchive.scan(new File(cfg.archiveDir), parseTime(args[2]), parseTime(args[3]), severities, alertsOnly,
+                record -> {
+                    matches[0]++;
+                    System.out.println(record);
+                });
+        System.out.println("🔎 " + matches[0] + " records in " + String.format("%.1fms", (System.nanoTime() - start) / 1e6));
+    }
 
-        }
+    private static long parseTime(String s) {
+        if (s.chars().allMatch(Character::isDigit))
+            return Long.parseLong(s);
+        return java.time.LocalDateTime.parse(s).atZone(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
     }
 
-    private static String getSeverityIcon(RuleEngine.Severity severity) {
-        switch (severity) {
-            case CRITICAL:
-                return "🔴";
-            case HIGH:
-                return "🟠";
-            case MEDIUM:
-                return "🟡";
-            case LOW:
-                return "🟢";
-            default:
-                return "🚨";
+    // "local" scores in the JVM with the exported forest; "http" (or a local model that
+    // is missing or fails its check) uses predict_server.py.
+    private static FlowScorer createDetector(Config cfg) {
+        if (!"http".equalsIgnoreCase(cfg.detector)) {
+            String modelFile = cfg.modelFile != null ? cfg.modelFile : "../python_ml/rf_model.json";
+            if (new File(modelFile).exists()) {
+                try {
+                    return LocalThreatDetector.load(modelFile);
+                } catch (IOException e) {
+                    System.err.println("⚠️ Could not load " + modelFile + ": " + e.getMessage());
+                }
+            } else {
+                System.out.println("⚠️ " + modelFile + " not found (run train_model.py)");
+            }
+            System.out.println("  Falling back to prediction server at " + cfg.serverUrl);
         }
+        return new ThreatDetector(cfg.serverUrl, cfg.batchSize,
+                cfg.maxInFlight > 0 ? cfg.maxInFlight : 4,
+                cfg.connectTimeoutMs > 0 ? cfg.connectTimeoutMs : 2000,
+                cfg.requestTimeoutMs > 0 ? cfg.requestTimeoutMs : 10000,
+                "binary".equalsIgnoreCase(cfg.wireFormat));
     }
 }
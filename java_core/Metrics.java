@@ -0,0 +1,265 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.lang.management.*;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import javax.management.*;
+import javax.management.openmbean.CompositeData;
+
+// Registry of the detector's metrics, exported in Prometheus text format over a local
+// HTTP endpoint and as attributes of one JMX MBean. Components register suppliers over
+// the counters they already keep and LatencyHistograms they record into, so nothing
+// here runs on the packet path: values are only read when scraped.
+public class Metrics {
+
+    private static final String JMX_NAME = "detector:type=Metrics";
+    // Histogram buckets exported to Prometheus, in microseconds.
+    private static final long[] BUCKETS = { 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000,
+            250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000 };
+
+    private static class Family {
+        final String name, help, type;
+        final List<String> labels = new ArrayList<>();
+        final List<Object> sources = new ArrayList<>();
+
+        Family(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+    }
+
+    private final Map<String, Family> families = new ConcurrentSkipListMap<>();
+    private final LatencyHistogram gcPauses = new LatencyHistogram();
+    private HttpServer server;
+    private ObjectName jmxName;
+
+    public Metrics() {
+        histogram("detector_gc_pause_seconds", "Stop-the-world GC pauses", null, gcPauses);
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            String label = "gc=\"" + gc.getName() + "\"";
+            counter("detector_gc_collections_total", "GC runs per collector", label, gc::getCollectionCount);
+            if (gc instanceof NotificationEmitter) {
+                ((NotificationEmitter) gc).addNotificationListener(this::onGc, null, null);
+            }
+        }
+        gauge("detector_heap_used_bytes", "Heap in use", null,
+                () -> ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed());
+    }
+
+    // labels is null or a Prometheus label list without braces, e.g. stage="score".
+    public void counter(String name, String help, String labels, LongSupplier value) {
+        add(name, help, "counter", labels, value);
+    }
+
+    public void gauge(String name, String help, String labels, DoubleSupplier value) {
+        add(name, help, "gauge", labels, value);
+    }
+
+    public void gauge(String name, String help, String labels, LongSupplier value) {
+        add(name, help, "gauge", labels, value);
+    }
+
+    public void histogram(String name, String help, String labels, LatencyHistogram histogram) {
+        add(name, help, "histogram", labels, histogram);
+    }
+
+    private synchronized void add(String name, String help, String type, String labels, Object source) {
+        Family f = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        f.labels.add(labels);
+        f.sources.add(source);
+    }
+
+    private void onGc(Notification n, Object handback) {
+        if (!GcInfo.TYPE.equals(n.getType()))
+            return;
+        GcInfo info = GcInfo.from((CompositeData) n.getUserData());
+        // Concurrent cycles run beside the application; only pauses stall capture.
+        if (info.name.contains("Concurrent"))
+            return;
+        gcPauses.recordMicros(info.durationMillis * 1000);
+    }
+
+    public String prometheus() {
+        StringBuilder sb = new StringBuilder(4096);
+        for (Family f : families.values()) {
+            sb.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            sb.append("# TYPE ").append(f.name).append(' ').append(f.type).append('\n');
+            for (int i = 0; i < f.sources.size(); i++) {
+                String labels = f.labels.get(i);
+                Object source = f.sources.get(i);
+                if (source instanceof LatencyHistogram) {
+                    LatencyHistogram h = (LatencyHistogram) source;
+                    String prefix = labels != null ? labels + "," : "";
+                    for (long bound : BUCKETS) {
+                        sample(sb, f.name + "_bucket", prefix + "le=\"" + seconds(bound) + "\"", h.countAtOrBelow(bound));
+                    }
+                    sample(sb, f.name + "_bucket", prefix + "le=\"+Inf\"", h.count());
+                    sample(sb, f.name + "_sum", labels, h.sumMicros() / 1e6);
+                    sample(sb, f.name + "_count", labels, h.count());
+                } else {
+                    sample(sb, f.name, labels, read(source));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String seconds(long micros) {
+        return java.math.BigDecimal.valueOf(micros, 6).stripTrailingZeros().toPlainString();
+    }
+
+    private static void sample(StringBuilder sb, String name, String labels, double value) {
+        sb.append(name);
+        if (labels != null)
+            sb.append('{').append(labels).append('}');
+        sb.append(' ');
+        if (value == (long) value)
+            sb.append((long) value);
+        else
+            sb.append(value);
+        sb.append('\n');
+    }
+
+    private static double read(Object source) {
+        if (source instanceof LongSupplier)
+            return ((LongSupplier) source).getAsLong();
+        return ((DoubleSupplier) source).getAsDouble();
+    }
+
+    // Serves GET /metrics on 127.0.0.1:port from one daemon thread.
+    public void startHttp(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "metrics-http");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+        System.out.println("✓ Metrics on http://127.0.0.1:" + server.getAddress().getPort() + "/metrics");
+    }
+
+    // Registers detector:type=Metrics. Each sample is an attribute named like the
+    // Prometheus series; histograms expose _count, _p50_ms, _p99_ms and _max_ms.
+    public void registerJmx() throws JMException {
+        jmxName = new ObjectName(JMX_NAME);
+        MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+        if (mbs.isRegistered(jmxName))
+            mbs.unregisterMBean(jmxName);
+        mbs.registerMBean(new MetricsMBean(), jmxName);
+    }
+
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            server = null;
+        }
+        if (jmxName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(jmxName);
+            } catch (JMException e) {
+
+            }
+            jmxName = null;
+        }
+    }
+
+    private Map<String, Object> attributes() {
+        Map<String, Object> out = new LinkedHashMap<>();
+        for (Family f : families.values()) {
+            for (int i = 0; i < f.sources.size(); i++) {
+                String name = f.name;
+                String labels = f.labels.get(i);
+                if (labels != null)
+                    name += "_" + labels.replaceAll("[^A-Za-z0-9_]+", "_").replaceAll("_+$", "");
+                Object source = f.sources.get(i);
+                if (source instanceof LatencyHistogram) {
+                    LatencyHistogram h = (LatencyHistogram) source;
+                    out.put(name + "_count", h.count());
+                    out.put(name + "_p50_ms", h.percentileMicros(50) / 1000.0);
+                    out.put(name + "_p99_ms", h.percentileMicros(99) / 1000.0);
+                    out.put(name + "_max_ms", h.maxMicros() / 1000.0);
+                } else if (source instanceof LongSupplier) {
+                    out.put(name, ((LongSupplier) source).getAsLong());
+                } else {
+                    out.put(name, ((DoubleSupplier) source).getAsDouble());
+                }
+            }
+        }
+        return out;
+    }
+
+    private class MetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            Object value = attributes().get(attribute);
+            if (value == null)
+                throw new AttributeNotFoundException(attribute);
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] names) {
+            Map<String, Object> all = attributes();
+            AttributeList list = new AttributeList();
+            for (String name : names) {
+                if (all.containsKey(name))
+                    list.add(new Attribute(name, all.get(name)));
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Metrics are read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String action, Object[] params, String[] signature) throws MBeanException {
+            throw new MBeanException(new UnsupportedOperationException(action));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> infos = new ArrayList<>();
+            for (Map.Entry<String, Object> e : attributes().entrySet()) {
+                infos.add(new MBeanAttributeInfo(e.getKey(), e.getValue().getClass().getName(), e.getKey(),
+                        true, false, false));
+            }
+            return new MBeanInfo(Metrics.class.getName(), "Threat detector metrics",
+                    infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+        }
+    }
+
+    // The fields of com.sun.management.GarbageCollectionNotificationInfo used here, read
+    // from the notification's CompositeData so no JDK-internal type is needed.
+    private static class GcInfo {
+        static final String TYPE = "com.sun.management.gc.notification";
+        String name;
+        long durationMillis;
+
+        static GcInfo from(CompositeData data) {
+            GcInfo info = new GcInfo();
+            info.name = (String) data.get("gcName");
+            info.durationMillis = (Long) ((CompositeData) data.get("gcInfo")).get("duration");
+            return info;
+        }
+    }
+}
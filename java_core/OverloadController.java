@@ -0,0 +1,132 @@
+import java.util.concurrent.atomic.*;
+
+// Keeps live detection real-time when traffic outgrows the machine, at a known cost in
+// accuracy. Lag is how long a window takes from capture close to the end of the sink;
+// past highLag windows (or when a stage drops a window) the controller steps up one
+// level per window, and after calmWindows windows under lowLag it steps back down:
+//   NORMAL       every flow tracked and scored
+//   TRIAGE       rules first; the model only sees rule-flagged flows and new flows
+//   SAMPLING     capture also tracks only 1 in sampleRate flows (by key hash, so the
+//                same flows every window); the sketch still counts every packet
+//   SKETCH_ONLY  no flow tracking; windows report the sketch's top talkers
+// SKETCH_ONLY needs the traffic sketch, so without one SAMPLING is the last step.
+public class OverloadController {
+
+    public enum Level {
+        NORMAL("every flow tracked and scored"),
+        TRIAGE("ML only for rule-flagged and new flows"),
+        SAMPLING("ML triage, tracking 1 in %d flows"),
+        SKETCH_ONLY("sketch-only accounting, top talkers scored");
+
+        final String description;
+
+        Level(String description) {
+            this.description = description;
+        }
+    }
+
+    public static final double DEFAULT_HIGH_LAG = 1.0;
+    public static final double DEFAULT_LOW_LAG = 0.5;
+    public static final int DEFAULT_CALM_WINDOWS = 3;
+    public static final int DEFAULT_SAMPLE_RATE = 8;
+
+    private final PacketCapture capture;
+    private final FlowProcessor processor;
+    private final long windowNanos;
+    private final double highLag;
+    private final double lowLag;
+    private final int calmWindows;
+    private final int sampleBits;
+    private final Level maxLevel;
+
+    private volatile Level level = Level.NORMAL;
+    private int calm;
+    private boolean droppedSinceLast;
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final AtomicLong escalations = new AtomicLong();
+
+    // highLag and lowLag are in windows; sampleRate is rounded up to a power of two.
+    public OverloadController(PacketCapture capture, FlowProcessor processor, int windowSeconds, double highLag,
+            double lowLag, int calmWindows, int sampleRate) {
+        this.capture = capture;
+        this.processor = processor;
+        this.windowNanos = windowSeconds * 1_000_000_000L;
+        this.highLag = highLag;
+        this.lowLag = Math.min(lowLag, highLag);
+        this.calmWindows = Math.max(1, calmWindows);
+        this.sampleBits = 32 - Integer.numberOfLeadingZeros(Math.max(2, sampleRate) - 1);
+        this.maxLevel = capture.hasSketch() ? Level.SKETCH_ONLY : Level.SAMPLING;
+    }
+
+    // Null when the block disables it; defaults when the block is missing.
+    public static OverloadController fromConfig(Config.Overload cfg, PacketCapture capture, FlowProcessor processor,
+            int windowSeconds) {
+        if (cfg == null)
+            return new OverloadController(capture, processor, windowSeconds, DEFAULT_HIGH_LAG, DEFAULT_LOW_LAG,
+                    DEFAULT_CALM_WINDOWS, DEFAULT_SAMPLE_RATE);
+        if (cfg.disabled)
+            return null;
+        return new OverloadController(capture, processor, windowSeconds,
+                cfg.highLag > 0 ? cfg.highLag : DEFAULT_HIGH_LAG,
+                cfg.lowLag > 0 ? cfg.lowLag : DEFAULT_LOW_LAG,
+                cfg.calmWindows > 0 ? cfg.calmWindows : DEFAULT_CALM_WINDOWS,
+                cfg.sampleRate > 0 ? cfg.sampleRate : DEFAULT_SAMPLE_RATE);
+    }
+
+    // Sink thread, once per window that made it through the pipeline.
+    public synchronized void windowDone(FlowBatch flows) {
+        if (flows.closedAt == 0)
+            return;
+        long nanos = System.nanoTime() - flows.closedAt;
+        lag.recordNanos(nanos);
+        double windows = (double) nanos / windowNanos;
+        String why = String.format("window lag %.1fs (%.2f windows)", nanos / 1e9, windows);
+        if (droppedSinceLast || windows > highLag) {
+            droppedSinceLast = false;
+            calm = 0;
+            if (level != maxLevel)
+                apply(Level.values()[level.ordinal() + 1], why);
+        } else if (windows < lowLag && level != Level.NORMAL && ++calm >= calmWindows) {
+            calm = 0;
+            apply(Level.values()[level.ordinal() - 1], why);
+        } else if (windows >= lowLag) {
+            calm = 0;
+        }
+    }
+
+    // Any stage, when its queue was full and a window was dropped. Acted on at the next
+    // completed window, so a burst of drops still moves one level at a time.
+    public synchronized void windowDropped() {
+        droppedSinceLast = true;
+    }
+
+    private void apply(Level next, String why) {
+        boolean up = next.ordinal() > level.ordinal();
+        level = next;
+        processor.setTriage(next != Level.NORMAL);
+        capture.setSampling(next == Level.SKETCH_ONLY ? FlowShard.SKETCH_ONLY
+                : next == Level.SAMPLING ? sampleBits : 0);
+        if (up) {
+            escalations.incrementAndGet();
+            System.out.println("  ⚠️ Overload: " + why + " → " + next + ": " + describe(next));
+        } else {
+            System.out.println("  ✓ Overload easing: " + why + " → " + next + ": " + describe(next));
+        }
+    }
+
+    private String describe(Level l) {
+        return l == Level.SAMPLING ? String.format(l.description, 1 << sampleBits) : l.description;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    public void registerMetrics(Metrics metrics) {
+        metrics.gauge("detector_overload_level", "0 normal, 1 ML triage, 2 flow sampling, 3 sketch only", null,
+                () -> level.ordinal());
+        metrics.counter("detector_overload_escalations_total", "Times overload control stepped up a level", null,
+                escalations::get);
+        metrics.histogram("detector_window_lag_seconds", "Time from window close to the end of its sink", null, lag);
+    }
+}
@@ -1,23 +1,139 @@
 import java.io.*;
-import java.nio.file.*;
+import java.net.InetAddress;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantLock;
 import org.pcap4j.core.*;
 import org.pcap4j.packet.*;
 
 public class PacketCapture {
-    private String csvPath;
     private PcapHandle handle;
     private int windowSeconds;
+    private RawPacketParser rawParser;
 
-    private Map<String, FlowStats> activeFlows = new ConcurrentHashMap<>();
-    private long windowStartTime;
+    public static final int DEFAULT_IDLE_SECONDS = 15;
+    public static final int DEFAULT_ACTIVE_SECONDS = 120;
+
+    public static final int DEFAULT_SHARD_RING = 65536;
+
+    // How live handles are opened. A headers-only snaplen (e.g. 128 bytes covers Ethernet,
+    // IPv6 and a TCP header with options) keeps payloads out of the JVM: packet lengths
+    // come from the IP header, not the captured length. The filter runs in the kernel, so
+    // traffic it rejects is never copied at all.
+    public static class Options {
+        public int snaplen = 65536;
+        public int bufferBytes;
+        public boolean immediateMode;
+        public int timeoutMillis = 10;
+        public String filter;
+
+        public static Options fromConfig(Config cfg) {
+            Options o = new Options();
+            if (cfg.snaplen > 0)
+                o.snaplen = cfg.snaplen;
+            if (cfg.pcapBufferMb > 0)
+                o.bufferBytes = cfg.pcapBufferMb * 1024 * 1024;
+            o.immediateMode = cfg.immediateMode;
+            o.filter = cfg.bpfFilter;
+            return o;
+        }
 
-    public PacketCapture(String csvPath) {
-        this.csvPath = csvPath;
+        // filter, if set, overrides the default one (per-interface filters).
+        PcapHandle open(PcapNetworkInterface nif, String filter) throws PcapNativeException, NotOpenException {
+            PcapHandle.Builder b = new PcapHandle.Builder(nif.getName())
+                    .snaplen(snaplen)
+                    .promiscuousMode(PcapNetworkInterface.PromiscuousMode.PROMISCUOUS)
+                    .timeoutMillis(timeoutMillis);
+            if (bufferBytes > 0)
+                b.bufferSize(bufferBytes);
+            if (immediateMode)
+                b.immediateMode(true);
+            PcapHandle h = b.build();
+            String f = filter != null && !filter.isEmpty() ? filter : this.filter;
+            if (f != null && !f.isEmpty()) {
+                try {
+                    h.setFilter(f, BpfProgram.BpfCompileMode.OPTIMIZE);
+                } catch (PcapNativeException | NotOpenException e) {
+                    h.close();
+                    throw e;
+                }
+            }
+            return h;
+        }
+
+        String describe(String filter) {
+            String f = filter != null && !filter.isEmpty() ? filter : this.filter;
+            return "snaplen " + snaplen
+                    + (bufferBytes > 0 ? ", buffer " + bufferBytes / (1024 * 1024) + "MB" : "")
+                    + (immediateMode ? ", immediate" : "")
+                    + (f != null && !f.isEmpty() ? ", filter: " + f : "");
+        }
     }
 
+    // Flows persist across windows until they go idle or hit the active timeout; each
+    // window reports every flow that saw packets in it, with its lifetime totals. Flow
+    // state is split over shards (one, run inline, unless setShards() asks for more),
+    // each with a fixed-size sketch that still sees packets of flows its table sheds.
+    FlowShard[] shards = { new FlowShard(0, 1, 2) };
+    private Thread[] shardThreads;
+    // First uncaught error of a shard or reader thread; window closes fail with it instead
+    // of waiting for a marker that will never come.
+    private volatile Throwable threadFailure;
+    // Set by close(); a capture thread waiting for a window gives up instead of waiting on
+    // shards that have stopped.
+    private volatile boolean closed;
+    // Held by the capture thread for each captureNextWindow. snapshotNow() takes it after
+    // close(), so no window close is still touching the tables or baselines.
+    private final ReentrantLock capturing = new ReentrantLock();
+    private int maxFlows;
+
+    // Multi-interface capture: one reader thread per interface, all feeding the shards.
+    // The thread calling captureNextWindow only times windows and asks readers to close
+    // them by bumping closeSeq (closeStart and closeNow are written first, and the shards
+    // are given the close time before that, see FlowShard.hold).
+    private InterfaceReader[] readers;
+    private String[] interfaceNames;
+    volatile long closeSeq;
+    long closeStart, closeNow;
+    private long windowStartTime;
+    private long windowStartNanos;
+    private long packetCount;
+    // packetCount as of the last window close, for scrapers on other threads.
+    private volatile long closedPacketCount;
+    // Hosts the sketch had no HLL row for, summed over windows (estimated per window).
+    private volatile long sketchUntracked;
+    // Single-handle live capture only; readers keep their own.
+    private final CaptureStats captureStats = new CaptureStats();
+    // Window close (collect, merge, sketch columns) time and the last window's packet rate.
+    private final LatencyHistogram closeLatency = new LatencyHistogram();
+    private HostBaselines baselines;
+    private StateSnapshots snapshots;
+    private volatile double packetRate;
+    private long rateMark;
+
+    // Offline replay state. Windows follow packet timestamps rather than the wall clock;
+    // replaySpeed 1 keeps the original pacing, N replays N times faster, 0 means no pacing.
+    private boolean replaying;
+    private boolean exhausted;
+    private double replaySpeed;
+    private long replayFirstTs = -1;
+    private long replayWallStart;
+    private long windowStartTs;
+    private long lastPacketTs;
+    private long pendingTs;
+    private byte[] pendingFrame;
+    private Packet pendingPacket;
+
     public PacketCapture(String interfaceName, int windowSeconds) throws PcapNativeException {
+        this(interfaceName, windowSeconds, false);
+    }
+
+    public PacketCapture(String interfaceName, int windowSeconds, boolean rawCapture) throws PcapNativeException {
+        this(interfaceName, windowSeconds, rawCapture, new Options());
+    }
+
+    public PacketCapture(String interfaceName, int windowSeconds, boolean rawCapture, Options options)
+            throws PcapNativeException {
         this.windowSeconds = windowSeconds;
         PcapNetworkInterface nif = findInterface(interfaceName);
         if (nif == null) {
@@ -26,9 +142,219 @@ public class PacketCapture {
             throw new PcapNativeException("Interface not found: " + interfaceName);
         }
 
-        this.handle = nif.openLive(65536, PcapNetworkInterface.PromiscuousMode.PROMISCUOUS, 10);
+        try {
+            this.handle = options.open(nif, null);
+        } catch (NotOpenException e) {
+            throw new PcapNativeException("Could not set filter on " + nif.getName() + ": " + e.getMessage());
+        }
+        this.interfaceNames = new String[] { nif.getName() };
+        this.windowStartTime = System.currentTimeMillis();
+        this.windowStartNanos = System.nanoTime();
+        initFlowTable();
+        System.out.println("✓ Capturing on interface: " + nif.getName() + " (" + options.describe(null) + ")");
+        if (rawCapture) {
+            enableRawCapture();
+        }
+    }
+
+    // Wraps an already open handle, e.g. one from Pcaps.openOffline.
+    PacketCapture(PcapHandle handle, int windowSeconds, boolean rawCapture) {
+        this.handle = handle;
+        this.windowSeconds = windowSeconds;
         this.windowStartTime = System.currentTimeMillis();
-        System.out.println("✓ Capturing on interface: " + nif.getName());
+        this.windowStartNanos = System.nanoTime();
+        initFlowTable();
+        if (rawCapture) {
+            enableRawCapture();
+        }
+    }
+
+    public static PacketCapture openLive(List<Config.Interface> interfaces, int windowSeconds, boolean rawCapture)
+            throws PcapNativeException, NotOpenException {
+        return openLive(interfaces, windowSeconds, rawCapture, new Options());
+    }
+
+    // Captures every interface in the list on its own thread, each with an optional BPF
+    // filter (else the default from options), into one set of flow tables. Flows are
+    // tagged with the interface they were seen on.
+    public static PacketCapture openLive(List<Config.Interface> interfaces, int windowSeconds, boolean rawCapture,
+            Options options) throws PcapNativeException, NotOpenException {
+        if (interfaces.size() > 256)
+            throw new IllegalArgumentException("At most 256 interfaces are supported");
+        PacketCapture capture = new PacketCapture((PcapHandle) null, windowSeconds, false);
+        capture.readers = new InterfaceReader[interfaces.size()];
+        capture.interfaceNames = new String[interfaces.size()];
+        capture.shards = new FlowShard[] { new FlowShard(0, interfaces.size(), DEFAULT_SHARD_RING) };
+        capture.initFlowTable();
+        for (int i = 0; i < interfaces.size(); i++) {
+            Config.Interface spec = interfaces.get(i);
+            PcapNetworkInterface nif = findInterface(spec.name);
+            if (nif == null) {
+                capture.close();
+                System.err.println("Interface not found: " + spec.name);
+                listInterfaces();
+                throw new PcapNativeException("Interface not found: " + spec.name);
+            }
+            PcapHandle h;
+            try {
+                h = options.open(nif, spec.filter);
+            } catch (PcapNativeException | NotOpenException e) {
+                capture.close();
+                throw e;
+            }
+            capture.readers[i] = new InterfaceReader(i, nif.getName(), h, rawCapture, capture);
+            capture.interfaceNames[i] = nif.getName();
+            System.out.println("✓ Capturing on interface: " + nif.getName() + " (" + options.describe(spec.filter) + ")");
+        }
+        return capture;
+    }
+
+    // Opens a .pcap/.pcapng file for replay through the same aggregation as live capture.
+    public static PacketCapture openOffline(String file, int windowSeconds, boolean rawCapture, double speed)
+            throws PcapNativeException {
+        PacketCapture capture = new PacketCapture(Pcaps.openOffline(file), windowSeconds, rawCapture);
+        capture.replaying = true;
+        capture.replaySpeed = speed;
+        System.out.println("✓ Replaying " + file + (speed > 0 ? " at " + speed + "x" : " at max speed"));
+        return capture;
+    }
+
+    private void initFlowTable() {
+        shards[0].table.setRateWindow(windowSeconds * 1_000_000_000L);
+        shards[0].setSketch(new TrafficSketch());
+        setFlowTimeouts(DEFAULT_IDLE_SECONDS, DEFAULT_ACTIVE_SECONDS);
+    }
+
+    // A flow is retired after idleSeconds without packets, or activeSeconds after it was
+    // first seen; the next packet then starts a new flow.
+    public void setFlowTimeouts(int idleSeconds, int activeSeconds) {
+        for (FlowShard shard : shards) {
+            shard.table.setTimeouts(idleSeconds * 1_000_000_000L, activeSeconds * 1_000_000_000L);
+        }
+    }
+
+    // Caps the flow table (0 = unbounded), split evenly over the shards; new flows past
+    // the cap are only seen by the sketch.
+    public void setMaxFlows(int maxFlows) {
+        this.maxFlows = maxFlows;
+        for (FlowShard shard : shards) {
+            shard.table.setMaxFlows(maxFlows > 0 ? (maxFlows + shards.length - 1) / shards.length : 0);
+        }
+    }
+
+    // null turns the sketch columns and top-talker rows off. Each shard gets its own
+    // sketch of this shape.
+    public void setSketch(TrafficSketch sketch) {
+        for (FlowShard shard : shards) {
+            shard.setSketch(sketch == null ? null : shard.id == 0 ? sketch : sketch.copyEmpty());
+        }
+    }
+
+    // null turns the baseline columns off. Baselines live on the capture thread and see
+    // the merged window, so they work the same with any number of shards.
+    public void setBaselines(HostBaselines baselines) {
+        this.baselines = baselines;
+    }
+
+    public HostBaselines getBaselines() {
+        return baselines;
+    }
+
+    // Live capture only: hands a copy of the flow tables and baselines to snapshots at
+    // a window close once per its interval.
+    public void setSnapshots(StateSnapshots snapshots) {
+        this.snapshots = snapshots;
+    }
+
+    // Splits flow state over n shards, each on its own thread, fed from the capture
+    // thread(s) through rings of ringCapacity packets. Call before capturing; earlier
+    // settings carry over. With a single interface, sharding needs rawCapture, since
+    // decoded packets are built on the capture thread anyway.
+    public void setShards(int n, int ringCapacity) {
+        if (shardThreads != null)
+            return;
+        if (readers == null) {
+            if (n <= 1)
+                return;
+            if (rawParser == null) {
+                System.out.println("⚠️ captureShards needs rawCapture; using one shard");
+                return;
+            }
+        }
+        n = Math.max(1, n);
+        int producers = readers != null ? readers.length : 1;
+        FlowShard first = shards[0];
+        FlowShard[] created = new FlowShard[n];
+        for (int i = 0; i < n; i++) {
+            FlowShard shard = new FlowShard(i, producers, ringCapacity);
+            shard.table.setRateWindow(windowSeconds * 1_000_000_000L);
+            shard.setSketch(first.sketch() == null ? null : i == 0 ? first.sketch() : first.sketch().copyEmpty());
+            created[i] = shard;
+        }
+        long idle = first.table.idleTimeoutNanos(), active = first.table.activeTimeoutNanos();
+        shards = created;
+        for (FlowShard shard : shards) {
+            shard.table.setTimeouts(idle, active);
+        }
+        setMaxFlows(maxFlows);
+        if (readers == null) {
+            startThreads();
+        }
+        if (n > 1) {
+            System.out.println("✓ Capture sharded over " + n + " flow tables");
+        }
+    }
+
+    private void startThreads() {
+        shardThreads = new Thread[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            Thread t = new Thread(shards[i], "capture-shard-" + i);
+            t.setDaemon(true);
+            t.setUncaughtExceptionHandler(this::threadFailed);
+            t.start();
+            shardThreads[i] = t;
+        }
+        if (readers != null) {
+            for (InterfaceReader reader : readers) {
+                Thread t = new Thread(reader, "capture-" + reader.name);
+                t.setDaemon(true);
+                t.setUncaughtExceptionHandler(this::threadFailed);
+                t.start();
+            }
+        }
+    }
+
+    private void threadFailed(Thread t, Throwable e) {
+        System.err.println("❌ " + t.getName() + " died: " + e);
+        e.printStackTrace();
+        if (threadFailure == null)
+            threadFailure = e;
+    }
+
+    private FlowBatch awaitWindow(FlowShard shard) throws InterruptedException {
+        FlowBatch batch;
+        while ((batch = shard.pollWindow(100)) == null) {
+            Throwable failure = threadFailure;
+            if (failure != null)
+                throw new IllegalStateException("Capture thread died, no more windows", failure);
+            if (closed)
+                throw new InterruptedException("Capture closed");
+        }
+        return batch;
+    }
+
+    private void enableRawCapture() {
+        enableRawCapture(handle.getDlt().value());
+    }
+
+    // Also used by benchmarks, which feed frames without a handle.
+    void enableRawCapture(int dlt) {
+        if (RawPacketParser.isSupported(dlt)) {
+            rawParser = new RawPacketParser(dlt);
+            System.out.println("✓ Raw header parsing enabled (DLT " + dlt + ")");
+        } else {
+            System.out.println("⚠️ Raw parsing not supported for DLT " + dlt + ", using decoded packets");
+        }
     }
 
     public static void listInterfaces() throws PcapNativeException {
@@ -65,117 +391,593 @@ public class PacketCapture {
         return null;
     }
 
-    public List<Map<String, String>> readFlows() throws IOException {
-        List<Map<String, String>> flows = new ArrayList<>();
-        List<String> lines = Files.readAllLines(Paths.get(csvPath));
-        boolean first = true;
-        for (String line : lines) {
-            if (first) {
-                first = false;
-                continue;
-            }
-            String[] parts = line.split(",");
-            Map<String, String> flow = new HashMap<>();
-            flow.put("duration", parts[1]);
-            flow.put("total_pkts", parts[2]);
-            flow.put("total_bytes", parts[3]);
-            flow.put("mean_pkt_len", parts[4]);
-            flow.put("pkt_rate", parts[5]);
-            flow.put("protocol", parts[6]);
-            flows.add(flow);
+    public FlowBatch captureNextWindow()
+            throws PcapNativeException, NotOpenException, InterruptedException {
+        capturing.lock();
+        try {
+            if (closed)
+                throw new InterruptedException("Capture closed");
+            return nextWindow();
+        } finally {
+            capturing.unlock();
         }
-        return flows;
     }
 
-    public List<Map<String, String>> captureNextWindow()
-            throws PcapNativeException, NotOpenException, InterruptedException {
-        long now = System.currentTimeMillis();
-        long elapsed = now - windowStartTime;
+    private FlowBatch nextWindow() throws PcapNativeException, NotOpenException, InterruptedException {
+        if (replaying) {
+            return replayNextWindow();
+        }
+        if (readers != null) {
+            return multiNextWindow();
+        }
+
+        long elapsed = System.currentTimeMillis() - windowStartTime;
 
         while (elapsed < windowSeconds * 1000) {
-            try {
-                Packet packet = handle.getNextPacketEx();
-                if (packet != null) {
-                    processPacket(packet);
-                }
-            } catch (EOFException | TimeoutException e) {
-                
-            }
+            nextPacket();
             elapsed = System.currentTimeMillis() - windowStartTime;
         }
 
-        List<Map<String, String>> flows = aggregateFlows();
-        activeFlows.clear();
+        long now = System.nanoTime();
+        FlowBatch flows = closeWindow(windowStartNanos, now);
+        windowStartTime = System.currentTimeMillis();
+        windowStartNanos = now;
+
+        return flows;
+    }
+
+    private FlowBatch multiNextWindow() throws InterruptedException {
+        if (shardThreads == null) {
+            startThreads();
+        }
+        long wait = windowStartTime + windowSeconds * 1000L - System.currentTimeMillis();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+        if (closed)
+            throw new InterruptedException("Capture closed");
+        for (FlowShard shard : shards) {
+            shard.hold();
+        }
+        long now = System.nanoTime();
+        FlowBatch flows = closeWindow(windowStartNanos, now);
         windowStartTime = System.currentTimeMillis();
+        windowStartNanos = now;
+        return flows;
+    }
+
+    private FlowBatch replayNextWindow()
+            throws PcapNativeException, NotOpenException, InterruptedException {
+        long windowNanos = windowSeconds * 1_000_000_000L;
+        while (true) {
+            if (!hasPending()) {
+                try {
+                    if (!readPacket()) {
+                        exhausted = true;
+                        break;
+                    }
+                } catch (TimeoutException e) {
+                    continue;
+                }
+                pendingTs = toNanos(handle.getTimestamp());
+                if (replayFirstTs < 0) {
+                    replayFirstTs = pendingTs;
+                    windowStartTs = pendingTs;
+                    replayWallStart = System.nanoTime();
+                }
+            }
+            if (pendingTs >= windowStartTs + windowNanos) {
+                pace(windowStartTs + windowNanos);
+                break;
+            }
+            pace(pendingTs);
+            processPending(pendingTs);
+        }
 
+        long windowEnd = windowStartTs + windowNanos;
+        long now = exhausted ? Math.min(windowEnd, lastPacketTs) : windowEnd;
+        FlowBatch flows = closeWindow(windowStartTs, now);
+        if (hasPending()) {
+            windowStartTs = pendingTs - (pendingTs - windowStartTs) % windowNanos;
+        }
         return flows;
     }
 
-    private void processPacket(Packet packet) {
+    private void pace(long packetTs) throws InterruptedException {
+        if (replaySpeed <= 0) {
+            return;
+        }
+        long due = replayWallStart + (long) ((packetTs - replayFirstTs) / replaySpeed);
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+        }
+    }
+
+    private static long toNanos(java.sql.Timestamp ts) {
+        return Math.floorDiv(ts.getTime(), 1000) * 1_000_000_000L + ts.getNanos();
+    }
+
+    // Reads and aggregates one packet. Returns false once an offline file is exhausted.
+    boolean nextPacket() throws PcapNativeException, NotOpenException {
+        try {
+            if (!readPacket()) {
+                return false;
+            }
+            processPending(System.nanoTime());
+        } catch (TimeoutException e) {
+
+        }
+        return true;
+    }
+
+    private boolean readPacket() throws PcapNativeException, NotOpenException, TimeoutException {
+        try {
+            if (rawParser != null) {
+                pendingFrame = handle.getNextRawPacketEx();
+            } else {
+                pendingPacket = handle.getNextPacketEx();
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private boolean hasPending() {
+        return pendingFrame != null || pendingPacket != null;
+    }
+
+    // now is the packet time: the capture timestamp in replay, System.nanoTime() live.
+    private void processPending(long now) {
+        packetCount++;
+        lastPacketTs = now;
+        if (pendingFrame != null) {
+            captureStats.count(pendingFrame.length);
+            processRawPacket(pendingFrame, now);
+            pendingFrame = null;
+        } else if (pendingPacket != null) {
+            captureStats.count(pendingPacket.length());
+            processPacket(pendingPacket, now);
+            pendingPacket = null;
+        }
+    }
+
+    // Package-private for benchmarks, like the two methods below.
+    void processRawPacket(byte[] frame, long now) {
+        RawPacketParser p = rawParser;
+        if (p.parse(frame, frame.length)) {
+            if (shardThreads == null) {
+                shards[0].record(p.srcHi, p.srcLo, p.dstHi, p.dstLo, 0, p.protocol, p.dstPort, p.ipLength, now);
+            } else {
+                int s = FlowShard.shardOf(p.srcHi, p.srcLo, p.dstHi, p.dstLo, p.protocol, shards.length);
+                shards[s].offer(0, p.srcHi, p.srcLo, p.dstHi, p.dstLo, p.protocol, p.dstPort, p.ipLength, now,
+                        replaying);
+            }
+        }
+    }
+
+    void processPacket(Packet packet, long now) {
         try {
             IpPacket ipPacket = packet.get(IpPacket.class);
             if (ipPacket == null)
                 return;
 
-            String srcIp = ipPacket.getHeader().getSrcAddr().getHostAddress();
-            String dstIp = ipPacket.getHeader().getDstAddr().getHostAddress();
-            int protocol = ipPacket.getHeader().getProtocol().value() & 0xFF;
-            int length = ipPacket.length();
+            IpPacket.IpHeader header = ipPacket.getHeader();
+            int protocol = header.getProtocol().value() & 0xFF;
 
-            String flowKey = srcIp + "-" + dstIp + "-" + protocol;
-
-            FlowStats stats = activeFlows.computeIfAbsent(flowKey, k -> new FlowStats(protocol));
-            stats.addPacket(length);
+            // Flows are aggregated per host pair and protocol, as the rules expect, so
+            // the port fields of the key stay zero.
+            InetAddress src = header.getSrcAddr(), dst = header.getDstAddr();
+            shards[0].record(FlowTable.addressHi(src), FlowTable.addressLo(src), FlowTable.addressHi(dst),
+                    FlowTable.addressLo(dst), 0, protocol, dstPort(packet), ipLength(ipPacket), now);
 
         } catch (Exception e) {
             
         }
     }
 
-    private List<Map<String, String>> aggregateFlows() {
-        List<Map<String, String>> flows = new ArrayList<>();
-        double duration = windowSeconds;
+    // Length from the IP header, so packets cut short by the snaplen still count in full.
+    static int ipLength(IpPacket ip) {
+        if (ip instanceof IpV4Packet)
+            return ((IpV4Packet) ip).getHeader().getTotalLengthAsInt();
+        if (ip instanceof IpV6Packet)
+            return ((IpV6Packet) ip).getHeader().getPayloadLengthAsInt() + 40;
+        return ip.length();
+    }
+
+    static int dstPort(Packet packet) {
+        TcpPacket tcp = packet.get(TcpPacket.class);
+        if (tcp != null)
+            return tcp.getHeader().getDstPort().valueAsInt();
+        UdpPacket udp = packet.get(UdpPacket.class);
+        return udp != null ? udp.getHeader().getDstPort().valueAsInt() : 0;
+    }
 
-        for (FlowStats stats : activeFlows.values()) {
-            Map<String, String> flow = new HashMap<>();
-            flow.put("duration", String.valueOf(duration));
-            flow.put("total_pkts", String.valueOf(stats.packetCount));
-            flow.put("total_bytes", String.valueOf(stats.totalBytes));
-            flow.put("mean_pkt_len", String.valueOf(stats.getMeanPacketLength()));
-            flow.put("pkt_rate", String.valueOf(stats.getPacketRate(duration)));
-            flow.put("protocol", String.valueOf(stats.protocol));
-            flows.add(flow);
+    // Collects every flow that saw packets since windowStart from the shards and merges
+    // them into one batch: lifetime duration and totals, the sliding packet rate as of now,
+    // and the sketch columns from the merged shard sketches. mean_pkt_len is filled in
+    // later by FeatureExtractor, off the capture thread. If a table shed flows this
+    // window, the sketch's top talkers that have no row of their own are appended as
+    // per-source rows so flood rules still see the traffic that was not tracked. Last,
+    // every row gets its hosts' baseline z-scores, and when a snapshot is due the shards
+    // and baselines copy their state for it.
+    FlowBatch closeWindow(long windowStart, long now) throws InterruptedException {
+        long closeStarted = System.nanoTime();
+        FlowBatch[] parts = new FlowBatch[shards.length];
+        StateSnapshots.Image snapshot = null;
+        if (snapshots != null && !replaying && snapshots.due(closeStarted)) {
+            snapshot = new StateSnapshots.Image(System.currentTimeMillis(), windowSeconds);
+            for (FlowShard shard : shards) {
+                StateSnapshots.Flows flows = new StateSnapshots.Flows(1024);
+                snapshot.flows.add(flows);
+                shard.snapshotTo = flows;
+            }
+        }
+        if (shardThreads == null) {
+            parts[0] = shards[0].collect(windowStart, now);
+        } else {
+            if (readers == null) {
+                for (FlowShard shard : shards) {
+                    shard.requestClose(0, windowStart, now);
+                }
+            } else {
+                for (FlowShard shard : shards) {
+                    shard.cutoff(windowStart, now);
+                }
+                closeStart = windowStart;
+                closeNow = now;
+                closeSeq++;
+            }
+            for (int i = 0; i < shards.length; i++) {
+                parts[i] = awaitWindow(shards[i]);
+            }
         }
 
-        return flows;
+        TrafficSketch sketch = shards[0].windowSketch;
+        long shed = 0;
+        int rows = 0;
+        for (int i = 0; i < shards.length; i++) {
+            shed += shards[i].windowShed;
+            rows += parts[i].size();
+            if (i > 0 && sketch != null)
+                sketch.merge(shards[i].windowSketch);
+        }
+        long untracked = sketch != null ? Math.round(sketch.untrackedHosts()) : 0;
+        if (untracked > 0) {
+            sketchUntracked += untracked;
+            System.out.println("⚠️ Sketch rows full: ~" + untracked + " hosts share spill rows this window");
+        }
+        boolean sketchOnly = shards[0].windowSampling == FlowShard.SKETCH_ONLY;
+        int talkers = (shed > 0 || sketchOnly) && sketch != null ? sketch.topCount() : 0;
+        double seconds = Math.max(now - windowStart, 1) / 1e9;
+        FlowBatch batch = parts.length == 1 && talkers == 0 ? parts[0] : new FlowBatch(rows + talkers);
+        if (batch != parts[0]) {
+            for (FlowBatch part : parts) {
+                batch.append(part);
+            }
+        }
+
+        if (sketch != null) {
+            for (int row = 0; row < rows; row++) {
+                long sHi = batch.srcHi[row], sLo = batch.srcLo[row];
+                batch.setSketch(row, sketch.sourcePackets(sHi, sLo, (int) batch.protocol[row]) / seconds,
+                        sketch.sourcePorts(sHi, sLo), sketch.sourcePeers(sHi, sLo),
+                        sketch.destinationPeers(batch.dstHi[row], batch.dstLo[row]));
+            }
+        }
+        boolean[] tracked = talkers > 0 ? trackedTalkers(sketch, talkers, batch, rows) : null;
+        int added = 0;
+        for (int i = 0; i < talkers; i++) {
+            if (tracked[i])
+                continue;
+            added++;
+            long hi = sketch.topSrcHi(i), lo = sketch.topSrcLo(i);
+            double pkts = sketch.topPackets(i);
+            int row = batch.add(seconds, pkts, sketch.topBytes(i), 0, pkts / seconds, sketch.topProtocol(i));
+            batch.setKey(row, hi, lo, 0, 0);
+            batch.setSketch(row, pkts / seconds, sketch.sourcePorts(hi, lo), sketch.sourcePeers(hi, lo), 0);
+            batch.newFlow[row] = true;
+        }
+        if (added > 0 && shed > 0) {
+            System.out.println("⚠️ Flow table full: shed " + shed + " packets, added " + added
+                    + " untracked top talkers from the sketch");
+        }
+        if (baselines != null)
+            baselines.observe(batch, shards[0].windowSampling == 0);
+        if (snapshot != null) {
+            if (baselines != null)
+                baselines.copyTo(snapshot);
+            snapshots.submit(snapshot);
+        }
+        if (sketch != null) {
+            for (FlowShard shard : shards) {
+                shard.recycle(shard.windowSketch);
+            }
+        }
+
+        batch.interfaces = interfaceNames;
+        if (shards.length > 1) {
+            System.out.println("  " + shardStatus());
+        }
+        if (readers != null) {
+            System.out.println("  " + interfaceStatus());
+        } else if (!replaying && handle != null) {
+            captureStats.sample(handle);
+            System.out.println("  Capture: " + captureStats.summary());
+        }
+        long count = getPacketCount();
+        closedPacketCount = packetCount;
+        packetRate = (count - rateMark) / seconds;
+        rateMark = count;
+        batch.closedAt = System.nanoTime();
+        closeLatency.recordNanos(batch.closedAt - closeStarted);
+        return batch;
     }
 
-    public void close() {
-        if (handle != null && handle.isOpen()) {
-            handle.close();
+    // Which top talkers already have a row among the first rows of batch, by probing a
+    // small table of their source keys once per row.
+    private static boolean[] trackedTalkers(TrafficSketch sketch, int talkers, FlowBatch batch, int rows) {
+        int mask = Integer.highestOneBit(talkers * 4 - 1) * 2 - 1;
+        int[] slots = new int[mask + 1];
+        Arrays.fill(slots, -1);
+        for (int i = 0; i < talkers; i++) {
+            int s = talkerSlot(sketch.topSrcHi(i), sketch.topSrcLo(i), mask);
+            while (slots[s] >= 0) {
+                s = (s + 1) & mask;
+            }
+            slots[s] = i;
+        }
+        boolean[] tracked = new boolean[talkers];
+        for (int row = 0; row < rows; row++) {
+            long hi = batch.srcHi[row], lo = batch.srcLo[row];
+            for (int s = talkerSlot(hi, lo, mask); slots[s] >= 0; s = (s + 1) & mask) {
+                int t = slots[s];
+                if (sketch.topSrcLo(t) == lo && sketch.topSrcHi(t) == hi)
+                    tracked[t] = true;
+            }
+        }
+        return tracked;
+    }
+
+    private static int talkerSlot(long hi, long lo, int mask) {
+        long h = (hi * 0x9E3779B97F4A7C15L ^ lo) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    // Per-interface packets and bytes copied in the last window, the kernel's pcap_stats
+    // deltas for it, and ring drops so far.
+    public String interfaceStatus() {
+        StringBuilder sb = new StringBuilder("Interfaces:");
+        for (InterfaceReader reader : readers) {
+            sb.append(' ').append(reader.name)
+                    .append('[').append(reader.getStats().summary())
+                    .append(" ring_drop=").append(reader.getRingDrops())
+                    .append(']');
         }
+        return sb.toString();
     }
 
-    private static class FlowStats {
-        int protocol;
-        int packetCount;
-        long totalBytes;
+    // Empty unless capturing several interfaces.
+    public List<InterfaceReader> getInterfaces() {
+        return readers == null ? Collections.emptyList() : Arrays.asList(readers);
+    }
 
-        FlowStats(int protocol) {
-            this.protocol = protocol;
+    // Per-shard packets, live flows and ring drops, to make hash skew visible.
+    public String shardStatus() {
+        StringBuilder sb = new StringBuilder("Shards:");
+        for (FlowShard shard : shards) {
+            sb.append(' ').append(shard.id)
+                    .append("[pkts=").append(shard.getPackets())
+                    .append(" flows=").append(shard.getFlows())
+                    .append(" drop=").append(shard.getRingDrops())
+                    .append(']');
         }
+        return sb.toString();
+    }
 
-        void addPacket(int length) {
-            packetCount++;
-            totalBytes += length;
+    // Overload degradation (see FlowShard): 0 tracks every flow, k > 0 one flow in 2^k,
+    // FlowShard.SKETCH_ONLY none, with windows reporting the sketch's top talkers instead.
+    // Takes effect from the next window.
+    public void setSampling(int sampling) {
+        for (FlowShard shard : shards) {
+            shard.setSampling(sampling);
         }
+    }
 
-        double getMeanPacketLength() {
-            return packetCount > 0 ? (double) totalBytes / packetCount : 0;
+    // Copies the flow tables and baselines as of now, for a last snapshot at shutdown, after
+    // close(). Only once the capture thread has left captureNextWindow and the shard
+    // threads have stopped: null if either takes more than a second.
+    public StateSnapshots.Image snapshotNow() throws InterruptedException {
+        if (!capturing.tryLock(1, TimeUnit.SECONDS))
+            return null;
+        try {
+            return copyState();
+        } finally {
+            capturing.unlock();
         }
+    }
 
-        double getPacketRate(double duration) {
-            return duration > 0 ? packetCount / duration : 0;
+    private StateSnapshots.Image copyState() throws InterruptedException {
+        if (shardThreads != null) {
+            for (Thread t : shardThreads) {
+                t.join(1000);
+                if (t.isAlive())
+                    return null;
+            }
+        }
+        long now = System.nanoTime();
+        StateSnapshots.Image image = new StateSnapshots.Image(System.currentTimeMillis(), windowSeconds);
+        for (FlowShard shard : shards) {
+            StateSnapshots.Flows flows = new StateSnapshots.Flows(shard.table.size());
+            shard.table.copyTo(flows, now);
+            image.flows.add(flows);
+        }
+        if (baselines != null)
+            baselines.copyTo(image);
+        return image;
+    }
+
+    // Startup, before capturing: puts a snapshot's flows back into the shards they hash
+    // to now (the shard count may have changed), with their times moved onto this JVM's
+    // clock and the downtime counted as idle. Flows whose idle or active timeout passed
+    // meanwhile are dropped; rate buckets are only kept if the window length is the same.
+    int restoreFlows(StateSnapshots.Image image) {
+        long now = System.nanoTime();
+        long downtime = Math.max(0, System.currentTimeMillis() - image.takenAt) * 1_000_000L;
+        long base = now - downtime;
+        boolean keepRates = image.windowSeconds == windowSeconds;
+        long idle = shards[0].table.idleTimeoutNanos(), active = shards[0].table.activeTimeoutNanos();
+        int restored = 0;
+        for (StateSnapshots.Flows f : image.flows) {
+            int[] shardOf = new int[f.count];
+            int[] perShard = new int[shards.length];
+            for (int i = 0; i < f.count; i++) {
+                int protocol = (int) (f.meta[i] >>> 32) & 0xFF;
+                shardOf[i] = FlowShard.shardOf(f.srcHi[i], f.srcLo[i], f.dstHi[i], f.dstLo[i], protocol,
+                        shards.length);
+                perShard[shardOf[i]]++;
+            }
+            for (int s = 0; s < shards.length; s++) {
+                shards[s].table.ensureCapacity(perShard[s]);
+            }
+            for (int i = 0; i < f.count; i++) {
+                long first = base - f.firstAge[i], last = base - f.lastAge[i];
+                if (idle > 0 && last + idle <= now || active > 0 && first + active <= now)
+                    continue;
+                if (shards[shardOf[i]].table.restore(f.srcHi[i], f.srcLo[i], f.dstHi[i], f.dstLo[i], f.meta[i],
+                        f.packets[i], f.bytes[i], first, last, keepRates ? f.ratePrev[i] : 0,
+                        keepRates ? f.rateCur[i] : 0))
+                    restored++;
+            }
+        }
+        return restored;
+    }
+
+    public boolean hasSketch() {
+        return shards[0].sketch() != null;
+    }
+
+    public long getSampledOutPackets() {
+        long n = 0;
+        for (FlowShard shard : shards) {
+            n += shard.getSampledOut();
+        }
+        return n;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    public FlowShard getShard(int i) {
+        return shards[i];
+    }
+
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    // Read at scrape time only. The packet path keeps plain counters, owned by the thread
+    // that increments them; scrapes see the copies published at each window close.
+    public void registerMetrics(Metrics metrics) {
+        metrics.counter("detector_packets_total", "Packets read from capture handles", null, () -> {
+            long count = closedPacketCount;
+            for (InterfaceReader reader : getInterfaces()) {
+                count += reader.getPackets();
+            }
+            return count;
+        });
+        metrics.gauge("detector_packets_per_second", "Packet rate over the last window", null, () -> packetRate);
+        metrics.counter("detector_shed_packets_total", "Packets of flows the full flow table could not track", null,
+                this::getShedPackets);
+        metrics.counter("detector_sampled_out_packets_total", "Packets of flows skipped by overload sampling", null,
+                this::getSampledOutPackets);
+        metrics.counter("detector_sketch_untracked_hosts_total",
+                "Hosts with no sketch row of their own, estimated per window", null, () -> sketchUntracked);
+        if (baselines != null)
+            baselines.registerMetrics(metrics);
+        metrics.histogram("detector_step_seconds", "Per-window processing time by step", "step=\"capture\"",
+                closeLatency);
+        metrics.gauge("detector_live_flows", "Flows tracked across shards", null, () -> {
+            long n = 0;
+            for (FlowShard shard : shards) {
+                n += shard.getFlows();
+            }
+            return n;
+        });
+        for (FlowShard shard : shards) {
+            metrics.counter("detector_ring_drops_total", "Packets dropped at a full shard ring",
+                    "shard=\"" + shard.id + "\"", shard::getRingDrops);
+        }
+        if (readers == null && !replaying) {
+            metrics.counter("detector_kernel_drops_total", "Packets the kernel dropped (buffer full)",
+                    "interface=\"" + interfaceNames[0] + "\"", () -> Math.max(0, captureStats.getDropped()));
+        }
+        for (InterfaceReader reader : getInterfaces()) {
+            metrics.counter("detector_kernel_drops_total", "Packets the kernel dropped (buffer full)",
+                    "interface=\"" + reader.name + "\"", () -> Math.max(0, reader.getStats().getDropped()));
+        }
+    }
+
+    // Copy/drop counters of the single live handle; see getInterfaces() for several.
+    public CaptureStats getCaptureStats() {
+        return captureStats;
+    }
+
+    public long getPacketCount() {
+        long count = packetCount;
+        if (readers != null) {
+            for (InterfaceReader reader : readers) {
+                count += reader.getPackets();
+            }
+        }
+        return count;
+    }
+
+    // Packets of new flows dropped because a flow table was at its maxFlows share.
+    public long getShedPackets() {
+        long shed = 0;
+        for (FlowShard shard : shards) {
+            shed += shard.getShedPackets();
+        }
+        return shed;
+    }
+
+    // Inline (single-shard) use only, e.g. from benchmarks.
+    int flowCount() {
+        return shards[0].table.size();
+    }
+
+    void resetFlows() {
+        shards[0].clear();
+    }
+
+    public void close() {
+        closed = true;
+        if (readers != null) {
+            for (InterfaceReader reader : readers) {
+                if (reader != null)
+                    reader.stop();
+            }
+            // Readers leave the handle within one read timeout; let them before closing it.
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (InterfaceReader reader : readers) {
+                if (reader != null && reader.handle.isOpen())
+                    reader.handle.close();
+            }
+        }
+        if (shardThreads != null) {
+            for (FlowShard shard : shards) {
+                shard.stop();
+            }
+        }
+        if (handle != null && handle.isOpen()) {
+            handle.close();
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,98 @@
+import com.google.gson.*;
+import com.google.gson.stream.JsonWriter;
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+// Request/response encodings for predict_server.py.
+//
+// JSON (/predict): {"flows": [[...6 features...], ...]} -> {"predictions": [...], "scores": [...]}
+//
+// Binary (/predict_binary), all little-endian:
+//   request:  "FLWB" | u16 version | u16 features | u32 rows | rows*features float64, row-major
+//   response: "SCRB" | u16 version | u16 reserved | u32 rows | rows float64 scores | rows u8 predictions
+public class PredictionCodec {
+
+    public static final int BINARY_VERSION = 1;
+    public static final String BINARY_CONTENT_TYPE = "application/octet-stream";
+
+    private static final int REQUEST_MAGIC = 0x42574C46; // "FLWB" read little-endian
+    private static final int RESPONSE_MAGIC = 0x42524353; // "SCRB" read little-endian
+    private static final int HEADER_BYTES = 12;
+
+    private static final Gson GSON = new Gson();
+
+    public static byte[] encodeJson(FlowBatch flows, int from, int to) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (to - from) * 64);
+        try (JsonWriter out = new JsonWriter(new OutputStreamWriter(bytes, "utf-8"))) {
+            out.beginObject().name("flows").beginArray();
+            for (int i = from; i < to; i++) {
+                out.beginArray();
+                out.value(flows.duration[i]).value(flows.totalPkts[i]).value(flows.totalBytes[i])
+                        .value(flows.meanPktLen[i]).value(flows.pktRate[i]).value(flows.protocol[i]);
+                out.endArray();
+            }
+            out.endArray().endObject();
+        }
+        return bytes.toByteArray();
+    }
+
+    public static byte[] encodeBinary(FlowBatch flows, int from, int to) {
+        int rows = to - from;
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_BYTES + rows * FlowBatch.FEATURE_COUNT * 8)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(REQUEST_MAGIC).putShort((short) BINARY_VERSION).putShort((short) FlowBatch.FEATURE_COUNT)
+                .putInt(rows);
+        for (int i = from; i < to; i++) {
+            buf.putDouble(flows.duration[i]).putDouble(flows.totalPkts[i]).putDouble(flows.totalBytes[i])
+                    .putDouble(flows.meanPktLen[i]).putDouble(flows.pktRate[i]).putDouble(flows.protocol[i]);
+        }
+        return buf.array();
+    }
+
+    public static List<ThreatDetector.PredictionResult> decodeJson(byte[] body, int expected) throws IOException {
+        JsonObject response;
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(body), "utf-8")) {
+            response = GSON.fromJson(reader, JsonObject.class);
+        } catch (JsonParseException e) {
+            throw new IOException("Bad JSON response: " + e.getMessage());
+        }
+        if (response == null || !response.has("predictions"))
+            throw new IOException("No 'predictions' in response: " + response);
+
+        JsonArray predictions = response.getAsJsonArray("predictions");
+        JsonArray scores = response.has("scores") ? response.getAsJsonArray("scores") : null;
+        if (predictions.size() != expected)
+            throw new IOException("Expected " + expected + " predictions, got " + predictions.size());
+
+        List<ThreatDetector.PredictionResult> out = new ArrayList<>(predictions.size());
+        for (int i = 0; i < predictions.size(); i++) {
+            int pred = predictions.get(i).getAsInt();
+            double score = (scores != null && i < scores.size()) ? scores.get(i).getAsDouble() : pred;
+            out.add(new ThreatDetector.PredictionResult(pred, score));
+        }
+        return out;
+    }
+
+    public static List<ThreatDetector.PredictionResult> decodeBinary(byte[] body, int expected) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        if (body.length < HEADER_BYTES || buf.getInt() != RESPONSE_MAGIC)
+            throw new IOException("Not a binary score response (" + body.length + " bytes)");
+        int version = buf.getShort() & 0xFFFF;
+        if (version != BINARY_VERSION)
+            throw new IOException("Unsupported binary response version " + version);
+        buf.getShort();
+        int rows = buf.getInt();
+        if (rows != expected)
+            throw new IOException("Expected " + expected + " predictions, got " + rows);
+        if (body.length != HEADER_BYTES + rows * 9)
+            throw new IOException("Truncated binary response: " + body.length + " bytes for " + rows + " rows");
+
+        int predOffset = HEADER_BYTES + rows * 8;
+        List<ThreatDetector.PredictionResult> out = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            out.add(new ThreatDetector.PredictionResult(body[predOffset + i], buf.getDouble()));
+        }
+        return out;
+    }
+}
@@ -0,0 +1,171 @@
+// Reads the few header fields the detector needs straight out of a captured frame,
+// without building pcap4j's per-layer packet objects. One instance is reused for every
+// packet on a capture thread: parse() overwrites the public fields in place.
+public class RawPacketParser {
+
+    public static final int DLT_NULL = 0;
+    public static final int DLT_EN10MB = 1;
+    public static final int DLT_RAW = 12;
+    public static final int DLT_RAW_ALT = 14;
+    public static final int LINKTYPE_RAW = 101;
+    public static final int DLT_LOOP = 108;
+    public static final int DLT_LINUX_SLL = 113;
+    public static final int DLT_LINUX_SLL2 = 276;
+
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88A8;
+
+    private final int linkType;
+
+    public long srcHi, srcLo, dstHi, dstLo;
+    public int protocol;
+    public int srcPort;
+    public int dstPort;
+    public int ipLength;
+
+    public RawPacketParser(int linkType) {
+        this.linkType = linkType;
+    }
+
+    public static boolean isSupported(int linkType) {
+        switch (linkType) {
+            case DLT_NULL:
+            case DLT_EN10MB:
+            case DLT_RAW:
+            case DLT_RAW_ALT:
+            case LINKTYPE_RAW:
+            case DLT_LOOP:
+            case DLT_LINUX_SLL:
+            case DLT_LINUX_SLL2:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Returns false for anything that is not IPv4/IPv6 or is too short to read.
+    public boolean parse(byte[] frame, int length) {
+        int off;
+        switch (linkType) {
+            case DLT_EN10MB: {
+                if (length < 14)
+                    return false;
+                int etherType = u16(frame, 12);
+                off = 14;
+                while ((etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ) && off + 4 <= length) {
+                    etherType = u16(frame, off + 2);
+                    off += 4;
+                }
+                if (etherType != ETHERTYPE_IPV4 && etherType != ETHERTYPE_IPV6)
+                    return false;
+                break;
+            }
+            case DLT_NULL:
+            case DLT_LOOP:
+                // 4-byte address family whose byte order depends on the writer; the IP
+                // version nibble that follows is enough to tell v4 from v6.
+                off = 4;
+                break;
+            case DLT_LINUX_SLL:
+                if (length < 16)
+                    return false;
+                off = 16;
+                break;
+            case DLT_LINUX_SLL2:
+                if (length < 20)
+                    return false;
+                off = 20;
+                break;
+            case DLT_RAW:
+            case DLT_RAW_ALT:
+            case LINKTYPE_RAW:
+                off = 0;
+                break;
+            default:
+                return false;
+        }
+
+        if (off >= length)
+            return false;
+        int version = (frame[off] & 0xF0) >>> 4;
+        if (version == 4)
+            return parseIpv4(frame, off, length);
+        if (version == 6)
+            return parseIpv6(frame, off, length);
+        return false;
+    }
+
+    private boolean parseIpv4(byte[] b, int off, int length) {
+        if (off + 20 > length)
+            return false;
+        int ihl = (b[off] & 0x0F) * 4;
+        if (ihl < 20)
+            return false;
+        ipLength = u16(b, off + 2);
+        protocol = b[off + 9] & 0xFF;
+        srcHi = 0;
+        srcLo = FlowTable.ipv4Lo(u32(b, off + 12));
+        dstHi = 0;
+        dstLo = FlowTable.ipv4Lo(u32(b, off + 16));
+
+        // Only the first fragment carries the transport header.
+        boolean firstFragment = (u16(b, off + 6) & 0x1FFF) == 0;
+        readPorts(b, off + ihl, length, firstFragment);
+        return true;
+    }
+
+    private boolean parseIpv6(byte[] b, int off, int length) {
+        if (off + 40 > length)
+            return false;
+        ipLength = u16(b, off + 4) + 40;
+        srcHi = u64(b, off + 8);
+        srcLo = u64(b, off + 16);
+        dstHi = u64(b, off + 24);
+        dstLo = u64(b, off + 32);
+
+        int next = b[off + 6] & 0xFF;
+        int pos = off + 40;
+        boolean firstFragment = true;
+        // Walk hop-by-hop, routing, fragment and destination-options headers.
+        while (pos + 8 <= length) {
+            if (next == 0 || next == 43 || next == 60) {
+                int hdrLen = ((b[pos + 1] & 0xFF) + 1) * 8;
+                next = b[pos] & 0xFF;
+                pos += hdrLen;
+            } else if (next == 44) {
+                firstFragment = (u16(b, pos + 2) & 0xFFF8) == 0;
+                next = b[pos] & 0xFF;
+                pos += 8;
+            } else {
+                break;
+            }
+        }
+        protocol = next;
+        readPorts(b, pos, length, firstFragment);
+        return true;
+    }
+
+    private void readPorts(byte[] b, int pos, int length, boolean hasTransportHeader) {
+        if (hasTransportHeader && (protocol == 6 || protocol == 17 || protocol == 132) && pos + 4 <= length) {
+            srcPort = u16(b, pos);
+            dstPort = u16(b, pos + 2);
+        } else {
+            srcPort = 0;
+            dstPort = 0;
+        }
+    }
+
+    private static int u16(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 8) | (b[off + 1] & 0xFF);
+    }
+
+    private static int u32(byte[] b, int off) {
+        return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) | ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
+    }
+
+    private static long u64(byte[] b, int off) {
+        return ((long) u32(b, off) << 32) | (u32(b, off + 4) & 0xFFFFFFFFL);
+    }
+}
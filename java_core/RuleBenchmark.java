@@ -0,0 +1,80 @@
+import java.util.*;
+
+// Flows/sec and rule checks/sec of RuleEngine on a synthetic 100k-flow window, for the
+// batch path and the per-flow evaluate(double[]) path.
+// Run: java -cp "lib/*;." RuleBenchmark [flows]
+public class RuleBenchmark {
+
+    private static final long RUN_NANOS = 1_000_000_000L;
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        RuleEngine engine = new RuleEngine();
+        FlowBatch window = randomWindow(n, new Random(42));
+        RuleEngine.RuleResults results = engine.newResults(n);
+
+        batch(engine, window, results, RUN_NANOS / 2);
+        double batchWindows = batch(engine, window, results, RUN_NANOS);
+        perFlow(engine, window, RUN_NANOS / 2);
+        double perFlowWindows = perFlow(engine, window, RUN_NANOS);
+
+        int suspicious = 0;
+        for (int i = 0; i < n; i++) {
+            if (results.isSuspicious(i))
+                suspicious++;
+        }
+        System.out.printf("%d flows, %d rules, %d suspicious%n", n, engine.ruleCount(), suspicious);
+        System.out.printf("%-10s %14s %16s%n", "path", "flows/s", "rules/s");
+        System.out.printf("%-10s %14.0f %16.0f%n", "batch", batchWindows * n, batchWindows * n * engine.ruleCount());
+        System.out.printf("%-10s %14.0f %16.0f%n", "per-flow", perFlowWindows * n,
+                perFlowWindows * n * engine.ruleCount());
+    }
+
+    private static double batch(RuleEngine engine, FlowBatch window, RuleEngine.RuleResults results, long nanos) {
+        long windows = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            engine.evaluateBatch(window, results);
+            windows++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        return windows / (elapsed / 1e9);
+    }
+
+    private static double perFlow(RuleEngine engine, FlowBatch window, long nanos) {
+        double[][] rows = new double[window.size()][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = window.row(i);
+        }
+        long windows = 0;
+        long suspicious = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for (double[] row : rows) {
+                if (engine.evaluate(row).isSuspicious)
+                    suspicious++;
+            }
+            windows++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        if (suspicious < 0)
+            throw new IllegalStateException();
+        return windows / (elapsed / 1e9);
+    }
+
+    // Mostly benign traffic with a few percent of floods and bursts mixed in.
+    private static FlowBatch randomWindow(int n, Random rnd) {
+        FlowBatch window = new FlowBatch(n);
+        double[] protocols = { 6, 17, 1 };
+        for (int i = 0; i < n; i++) {
+            double duration = 0.5 + rnd.nextDouble() * 10;
+            double pkts = rnd.nextDouble() < 0.05 ? 500 + rnd.nextInt(5000) : 1 + rnd.nextInt(200);
+            double meanLen = 40 + rnd.nextInt(1460);
+            double bytes = pkts * meanLen;
+            window.add(duration, pkts, bytes, meanLen, pkts / duration, protocols[rnd.nextInt(3)]);
+        }
+        return window;
+    }
+}
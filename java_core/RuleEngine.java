@@ -1,11 +1,29 @@
 import java.util.*;
 
+// Heuristic rules compiled from a table into flat primitive arrays. A rule is a protocol
+// filter plus a conjunction of feature comparisons; rules sharing a group form an
+// if/else-if chain where only the first match counts. Whole batches are evaluated rule by
+// rule into severity codes and reason bitmasks, and reason strings are only produced for
+// flows that are actually reported.
 public class RuleEngine {
 
     public enum Severity {
         LOW, MEDIUM, HIGH, CRITICAL
     }
 
+    private static final Severity[] SEVERITIES = Severity.values();
+    public static final int MAX_RULES = 64;
+    private static final int MAX_GROUPS = 32;
+
+    private static final int OP_GT = 0, OP_GE = 1, OP_LT = 2, OP_LE = 3, OP_EQ = 4;
+    private static final int ANY_PROTOCOL = -1;
+    // Rows evaluated against every rule before moving on, so their columns stay in L1.
+    private static final int BLOCK_ROWS = 1024;
+    private static final Set<String> SOURCE_FEATURES = new HashSet<>(Arrays.asList(
+            "src_pkt_rate", "src_ports", "src_peers", "src_rate_z", "src_bytes_z", "src_flows_z"));
+    private static final Set<String> DESTINATION_FEATURES = new HashSet<>(Arrays.asList(
+            "dst_peers", "dst_rate_z", "dst_bytes_z", "dst_flows_z"));
+
     public static class RuleResult {
         public final boolean isSuspicious;
         public final List<String> reasons;
@@ -18,71 +36,459 @@ public class RuleEngine {
         }
     }
 
-    public RuleResult evaluate(double[] f) {
-        List<String> reasons = new ArrayList<>();
-        Severity maxSeverity = Severity.LOW;
-
-        double duration = f[0];
-        double totalPkts = f[1];
-        double totalBytes = f[2];
-        double meanPktLen = f[3];
-        double pktRate = f[4];
-        double protocol = f[5];
-
-        if (pktRate > 100) {
-            reasons.add("CRITICAL: Extreme packet rate (likely DDoS)");
-            maxSeverity = updateSeverity(maxSeverity, Severity.CRITICAL);
-        } else if (pktRate > 80 && duration > 5) {
-            reasons.add("HIGH: Sustained high packet rate (possible DoS)");
-            maxSeverity = updateSeverity(maxSeverity, Severity.HIGH);
-        } else if (pktRate > 70 && duration > 2) {
-            reasons.add("MEDIUM: Elevated packet rate (suspicious)");
-            maxSeverity = updateSeverity(maxSeverity, Severity.MEDIUM);
-        }
-
-        if (totalBytes > 50_000_000 && meanPktLen > 1400) {
-            reasons.add("HIGH: Massive data transfer with large packets (exfiltration)");
-            maxSeverity = updateSeverity(maxSeverity, Severity.HIGH);
-        } else if (totalBytes > 10_000_000 && duration < 10) {
-            reasons.add("MEDIUM: Large rapid transfer (suspicious)");
-            maxSeverity = updateSeverity(maxSeverity, Severity.MEDIUM);
-        }
-
-        if (totalPkts > 1000 && duration <= 10) {
-            reasons.add("HIGH: Large packet burst (scan/flood)");
-            maxSeverity = updateSeverity(maxSeverity, Severity.HIGH);
-        } else if (totalPkts > 500 && duration <= 10) {
-            reasons.add("MEDIUM: Rapid packet burst (scan)");
-            maxSeverity = updateSeverity(maxSeverity, Severity.MEDIUM);
-        }
-
-        if (protocol == 1) { // ICMP
-            if (pktRate > 30) {
-                reasons.add("HIGH: ICMP flood detected");
-                maxSeverity = updateSeverity(maxSeverity, Severity.HIGH);
-            } else if (pktRate > 10) {
-                reasons.add("MEDIUM: Elevated ICMP traffic");
-                maxSeverity = updateSeverity(maxSeverity, Severity.MEDIUM);
+    // One rule as written in config.json under rules.table.
+    public static class Rule {
+        public String group;
+        public String severity;
+        public String reason;
+        public String protocol;
+        public Condition[] when;
+
+        public Rule() {
+        }
+
+        Rule(String group, Severity severity, String reason, String protocol, Condition... when) {
+            this.group = group;
+            this.severity = severity.name();
+            this.reason = reason;
+            this.protocol = protocol;
+            this.when = when;
+        }
+    }
+
+    public static class Condition {
+        public String feature;
+        public String op;
+        public double value;
+
+        public Condition() {
+        }
+
+        Condition(String feature, String op, double value) {
+            this.feature = feature;
+            this.op = op;
+            this.value = value;
+        }
+    }
+
+    // Rule output for a batch: severity ordinal and matched-rule bitmask per flow. The
+    // arrays are sized once and reused across evaluateBatch calls.
+    public static class RuleResults {
+        private final RuleEngine engine;
+        private byte[] severity;
+        private long[] reasons;
+        // Scratch row list for evaluateBatch.
+        private int[] candidates;
+        private int size;
+
+        RuleResults(RuleEngine engine, int capacity) {
+            this.engine = engine;
+            severity = new byte[capacity];
+            reasons = new long[capacity];
+            candidates = new int[Math.min(capacity, BLOCK_ROWS)];
+        }
+
+        void reset(int n) {
+            if (severity.length < n) {
+                severity = new byte[n];
+                reasons = new long[n];
+            }
+            if (candidates.length < Math.min(n, BLOCK_ROWS)) {
+                candidates = new int[Math.min(n, BLOCK_ROWS)];
+            }
+            Arrays.fill(severity, 0, n, (byte) 0);
+            Arrays.fill(reasons, 0, n, 0L);
+            size = n;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isSuspicious(int i) {
+            return reasons[i] != 0;
+        }
+
+        public Severity severity(int i) {
+            return SEVERITIES[severity[i]];
+        }
+
+        public long reasonMask(int i) {
+            return reasons[i];
+        }
+
+        public List<String> reasons(int i) {
+            return engine.reasonsOf(reasons[i]);
+        }
+
+        public String describe(int i) {
+            return String.join("; ", reasons(i));
+        }
+    }
+
+    // Compiled table. Conditions of rule r are condFeature/condOp/condValue[condStart[r] .. condStart[r + 1]).
+    private final int ruleCount;
+    private final int[] ruleGroup;
+    // Bits of every rule in the same group as r; a match on any of them excludes r.
+    private final long[] ruleExcludes;
+    private final int[] ruleProtocol;
+    private final byte[] ruleSeverity;
+    private final String[] ruleReason;
+    private final int[] condStart;
+    private final int[] condFeature;
+    private final int[] condOp;
+    private final double[] condValue;
+    // Rules that only test window-wide estimates of the flow's source (or destination):
+    // they match every flow of that host, so only its first flow in a batch keeps them.
+    private final long srcHostRules, dstHostRules;
+
+    public RuleEngine() {
+        this((Config.Rules) null);
+    }
+
+    // rules.table replaces the built-in table; otherwise icmpRate, synRate, burstPkts,
+    // scanPorts, sweepPeers, floodSources and baselineZ (when set) retune the matching rules.
+    public RuleEngine(Config.Rules cfg) {
+        this(cfg != null && cfg.table != null && !cfg.table.isEmpty() ? cfg.table : defaultRules(cfg));
+    }
+
+    public RuleEngine(List<Rule> rules) {
+        if (rules.size() > MAX_RULES)
+            throw new IllegalArgumentException("At most " + MAX_RULES + " rules are supported, got " + rules.size());
+
+        ruleCount = rules.size();
+        ruleGroup = new int[ruleCount];
+        ruleProtocol = new int[ruleCount];
+        ruleSeverity = new byte[ruleCount];
+        ruleReason = new String[ruleCount];
+        condStart = new int[ruleCount + 1];
+
+        int conds = 0;
+        for (Rule rule : rules) {
+            conds += rule.when != null ? rule.when.length : 0;
+        }
+        condFeature = new int[conds];
+        condOp = new int[conds];
+        condValue = new double[conds];
+
+        Map<String, Integer> groups = new HashMap<>();
+        int c = 0;
+        for (int r = 0; r < ruleCount; r++) {
+            Rule rule = rules.get(r);
+            String group = rule.group != null ? rule.group : "#" + r;
+            Integer g = groups.get(group);
+            if (g == null) {
+                g = groups.size();
+                if (g >= MAX_GROUPS)
+                    throw new IllegalArgumentException("At most " + MAX_GROUPS + " rule groups are supported");
+                groups.put(group, g);
+            }
+            Severity severity = Severity.valueOf(rule.severity.toUpperCase());
+            ruleGroup[r] = g;
+            ruleSeverity[r] = (byte) severity.ordinal();
+            ruleProtocol[r] = rule.protocol == null || rule.protocol.isEmpty() ? ANY_PROTOCOL
+                    : FeatureExtractor.protocolCode(rule.protocol);
+            ruleReason[r] = severity + ": " + rule.reason;
+
+            condStart[r] = c;
+            if (rule.when != null) {
+                for (Condition cond : rule.when) {
+                    condFeature[c] = featureIndex(cond.feature);
+                    condOp[c] = opCode(cond.op);
+                    condValue[c] = cond.value;
+                    c++;
+                }
             }
-        } else if (protocol == 6) { // TCP
-            if (meanPktLen < 60 && pktRate > 100) {
-                reasons.add("CRITICAL: SYN flood attack pattern");
-                maxSeverity = updateSeverity(maxSeverity, Severity.CRITICAL);
-            } else if (meanPktLen < 60 && pktRate > 70) {
-                reasons.add("HIGH: Possible SYN flood");
-                maxSeverity = updateSeverity(maxSeverity, Severity.HIGH);
+        }
+        condStart[ruleCount] = c;
+
+        ruleExcludes = new long[ruleCount];
+        long srcRules = 0, dstRules = 0;
+        for (int r = 0; r < ruleCount; r++) {
+            for (int o = 0; o < ruleCount; o++) {
+                if (ruleGroup[o] == ruleGroup[r])
+                    ruleExcludes[r] |= 1L << o;
+            }
+            boolean src = condStart[r + 1] > condStart[r], dst = src;
+            for (int k = condStart[r]; k < condStart[r + 1]; k++) {
+                String name = FlowBatch.RULE_FEATURE_NAMES[condFeature[k]];
+                src &= SOURCE_FEATURES.contains(name);
+                dst &= DESTINATION_FEATURES.contains(name);
+            }
+            if (src)
+                srcRules |= 1L << r;
+            if (dst)
+                dstRules |= 1L << r;
+        }
+        srcHostRules = srcRules;
+        dstHostRules = dstRules;
+    }
+
+    static List<Rule> defaultRules(Config.Rules cfg) {
+        double icmpRate = cfg != null && cfg.icmpRate > 0 ? cfg.icmpRate : 30;
+        double synRate = cfg != null && cfg.synRate > 0 ? cfg.synRate : 100;
+        double burstPkts = cfg != null && cfg.burstPkts > 0 ? cfg.burstPkts : 1000;
+        double scanPorts = cfg != null && cfg.scanPorts > 0 ? cfg.scanPorts : 100;
+        double sweepPeers = cfg != null && cfg.sweepPeers > 0 ? cfg.sweepPeers : 100;
+        double floodSources = cfg != null && cfg.floodSources > 0 ? cfg.floodSources : 500;
+        double baselineZ = cfg != null && cfg.baselineZ > 0 ? cfg.baselineZ : 6;
+
+        List<Rule> rules = new ArrayList<>();
+        rules.add(new Rule("rate", Severity.CRITICAL, "Extreme packet rate (likely DDoS)", null,
+                new Condition("pkt_rate", ">", 100)));
+        rules.add(new Rule("rate", Severity.HIGH, "Sustained high packet rate (possible DoS)", null,
+                new Condition("pkt_rate", ">", 80), new Condition("duration", ">", 5)));
+        rules.add(new Rule("rate", Severity.MEDIUM, "Elevated packet rate (suspicious)", null,
+                new Condition("pkt_rate", ">", 70), new Condition("duration", ">", 2)));
+
+        rules.add(new Rule("volume", Severity.HIGH, "Massive data transfer with large packets (exfiltration)", null,
+                new Condition("total_bytes", ">", 50_000_000), new Condition("mean_pkt_len", ">", 1400)));
+        rules.add(new Rule("volume", Severity.MEDIUM, "Large rapid transfer (suspicious)", null,
+                new Condition("total_bytes", ">", 10_000_000), new Condition("duration", "<", 10)));
+
+        rules.add(new Rule("burst", Severity.HIGH, "Large packet burst (scan/flood)", null,
+                new Condition("total_pkts", ">", burstPkts), new Condition("duration", "<=", 10)));
+        rules.add(new Rule("burst", Severity.MEDIUM, "Rapid packet burst (scan)", null,
+                new Condition("total_pkts", ">", burstPkts / 2), new Condition("duration", "<=", 10)));
+
+        rules.add(new Rule("protocol", Severity.HIGH, "ICMP flood detected", "ICMP",
+                new Condition("pkt_rate", ">", icmpRate)));
+        rules.add(new Rule("protocol", Severity.MEDIUM, "Elevated ICMP traffic", "ICMP",
+                new Condition("pkt_rate", ">", icmpRate / 3)));
+        rules.add(new Rule("protocol", Severity.CRITICAL, "SYN flood attack pattern", "TCP",
+                new Condition("mean_pkt_len", "<", 60), new Condition("pkt_rate", ">", synRate)));
+        rules.add(new Rule("protocol", Severity.HIGH, "Possible SYN flood", "TCP",
+                new Condition("mean_pkt_len", "<", 60), new Condition("pkt_rate", ">", synRate * 7 / 10)));
+        rules.add(new Rule("protocol", Severity.HIGH, "UDP amplification pattern", "UDP",
+                new Condition("pkt_rate", ">", 30), new Condition("mean_pkt_len", "<", 100)));
+
+        // Sketch estimates over the whole window, so they hold even when flows are shed.
+        rules.add(new Rule("scan", Severity.HIGH, "Port scan (many destination ports from one source)", null,
+                new Condition("src_ports", ">", scanPorts)));
+        rules.add(new Rule("scan", Severity.MEDIUM, "Possible port scan", null,
+                new Condition("src_ports", ">", scanPorts / 4)));
+        rules.add(new Rule("sweep", Severity.HIGH, "Host sweep (many peers from one source)", null,
+                new Condition("src_peers", ">", sweepPeers)));
+        rules.add(new Rule("distributed", Severity.CRITICAL, "Distributed flood (many sources to one destination)",
+                null, new Condition("dst_peers", ">", floodSources)));
+
+        // Host baselines: this window against the host's own history, not a fixed limit.
+        rules.add(new Rule("baseline_src", Severity.HIGH, "Source opening far more flows than usual", null,
+                new Condition("src_flows_z", ">", baselineZ), new Condition("src_rate_z", ">", baselineZ / 2)));
+        rules.add(new Rule("baseline_src", Severity.MEDIUM, "Source traffic above its baseline", null,
+                new Condition("src_rate_z", ">", baselineZ)));
+        rules.add(new Rule("baseline_dst", Severity.HIGH, "Destination load far above its baseline", null,
+                new Condition("dst_rate_z", ">", baselineZ), new Condition("dst_flows_z", ">", baselineZ / 2)));
+        rules.add(new Rule("baseline_dst", Severity.MEDIUM, "Destination traffic above its baseline", null,
+                new Condition("dst_bytes_z", ">", baselineZ)));
+        return rules;
+    }
+
+    public int ruleCount() {
+        return ruleCount;
+    }
+
+    public RuleResults newResults(int capacity) {
+        return new RuleResults(this, capacity);
+    }
+
+    // Evaluates every flow in the batch into out, reusing its arrays. Within each block of
+    // rows, every rule narrows a list of candidate rows one condition at a time, so the
+    // operator is resolved once per condition rather than once per row.
+    public RuleResults evaluateBatch(FlowBatch batch, RuleResults out) {
+        int n = batch.size();
+        out.reset(n);
+        double[][] columns = { batch.duration, batch.totalPkts, batch.totalBytes, batch.meanPktLen,
+                batch.pktRate, batch.protocol, batch.srcPktRate, batch.srcPorts, batch.srcPeers, batch.dstPeers,
+                batch.srcRateZ, batch.srcBytesZ, batch.srcFlowsZ, batch.dstRateZ, batch.dstBytesZ, batch.dstFlowsZ };
+        double[] protocol = batch.protocol;
+        byte[] severity = out.severity;
+        long[] reasons = out.reasons;
+        int[] rows = out.candidates;
+
+        for (int start = 0; start < n; start += BLOCK_ROWS) {
+            int end = Math.min(n, start + BLOCK_ROWS);
+            for (int r = 0; r < ruleCount; r++) {
+                long excludes = ruleExcludes[r];
+                int proto = ruleProtocol[r];
+                int m = 0;
+                for (int i = start; i < end; i++) {
+                    rows[m] = i;
+                    m += (reasons[i] & excludes) == 0 && (proto == ANY_PROTOCOL || protocol[i] == proto) ? 1 : 0;
+                }
+                for (int c = condStart[r]; c < condStart[r + 1] && m > 0; c++) {
+                    m = filter(columns[condFeature[c]], condOp[c], condValue[c], rows, m);
+                }
+                long bit = 1L << r;
+                byte sev = ruleSeverity[r];
+                for (int k = 0; k < m; k++) {
+                    int i = rows[k];
+                    reasons[i] |= bit;
+                    if (sev > severity[i])
+                        severity[i] = sev;
+                }
+            }
+        }
+        if (srcHostRules != 0)
+            keepFirstPerHost(srcHostRules, batch.srcHi, batch.srcLo, n, reasons, severity);
+        if (dstHostRules != 0)
+            keepFirstPerHost(dstHostRules, batch.dstHi, batch.dstLo, n, reasons, severity);
+        return out;
+    }
+
+    // Clears host rules from every row but the host's first one that matched them, so a
+    // scan reports once per source per window rather than once per flow. Rows without an
+    // address (CSV input) are left alone.
+    private void keepFirstPerHost(long hostRules, long[] hi, long[] lo, int n, long[] reasons, byte[] severity) {
+        int matched = 0;
+        for (int i = 0; i < n; i++) {
+            if ((reasons[i] & hostRules) != 0)
+                matched++;
+        }
+        if (matched < 2)
+            return;
+        int mask = Integer.highestOneBit(matched * 2 - 1) * 2 - 1;
+        long[] keyHi = new long[mask + 1], keyLo = new long[mask + 1], reported = new long[mask + 1];
+        boolean[] used = new boolean[mask + 1];
+        for (int i = 0; i < n; i++) {
+            long fired = reasons[i] & hostRules;
+            if (fired == 0 || hi[i] == 0 && lo[i] == 0)
+                continue;
+            long h = (hi[i] * 0x9E3779B97F4A7C15L ^ lo[i]) * 0x9E3779B97F4A7C15L;
+            int s = (int) (h ^ (h >>> 32)) & mask;
+            while (used[s] && (keyHi[s] != hi[i] || keyLo[s] != lo[i])) {
+                s = (s + 1) & mask;
             }
-        } else if (protocol == 17) { // UDP
-            if (pktRate > 30 && meanPktLen < 100) {
-                reasons.add("HIGH: UDP amplification pattern");
-                maxSeverity = updateSeverity(maxSeverity, Severity.HIGH);
+            used[s] = true;
+            keyHi[s] = hi[i];
+            keyLo[s] = lo[i];
+            long repeat = reported[s] & fired;
+            reported[s] |= fired;
+            if (repeat != 0) {
+                reasons[i] &= ~repeat;
+                severity[i] = severityOf(reasons[i]);
             }
         }
+    }
+
+    private byte severityOf(long mask) {
+        byte sev = 0;
+        for (long m = mask; m != 0; m &= m - 1) {
+            sev = (byte) Math.max(sev, ruleSeverity[Long.numberOfTrailingZeros(m)]);
+        }
+        return sev;
+    }
 
-        return new RuleResult(!reasons.isEmpty(), reasons, maxSeverity);
+    // Keeps the rows whose value passes the comparison, compacting them to the front.
+    private static int filter(double[] column, int op, double threshold, int[] rows, int m) {
+        int kept = 0;
+        switch (op) {
+            case OP_GT:
+                for (int k = 0; k < m; k++) {
+                    int i = rows[k];
+                    rows[kept] = i;
+                    kept += column[i] > threshold ? 1 : 0;
+                }
+                break;
+            case OP_GE:
+                for (int k = 0; k < m; k++) {
+                    int i = rows[k];
+                    rows[kept] = i;
+                    kept += column[i] >= threshold ? 1 : 0;
+                }
+                break;
+            case OP_LT:
+                for (int k = 0; k < m; k++) {
+                    int i = rows[k];
+                    rows[kept] = i;
+                    kept += column[i] < threshold ? 1 : 0;
+                }
+                break;
+            case OP_LE:
+                for (int k = 0; k < m; k++) {
+                    int i = rows[k];
+                    rows[kept] = i;
+                    kept += column[i] <= threshold ? 1 : 0;
+                }
+                break;
+            default:
+                for (int k = 0; k < m; k++) {
+                    int i = rows[k];
+                    rows[kept] = i;
+                    kept += column[i] == threshold ? 1 : 0;
+                }
+        }
+        return kept;
     }
 
-    private Severity updateSeverity(Severity current, Severity candidate) {
-        return candidate.ordinal() > current.ordinal() ? candidate : current;
+    // Per-flow form for callers outside the batch path. f holds the model features and,
+    // optionally, the sketch and baseline columns; missing ones read as 0.
+    public RuleResult evaluate(double[] f) {
+        long mask = 0;
+        byte sev = 0;
+        for (int r = 0; r < ruleCount; r++) {
+            if ((mask & ruleExcludes[r]) != 0)
+                continue;
+            if (ruleProtocol[r] != ANY_PROTOCOL && f[5] != ruleProtocol[r])
+                continue;
+            boolean match = true;
+            for (int c = condStart[r]; c < condStart[r + 1] && match; c++) {
+                int feature = condFeature[c];
+                match = test(feature < f.length ? f[feature] : 0, condOp[c], condValue[c]);
+            }
+            if (match) {
+                mask |= 1L << r;
+                sev = (byte) Math.max(sev, ruleSeverity[r]);
+            }
+        }
+        return new RuleResult(mask != 0, reasonsOf(mask), SEVERITIES[sev]);
+    }
+
+    List<String> reasonsOf(long mask) {
+        List<String> reasons = new ArrayList<>(Long.bitCount(mask));
+        for (long m = mask; m != 0; m &= m - 1) {
+            reasons.add(ruleReason[Long.numberOfTrailingZeros(m)]);
+        }
+        return reasons;
+    }
+
+    private static boolean test(double v, int op, double threshold) {
+        switch (op) {
+            case OP_GT:
+                return v > threshold;
+            case OP_GE:
+                return v >= threshold;
+            case OP_LT:
+                return v < threshold;
+            case OP_LE:
+                return v <= threshold;
+            default:
+                return v == threshold;
+        }
+    }
+
+    private static int featureIndex(String name) {
+        for (int f = 0; f < FlowBatch.RULE_FEATURE_NAMES.length; f++) {
+            if (FlowBatch.RULE_FEATURE_NAMES[f].equals(name))
+                return f;
+        }
+        throw new IllegalArgumentException("Unknown rule feature: " + name);
+    }
+
+    private static int opCode(String op) {
+        switch (op) {
+            case ">":
+                return OP_GT;
+            case ">=":
+                return OP_GE;
+            case "<":
+                return OP_LT;
+            case "<=":
+                return OP_LE;
+            case "==":
+                return OP_EQ;
+            default:
+                throw new IllegalArgumentException("Unknown rule operator: " + op);
+        }
     }
 }
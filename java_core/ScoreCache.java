@@ -0,0 +1,268 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+// Remembers model scores for recently seen feature vectors, so a window of mostly
+// repeated benign flows only sends the flows it has not seen before to the model.
+// Vectors are quantized first: each numeric feature goes into a log-scale bucket
+// (steps per doubling, ~4% wide at 16) and the protocol is kept exactly, so the key is
+// one long. Flows in the same bucket share a score, including the model's small-flow
+// suppression, which is the accuracy traded for the hit rate.
+//
+// Eviction is LRU behind a TinyLFU admission filter: when the cache is full, a new key
+// only replaces the least recently used one if it has been seen more often, so a flood
+// of one-off vectors (a scan, a SYN flood with random sizes) cannot flush the steady
+// benign set. Entries expire after ttlMillis, and everything is dropped when the model
+// behind the cache changes (FlowScorer.modelVersion).
+public class ScoreCache implements FlowScorer {
+
+    public static final int DEFAULT_CAPACITY = 65_536;
+    public static final int DEFAULT_TTL_SECONDS = 300;
+    public static final int DEFAULT_STEPS = 16;
+
+    private static final int BUCKET_BITS = 10;
+    private static final long MAX_BUCKET = (1 << BUCKET_BITS) - 1;
+
+    private static class Entry {
+        final ThreatDetector.PredictionResult result;
+        final long expires;
+
+        Entry(ThreatDetector.PredictionResult result, long expires) {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+
+    private final FlowScorer model;
+    private final int capacity;
+    private final long ttlMillis;
+    private final double scale;
+    // Access order, so the first entry is always the least recently used.
+    private final LinkedHashMap<Long, Entry> entries;
+    private final FrequencySketch frequency;
+    private long version;
+    private FlowBatch misses = new FlowBatch(1024);
+
+    private volatile int size;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong missed = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+
+    public ScoreCache(FlowScorer model, int capacity, long ttlMillis, int steps) {
+        this.model = model;
+        this.capacity = Math.max(1, capacity);
+        this.ttlMillis = ttlMillis;
+        this.scale = Math.max(1, steps) / Math.log(2);
+        this.entries = new LinkedHashMap<>(Math.min(this.capacity, 1 << 16), 0.75f, true);
+        this.frequency = new FrequencySketch(this.capacity);
+        this.version = model.modelVersion();
+    }
+
+    // The model itself when the block disables the cache; defaults when it is missing.
+    public static FlowScorer wrap(FlowScorer model, Config.Cache cfg) {
+        if (cfg == null)
+            return new ScoreCache(model, DEFAULT_CAPACITY, DEFAULT_TTL_SECONDS * 1000L, DEFAULT_STEPS);
+        if (cfg.disabled)
+            return model;
+        return new ScoreCache(model,
+                cfg.capacity > 0 ? cfg.capacity : DEFAULT_CAPACITY,
+                (cfg.ttlSeconds > 0 ? cfg.ttlSeconds : DEFAULT_TTL_SECONDS) * 1000L,
+                cfg.steps > 0 ? cfg.steps : DEFAULT_STEPS);
+    }
+
+    @Override
+    public List<ThreatDetector.PredictionResult> predictBatch(FlowBatch flows) throws IOException {
+        int n = flows.size();
+        long now = System.currentTimeMillis();
+        // Before any lookup, so a window of nothing but hits still picks up a new model
+        // and drops the old model's scores.
+        model.reloadIfChanged();
+        checkVersion();
+
+        ThreatDetector.PredictionResult[] out = new ThreatDetector.PredictionResult[n];
+        long[] keys = new long[n];
+        // Key -> row in the miss batch, so a vector repeated within the window is scored once.
+        Map<Long, Integer> pending = new HashMap<>();
+        int[] missRow = new int[n];
+        if (misses.capacity() < n)
+            misses = new FlowBatch(n);
+        misses.clear();
+
+        for (int i = 0; i < n; i++) {
+            long key = key(flows, i);
+            keys[i] = key;
+            frequency.increment(key);
+            Entry e = entries.get(key);
+            if (e != null && e.expires > now) {
+                out[i] = e.result;
+                continue;
+            }
+            Integer row = pending.get(key);
+            if (row == null) {
+                row = misses.add(flows.duration[i], flows.totalPkts[i], flows.totalBytes[i], flows.meanPktLen[i],
+                        flows.pktRate[i], flows.protocol[i]);
+                pending.put(key, row);
+            }
+            missRow[i] = row;
+        }
+
+        List<ThreatDetector.PredictionResult> scored = misses.isEmpty() ? Collections.emptyList()
+                : model.predictBatch(misses);
+        // A model reloaded during that call makes everything cached so far stale.
+        checkVersion();
+        int hit = 0;
+        for (int i = 0; i < n; i++) {
+            if (out[i] != null) {
+                hit++;
+                continue;
+            }
+            out[i] = scored.get(missRow[i]);
+            if (pending.remove(keys[i]) != null)
+                put(keys[i], out[i], now);
+        }
+        hits.addAndGet(hit);
+        missed.addAndGet(n - hit);
+        size = entries.size();
+        return Arrays.asList(out);
+    }
+
+    @Override
+    public void reloadIfChanged() {
+        model.reloadIfChanged();
+    }
+
+    private void checkVersion() {
+        long v = model.modelVersion();
+        if (v != version) {
+            version = v;
+            entries.clear();
+            resets.incrementAndGet();
+        }
+    }
+
+    private void put(long key, ThreatDetector.PredictionResult result, long now) {
+        Entry entry = new Entry(result, now + ttlMillis);
+        if (entries.containsKey(key) || entries.size() < capacity) {
+            entries.put(key, entry);
+            return;
+        }
+        Iterator<Map.Entry<Long, Entry>> it = entries.entrySet().iterator();
+        Map.Entry<Long, Entry> victim = it.next();
+        if (victim.getValue().expires > now && frequency.estimate(key) <= frequency.estimate(victim.getKey())) {
+            rejected.incrementAndGet();
+            return;
+        }
+        it.remove();
+        evictions.incrementAndGet();
+        entries.put(key, entry);
+    }
+
+    // Five 10-bit log buckets for the numeric features, then the protocol in the low byte.
+    long key(FlowBatch flows, int i) {
+        long k = bucket(flows.duration[i]);
+        k = k << BUCKET_BITS | bucket(flows.totalPkts[i]);
+        k = k << BUCKET_BITS | bucket(flows.totalBytes[i]);
+        k = k << BUCKET_BITS | bucket(flows.meanPktLen[i]);
+        k = k << BUCKET_BITS | bucket(flows.pktRate[i]);
+        return k << 8 | ((int) flows.protocol[i] & 0xFF);
+    }
+
+    private long bucket(double v) {
+        if (!(v > 0))
+            return 0;
+        return Math.min(MAX_BUCKET, Math.round(Math.log1p(v) * scale));
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return missed.get();
+    }
+
+    @Override
+    public long modelVersion() {
+        return model.modelVersion();
+    }
+
+    @Override
+    public void registerMetrics(Metrics metrics) {
+        String help = "Score cache lookups by result";
+        metrics.counter("detector_score_cache_lookups_total", help, "result=\"hit\"", hits::get);
+        metrics.counter("detector_score_cache_lookups_total", help, "result=\"miss\"", missed::get);
+        metrics.gauge("detector_score_cache_entries", "Feature vectors in the score cache", null, () -> size);
+        metrics.counter("detector_score_cache_evictions_total", "Entries evicted for more frequent vectors", null,
+                evictions::get);
+        metrics.counter("detector_score_cache_rejected_total", "Vectors not admitted over a more frequent entry",
+                null, rejected::get);
+        metrics.counter("detector_score_cache_resets_total", "Cache flushes after a model reload", null,
+                resets::get);
+        model.registerMetrics(metrics);
+    }
+
+    @Override
+    public String stats() {
+        long h = hits.get(), m = missed.get();
+        String line = String.format("Cache hits=%d misses=%d (%.1f%%) entries=%d evicted=%d rejected=%d", h, m,
+                h + m > 0 ? 100.0 * h / (h + m) : 0, size, evictions.get(), rejected.get());
+        String inner = model.stats();
+        return inner != null ? line + "\n  " + inner : line;
+    }
+
+    // TinyLFU's popularity estimate: a count-min sketch of 4-bit counters (kept in
+    // bytes) that are all halved every 10 x capacity increments, so old popularity fades.
+    private static class FrequencySketch {
+        private static final int DEPTH = 4;
+        private static final long[] SEEDS = { 0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L,
+                0xD6E8FEB86659FD93L };
+
+        private final byte[][] counts = new byte[DEPTH][];
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity - 1)) << 1;
+            for (int d = 0; d < DEPTH; d++) {
+                counts[d] = new byte[width];
+            }
+            mask = width - 1;
+            sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * capacity);
+        }
+
+        void increment(long key) {
+            boolean added = false;
+            for (int d = 0; d < DEPTH; d++) {
+                int slot = index(key, d);
+                if (counts[d][slot] < 15) {
+                    counts[d][slot]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                additions = 0;
+                for (byte[] row : counts) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>= 1;
+                    }
+                }
+            }
+        }
+
+        int estimate(long key) {
+            int min = 15;
+            for (int d = 0; d < DEPTH; d++) {
+                min = Math.min(min, counts[d][index(key, d)]);
+            }
+            return min;
+        }
+
+        private int index(long key, int d) {
+            long h = (key ^ SEEDS[d]) * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ h >>> 32) & mask;
+        }
+    }
+}
@@ -0,0 +1,521 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+// Fast restart for live capture. Every intervalSeconds, at a window close, capture copies
+// its flow tables and host baselines into plain arrays on the threads that own them (a
+// memory copy, a few milliseconds) and hands the copy to a background thread. That thread
+// writes it sequentially to a temporary file, fsyncs it and renames it over the previous
+// snapshot, so a crash mid-write still leaves the last good one. On shutdown a final
+// snapshot is written once capture has stopped. On startup the file is mapped, checked and
+// put back before capture starts, so flows keep their totals and hosts their baselines;
+// flows that would have timed out during the downtime are skipped.
+//
+// Flow times are stored as ages before the snapshot was taken, plus the wall clock time
+// it was taken, because live capture times come from System.nanoTime(), whose origin
+// changes with every JVM.
+//
+// Layout, big-endian and column by column, so both directions are bulk array copies:
+//   header:    magic "NTDS" i32 | version i32 | taken at wall millis i64 | windowSeconds i32
+//   flows:     count n i32, then columns of n: srcHi srcLo dstHi dstLo meta bytes
+//              first-seen age ns, last-seen age ns (i64) | packets rate prev rate cur (i32)
+//   baselines: present u8; if 1: window i32, then sources and destinations, each count n
+//              i32, then columns: hi lo (i64) | idle windows, seen (i32) | mean, var (3n f32)
+//   trailer:   CRC32 of everything before it, i64
+// A file with another magic or version, a bad checksum or a truncated body is rejected
+// as a whole, and the detector starts cold.
+public class StateSnapshots {
+
+    public static final int DEFAULT_INTERVAL_SECONDS = 30;
+
+    static final int MAGIC = 0x4E544453;
+    static final int VERSION = 1;
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4;
+    private static final int FLOW_BYTES = 5 * 8 + 4 + 8 + 8 + 8 + 4 + 4;
+    private static final int HOST_BYTES = 8 + 8 + 4 + 4 + 2 * HostBaselines.METRICS * 4;
+    private static final int TRAILER_BYTES = 8;
+
+    // Live flows of one shard, one column per FlowTable field.
+    static final class Flows {
+        long[] srcHi, srcLo, dstHi, dstLo, meta, bytes, firstAge, lastAge;
+        int[] packets, ratePrev, rateCur;
+        int count;
+
+        Flows(int capacity) {
+            capacity = Math.max(16, capacity);
+            srcHi = new long[capacity];
+            srcLo = new long[capacity];
+            dstHi = new long[capacity];
+            dstLo = new long[capacity];
+            meta = new long[capacity];
+            bytes = new long[capacity];
+            firstAge = new long[capacity];
+            lastAge = new long[capacity];
+            packets = new int[capacity];
+            ratePrev = new int[capacity];
+            rateCur = new int[capacity];
+        }
+
+        void ensureRoom(int n) {
+            int need = count + n;
+            if (need <= srcHi.length)
+                return;
+            int capacity = Math.max(need, srcHi.length * 2);
+            srcHi = Arrays.copyOf(srcHi, capacity);
+            srcLo = Arrays.copyOf(srcLo, capacity);
+            dstHi = Arrays.copyOf(dstHi, capacity);
+            dstLo = Arrays.copyOf(dstLo, capacity);
+            meta = Arrays.copyOf(meta, capacity);
+            bytes = Arrays.copyOf(bytes, capacity);
+            firstAge = Arrays.copyOf(firstAge, capacity);
+            lastAge = Arrays.copyOf(lastAge, capacity);
+            packets = Arrays.copyOf(packets, capacity);
+            ratePrev = Arrays.copyOf(ratePrev, capacity);
+            rateCur = Arrays.copyOf(rateCur, capacity);
+        }
+
+        void add(long sHi, long sLo, long dHi, long dLo, long m, int packets, long bytes, long firstAge, long lastAge,
+                int ratePrev, int rateCur) {
+            ensureRoom(1);
+            int i = count++;
+            srcHi[i] = sHi;
+            srcLo[i] = sLo;
+            dstHi[i] = dHi;
+            dstLo[i] = dLo;
+            meta[i] = m;
+            this.packets[i] = packets;
+            this.bytes[i] = bytes;
+            this.firstAge[i] = firstAge;
+            this.lastAge[i] = lastAge;
+            this.ratePrev[i] = ratePrev;
+            this.rateCur[i] = rateCur;
+        }
+    }
+
+    // Baselines of one direction; idle is how many windows ago the host was last active.
+    static final class Hosts {
+        final long[] hi, lo;
+        final int[] idle, seen;
+        final float[] mean, var;
+        int count;
+
+        Hosts(int capacity) {
+            hi = new long[capacity];
+            lo = new long[capacity];
+            idle = new int[capacity];
+            seen = new int[capacity];
+            mean = new float[capacity * HostBaselines.METRICS];
+            var = new float[capacity * HostBaselines.METRICS];
+        }
+
+        void add(long hi, long lo, int idle, int seen, float[] mean, float[] var, int from) {
+            int i = count++;
+            this.hi[i] = hi;
+            this.lo[i] = lo;
+            this.idle[i] = idle;
+            this.seen[i] = seen;
+            for (int m = 0, to = i * HostBaselines.METRICS; m < HostBaselines.METRICS; m++) {
+                this.mean[to + m] = mean[from + m];
+                this.var[to + m] = var[from + m];
+            }
+        }
+    }
+
+    // Everything one snapshot holds. sources is null when baselines are off.
+    static final class Image {
+        final long takenAt;
+        final int windowSeconds;
+        final List<Flows> flows = new ArrayList<>();
+        int baselineWindow;
+        Hosts sources, destinations;
+
+        Image(long takenAt, int windowSeconds) {
+            this.takenAt = takenAt;
+            this.windowSeconds = windowSeconds;
+        }
+
+        int flowCount() {
+            int n = 0;
+            for (Flows f : flows) {
+                n += f.count;
+            }
+            return n;
+        }
+
+        int hostCount() {
+            return sources == null ? 0 : sources.count + destinations.count;
+        }
+    }
+
+    private final File file;
+    private final long intervalNanos;
+    private final ArrayBlockingQueue<Image> pending = new ArrayBlockingQueue<>(1);
+    private final Thread writer;
+    private volatile boolean running = true;
+    private long lastTaken = System.nanoTime();
+
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private volatile long lastBytes;
+    private final LatencyHistogram writeLatency = new LatencyHistogram();
+
+    public StateSnapshots(File file, int intervalSeconds) {
+        this.file = file;
+        this.intervalNanos = Math.max(1, intervalSeconds) * 1_000_000_000L;
+        writer = new Thread(this::runWriter, "snapshot-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Snapshots write to disk, so they are off unless the block sets a file: null when it
+    // is missing, disabled or has no file.
+    public static StateSnapshots fromConfig(Config.Snapshot cfg) {
+        if (cfg == null || cfg.disabled || cfg.file == null || cfg.file.isEmpty())
+            return null;
+        return new StateSnapshots(new File(cfg.file),
+                cfg.intervalSeconds > 0 ? cfg.intervalSeconds : DEFAULT_INTERVAL_SECONDS);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // Capture thread, at each window close: true once per interval.
+    boolean due(long nowNanos) {
+        if (nowNanos - lastTaken < intervalNanos)
+            return false;
+        lastTaken = nowNanos;
+        return true;
+    }
+
+    // Capture thread. A snapshot still being written when the next one is due wins; the
+    // new one is skipped rather than queued behind it.
+    void submit(Image image) {
+        if (!pending.offer(image))
+            skipped.incrementAndGet();
+    }
+
+    private void runWriter() {
+        try {
+            while (running || !pending.isEmpty()) {
+                Image image = pending.poll(100, TimeUnit.MILLISECONDS);
+                if (image != null)
+                    write(image);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Image image) {
+        long started = System.nanoTime();
+        try {
+            lastBytes = writeFile(image, file);
+            written.incrementAndGet();
+        } catch (IOException e) {
+            errors.incrementAndGet();
+            System.err.println("⚠️ Could not write snapshot " + file + ": " + e.getMessage());
+        } catch (RuntimeException e) {
+            // Keep the writer alive, or every later snapshot would count as skipped.
+            errors.incrementAndGet();
+            System.err.println("⚠️ Could not write snapshot " + file + ": " + e);
+        }
+        writeLatency.recordNanos(System.nanoTime() - started);
+    }
+
+    // Writes the last snapshot (null to keep the last periodic one) and waits for the
+    // writer to finish.
+    public void close(Image last) {
+        if (!writer.isAlive())
+            return;
+        try {
+            if (last != null)
+                pending.put(last);
+            running = false;
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (last != null && written.get() > 0)
+            System.out.println("  Snapshot: " + last.flowCount() + " flows, " + last.hostCount()
+                    + " host baselines → " + file + " (" + lastBytes / 1024 + " KB)");
+    }
+
+    static long writeFile(Image image, File target) throws IOException {
+        File dir = target.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs())
+            throw new IOException("Cannot create directory " + dir);
+        File tmp = new File(target.getPath() + ".tmp");
+        long size;
+        try (FileChannel ch = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ColumnWriter out = new ColumnWriter(ch);
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putLong(image.takenAt);
+            out.putInt(image.windowSeconds);
+
+            List<Flows> parts = image.flows;
+            out.putInt(image.flowCount());
+            for (Flows f : parts) {
+                out.putLongs(f.srcHi, f.count);
+            }
+            for (Flows f : parts) {
+                out.putLongs(f.srcLo, f.count);
+            }
+            for (Flows f : parts) {
+                out.putLongs(f.dstHi, f.count);
+            }
+            for (Flows f : parts) {
+                out.putLongs(f.dstLo, f.count);
+            }
+            for (Flows f : parts) {
+                out.putLongs(f.meta, f.count);
+            }
+            for (Flows f : parts) {
+                out.putLongs(f.bytes, f.count);
+            }
+            for (Flows f : parts) {
+                out.putLongs(f.firstAge, f.count);
+            }
+            for (Flows f : parts) {
+                out.putLongs(f.lastAge, f.count);
+            }
+            for (Flows f : parts) {
+                out.putInts(f.packets, f.count);
+            }
+            for (Flows f : parts) {
+                out.putInts(f.ratePrev, f.count);
+            }
+            for (Flows f : parts) {
+                out.putInts(f.rateCur, f.count);
+            }
+
+            out.putByte(image.sources != null ? 1 : 0);
+            if (image.sources != null) {
+                out.putInt(image.baselineWindow);
+                writeHosts(out, image.sources);
+                writeHosts(out, image.destinations);
+            }
+            out.finish();
+            ch.force(false);
+            size = ch.position();
+        }
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    private static void writeHosts(ColumnWriter out, Hosts h) throws IOException {
+        out.putInt(h.count);
+        out.putLongs(h.hi, h.count);
+        out.putLongs(h.lo, h.count);
+        out.putInts(h.idle, h.count);
+        out.putInts(h.seen, h.count);
+        out.putFloats(h.mean, h.count * HostBaselines.METRICS);
+        out.putFloats(h.var, h.count * HostBaselines.METRICS);
+    }
+
+    // Columns go out through one direct buffer in bulk copies, with the CRC kept as they
+    // are written; finish() appends it.
+    private static final class ColumnWriter {
+        private final FileChannel ch;
+        private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 20);
+        private final CRC32 crc = new CRC32();
+
+        ColumnWriter(FileChannel ch) {
+            this.ch = ch;
+        }
+
+        void putByte(int v) throws IOException {
+            room(1);
+            buf.put((byte) v);
+        }
+
+        void putInt(int v) throws IOException {
+            room(4);
+            buf.putInt(v);
+        }
+
+        void putLong(long v) throws IOException {
+            room(8);
+            buf.putLong(v);
+        }
+
+        void putLongs(long[] a, int n) throws IOException {
+            for (int off = 0; off < n;) {
+                room(8);
+                int k = Math.min(n - off, buf.remaining() / 8);
+                buf.asLongBuffer().put(a, off, k);
+                buf.position(buf.position() + k * 8);
+                off += k;
+            }
+        }
+
+        void putInts(int[] a, int n) throws IOException {
+            for (int off = 0; off < n;) {
+                room(4);
+                int k = Math.min(n - off, buf.remaining() / 4);
+                buf.asIntBuffer().put(a, off, k);
+                buf.position(buf.position() + k * 4);
+                off += k;
+            }
+        }
+
+        void putFloats(float[] a, int n) throws IOException {
+            for (int off = 0; off < n;) {
+                room(4);
+                int k = Math.min(n - off, buf.remaining() / 4);
+                buf.asFloatBuffer().put(a, off, k);
+                buf.position(buf.position() + k * 4);
+                off += k;
+            }
+        }
+
+        private void room(int bytes) throws IOException {
+            if (buf.remaining() < bytes)
+                flush(true);
+        }
+
+        private void flush(boolean checksum) throws IOException {
+            buf.flip();
+            if (checksum)
+                crc.update(buf.duplicate());
+            while (buf.hasRemaining()) {
+                ch.write(buf);
+            }
+            buf.clear();
+        }
+
+        void finish() throws IOException {
+            flush(true);
+            buf.putLong(crc.getValue());
+            flush(false);
+        }
+    }
+
+    // Maps the whole file and decodes it; any mismatch throws before capture state is
+    // touched.
+    static Image readFile(File source) throws IOException {
+        try (FileChannel ch = FileChannel.open(source.toPath(), StandardOpenOption.READ)) {
+            long size = ch.size();
+            if (size < HEADER_BYTES + 4 + 1 + TRAILER_BYTES)
+                throw new IOException("truncated (" + size + " bytes)");
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("too large (" + size + " bytes)");
+            ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            int magic = buf.getInt();
+            if (magic != MAGIC)
+                throw new IOException("not a snapshot file");
+            int version = buf.getInt();
+            if (version != VERSION)
+                throw new IOException("format version " + version + ", this build reads " + VERSION);
+            CRC32 crc = new CRC32();
+            ByteBuffer body = buf.duplicate();
+            body.position(0).limit((int) size - TRAILER_BYTES);
+            crc.update(body);
+            if (crc.getValue() != buf.getLong((int) size - TRAILER_BYTES))
+                throw new IOException("checksum mismatch");
+            buf.limit((int) size - TRAILER_BYTES);
+
+            Image image = new Image(buf.getLong(), buf.getInt());
+            int n = count(buf, FLOW_BYTES);
+            Flows f = new Flows(n);
+            getLongs(buf, f.srcHi, n);
+            getLongs(buf, f.srcLo, n);
+            getLongs(buf, f.dstHi, n);
+            getLongs(buf, f.dstLo, n);
+            getLongs(buf, f.meta, n);
+            getLongs(buf, f.bytes, n);
+            getLongs(buf, f.firstAge, n);
+            getLongs(buf, f.lastAge, n);
+            getInts(buf, f.packets, n);
+            getInts(buf, f.ratePrev, n);
+            getInts(buf, f.rateCur, n);
+            f.count = n;
+            image.flows.add(f);
+            if (buf.get() == 1) {
+                image.baselineWindow = buf.getInt();
+                image.sources = readHosts(buf);
+                image.destinations = readHosts(buf);
+            }
+            if (buf.hasRemaining())
+                throw new IOException(buf.remaining() + " unexpected bytes after the last section");
+            return image;
+        } catch (java.nio.BufferUnderflowException e) {
+            throw new IOException("truncated body");
+        }
+    }
+
+    private static Hosts readHosts(ByteBuffer buf) {
+        int n = count(buf, HOST_BYTES);
+        Hosts h = new Hosts(n);
+        getLongs(buf, h.hi, n);
+        getLongs(buf, h.lo, n);
+        getInts(buf, h.idle, n);
+        getInts(buf, h.seen, n);
+        buf.asFloatBuffer().get(h.mean, 0, n * HostBaselines.METRICS);
+        buf.position(buf.position() + n * HostBaselines.METRICS * 4);
+        buf.asFloatBuffer().get(h.var, 0, n * HostBaselines.METRICS);
+        buf.position(buf.position() + n * HostBaselines.METRICS * 4);
+        h.count = n;
+        return h;
+    }
+
+    private static void getLongs(ByteBuffer buf, long[] a, int n) {
+        buf.asLongBuffer().get(a, 0, n);
+        buf.position(buf.position() + n * 8);
+    }
+
+    private static void getInts(ByteBuffer buf, int[] a, int n) {
+        buf.asIntBuffer().get(a, 0, n);
+        buf.position(buf.position() + n * 4);
+    }
+
+    // A record count, checked against what is left so a corrupt one cannot allocate
+    // gigabytes.
+    private static int count(ByteBuffer buf, int recordBytes) {
+        int n = buf.getInt();
+        if (n < 0 || (long) n * recordBytes > buf.remaining())
+            throw new java.nio.BufferUnderflowException();
+        return n;
+    }
+
+    // Startup, before capture runs: puts the snapshot back into capture. Returns false,
+    // after saying why, when there was nothing usable; the detector then starts cold.
+    public boolean restore(PacketCapture capture) {
+        if (!file.exists())
+            return false;
+        long started = System.nanoTime();
+        Image image;
+        try {
+            image = readFile(file);
+        } catch (IOException e) {
+            System.out.println("⚠️ Snapshot " + file + " rejected (" + e.getMessage() + "), starting cold");
+            return false;
+        }
+        int flows = capture.restoreFlows(image);
+        int hosts = capture.getBaselines() != null && image.sources != null
+                ? capture.getBaselines().restore(image) : 0;
+        long age = Math.max(0, System.currentTimeMillis() - image.takenAt) / 1000;
+        System.out.println(String.format("✓ Restored %d of %d flows and %d host baselines from %s (%ds old) in %d ms",
+                flows, image.flowCount(), hosts, file, age, (System.nanoTime() - started) / 1_000_000));
+        return true;
+    }
+
+    public void registerMetrics(Metrics metrics) {
+        metrics.counter("detector_snapshots_written_total", "State snapshots written", null, written::get);
+        metrics.counter("detector_snapshots_skipped_total", "Snapshots skipped while the previous was being written",
+                null, skipped::get);
+        metrics.counter("detector_snapshot_errors_total", "Snapshots that failed to write", null, errors::get);
+        metrics.gauge("detector_snapshot_bytes", "Size of the last snapshot written", null, () -> lastBytes);
+        metrics.histogram("detector_snapshot_write_seconds", "Time to write a snapshot off the capture thread", null,
+                writeLatency);
+    }
+}
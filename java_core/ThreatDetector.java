@@ -1,9 +1,13 @@
 import com.google.gson.*;
 import java.io.*;
 import java.net.*;
+import java.net.http.*;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
-public class ThreatDetector {
+public class ThreatDetector implements FlowScorer {
 
     public static class PredictionResult {
         public final int prediction;
@@ -15,77 +19,222 @@ public class ThreatDetector {
         }
     }
 
-    private String serverUrl;
-    private Gson gson = new Gson();
+    private final URI serverUri;
+    private final URI binaryUri;
+    // Cleared for good once the server turns out not to have /predict_binary.
+    private volatile boolean binary;
+    private final int batchSize;
+    private final Duration requestTimeout;
+    // Caps requests in flight across all windows, i.e. the load put on the server's workers.
+    private final Semaphore inFlight;
+    // One client for the detector's lifetime so keep-alive connections are pooled.
+    private final HttpClient client;
+    private final Gson gson = new Gson();
+
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
 
     public ThreatDetector(String serverUrl) {
-        this.serverUrl = serverUrl;
+        this(serverUrl, 0, 4, 2000, 10000, false);
     }
 
-    public int predict(double[] features) throws IOException {
-        URL url = new URL(serverUrl);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
-        conn.setDoOutput(true);
+    // binary sends windows to /predict_binary in PredictionCodec's packed float64 format
+    // instead of JSON to /predict, falling back to JSON if the server answers 404;
+    // single-flow predict() always uses JSON.
+    public ThreatDetector(String serverUrl, int batchSize, int maxInFlight, int connectTimeoutMs, int requestTimeoutMs,
+            boolean binary) {
+        this.serverUri = URI.create(serverUrl);
+        this.binaryUri = binaryEndpoint(serverUri);
+        this.binary = binary;
+        this.batchSize = batchSize > 0 ? batchSize : Integer.MAX_VALUE;
+        this.requestTimeout = Duration.ofMillis(requestTimeoutMs);
+        this.inFlight = new Semaphore(Math.max(1, maxInFlight));
+        this.client = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .build();
+    }
+
+    // predict_binary next to the server's predict endpoint: the last path segment is
+    // swapped when the URL ends in /predict and appended otherwise, so both
+    // http://host:5000 and http://host:5000/api/predict work.
+    static URI binaryEndpoint(URI server) {
+        String path = server.getRawPath() != null ? server.getRawPath() : "";
+        if (path.endsWith("/predict"))
+            path = path.substring(0, path.length() - "predict".length());
+        else if (!path.endsWith("/"))
+            path += "/";
+        return URI.create(server.getScheme() + "://" + server.getRawAuthority() + path + "predict_binary");
+    }
 
+    public int predict(double[] features) throws IOException {
         Map<String, Object> payload = new HashMap<>();
         payload.put("features", features);
 
-        try (OutputStream os = conn.getOutputStream()) {
-            os.write(gson.toJson(payload).getBytes("utf-8"));
+        JsonObject response;
+        try {
+            response = gson.fromJson(new String(send(serverUri, "application/json; charset=utf-8",
+                    gson.toJson(payload).getBytes("utf-8")), "utf-8"), JsonObject.class);
+        } catch (JsonParseException e) {
+            throw new IOException("Bad response from " + serverUri + ": " + e.getMessage());
         }
+        if (response.has("prediction"))
+            return response.get("prediction").getAsInt();
+        else
+            throw new IOException("No 'prediction' in response: " + response);
+    }
 
-        try (InputStreamReader reader = new InputStreamReader(conn.getInputStream(), "utf-8")) {
-            JsonObject response = gson.fromJson(reader, JsonObject.class);
-            if (response.has("prediction"))
-                return response.get("prediction").getAsInt();
-            else
-                throw new IOException("No 'prediction' in response: " + response);
+    // Splits the window into batchSize chunks and posts them concurrently, at most
+    // maxInFlight at a time. Results come back in flow order.
+    @Override
+    public List<PredictionResult> predictBatch(FlowBatch flows) throws IOException {
+        List<CompletableFuture<List<PredictionResult>>> chunks = new ArrayList<>();
+        for (int from = 0; from < flows.size(); from += batchSize) {
+            int to = (int) Math.min(flows.size(), (long) from + batchSize);
+            if (!binary) {
+                chunks.add(postJson(flows, from, to));
+                continue;
+            }
+            int start = from;
+            chunks.add(postBinary(flows, from, to).exceptionallyCompose(error -> {
+                Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                if (!(cause instanceof StatusException) || ((StatusException) cause).status != 404)
+                    return CompletableFuture.failedFuture(error);
+                if (binary) {
+                    binary = false;
+                    System.err.println("⚠️ " + binaryUri + " not found, sending windows as JSON to " + serverUri);
+                }
+                try {
+                    return postJson(flows, start, to);
+                } catch (IOException e) {
+                    return CompletableFuture.failedFuture(e);
+                }
+            }));
         }
-    }
 
-    public List<PredictionResult> predictBatch(List<double[]> flows) throws IOException {
-        URL url = new URL(serverUrl);
-        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-        conn.setRequestMethod("POST");
-        conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
-        conn.setDoOutput(true);
-
-        List<Map<String, Object>> jsonFlows = new ArrayList<>();
-        for (double[] f : flows) {
-            Map<String, Object> m = new LinkedHashMap<>();
-            m.put("duration", f[0]);
-            m.put("total_pkts", f[1]);
-            m.put("total_bytes", f[2]);
-            m.put("mean_pkt_len", f[3]);
-            m.put("pkt_rate", f[4]);
-            m.put("protocol", f[5]);
-            jsonFlows.add(m);
+        List<PredictionResult> out = new ArrayList<>(flows.size());
+        try {
+            for (CompletableFuture<List<PredictionResult>> chunk : chunks) {
+                out.addAll(chunk.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for predictions");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
         }
+        return out;
+    }
 
-        Map<String, Object> payload = new HashMap<>();
-        payload.put("flows", jsonFlows);
+    private CompletableFuture<List<PredictionResult>> postJson(FlowBatch flows, int from, int to)
+            throws IOException {
+        int expected = to - from;
+        return sendAsync(serverUri, "application/json; charset=utf-8", PredictionCodec.encodeJson(flows, from, to))
+                .thenApply(body -> {
+                    try {
+                        return PredictionCodec.decodeJson(body, expected);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
 
-        try (OutputStream os = conn.getOutputStream()) {
-            os.write(gson.toJson(payload).getBytes("utf-8"));
+    private CompletableFuture<List<PredictionResult>> postBinary(FlowBatch flows, int from, int to)
+            throws IOException {
+        int expected = to - from;
+        return sendAsync(binaryUri, PredictionCodec.BINARY_CONTENT_TYPE, PredictionCodec.encodeBinary(flows, from, to))
+                .thenApply(body -> {
+                    try {
+                        return PredictionCodec.decodeBinary(body, expected);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    }
+                });
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    @Override
+    public void registerMetrics(Metrics metrics) {
+        metrics.histogram("detector_http_request_seconds", "Prediction server round trips", null, latency);
+        metrics.counter("detector_http_errors_total", "Failed prediction requests, timeouts included", null,
+                errors::get);
+        metrics.counter("detector_http_timeouts_total", "Prediction requests that timed out", null, timeouts::get);
+    }
+
+    @Override
+    public String stats() {
+        return "HTTP " + latency.summary() + " errors=" + errors.get() + " timeouts=" + timeouts.get();
+    }
+
+    private byte[] send(URI uri, String contentType, byte[] body) throws IOException {
+        try {
+            return sendAsync(uri, contentType, body).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for prediction");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
         }
+    }
 
-        try (InputStreamReader reader = new InputStreamReader(conn.getInputStream(), "utf-8")) {
-            JsonObject response = gson.fromJson(reader, JsonObject.class);
-            if (!response.has("predictions"))
-                throw new IOException("No 'predictions' in response: " + response);
+    private CompletableFuture<byte[]> sendAsync(URI uri, String contentType, byte[] body) throws IOException {
+        HttpRequest request = HttpRequest.newBuilder(uri)
+                .timeout(requestTimeout)
+                .header("Content-Type", contentType)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                .build();
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a request slot");
+        }
 
-            JsonArray predictions = response.getAsJsonArray("predictions");
-            JsonArray scores = response.has("scores") ? response.getAsJsonArray("scores") : null;
+        long start = System.nanoTime();
+        return client.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .whenComplete((response, error) -> {
+                    inFlight.release();
+                    latency.recordNanos(System.nanoTime() - start);
+                    if (error != null) {
+                        errors.incrementAndGet();
+                        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+                        if (cause instanceof HttpTimeoutException) {
+                            timeouts.incrementAndGet();
+                        }
+                    } else if (response.statusCode() != 200) {
+                        errors.incrementAndGet();
+                    }
+                })
+                .thenApply(response -> {
+                    if (response.statusCode() != 200) {
+                        throw new CompletionException(new StatusException(response.statusCode(), uri));
+                    }
+                    return response.body();
+                });
+    }
 
-            List<PredictionResult> out = new ArrayList<>();
-            for (int i = 0; i < predictions.size(); i++) {
-                int pred = predictions.get(i).getAsInt();
-                double score = (scores != null && i < scores.size()) ? scores.get(i).getAsDouble() : pred;
-                out.add(new PredictionResult(pred, score));
-            }
-            return out;
+    // A non-200 answer, kept apart so a missing endpoint can be told from a failing one.
+    static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        StatusException(int status, URI uri) {
+            super("HTTP " + status + " from " + uri);
+            this.status = status;
         }
     }
 }
@@ -0,0 +1,142 @@
+import java.util.*;
+import java.util.function.IntConsumer;
+
+// Hashed timer wheel over small int ids (FlowTable slots). Each bucket is an intrusive
+// doubly-linked list threaded through per-id next/prev arrays, so schedule and cancel
+// are O(1) and advancing one tick only touches the ids due in that tick. Deadlines past
+// the wheel's span park in the furthest bucket and are re-placed when it comes round.
+// Not thread-safe.
+public class TimerWheel {
+
+    private static final int NONE = -1;
+
+    private final long tickNanos;
+    private final int bucketMask;
+    private final int[] head;
+
+    private int[] next, prev, bucketOf;
+    private long[] deadline;
+    // First tick advance() has not finished with. Until the first advance it tracks the
+    // earliest deadline scheduled so far.
+    private long currentTick = Long.MAX_VALUE;
+    private boolean started;
+    private int scheduled;
+
+    public TimerWheel(int buckets, long tickNanos, int capacity) {
+        int n = Integer.highestOneBit(Math.max(2, buckets - 1)) << 1;
+        this.tickNanos = tickNanos;
+        this.bucketMask = n - 1;
+        this.head = new int[n];
+        Arrays.fill(head, NONE);
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        next = new int[capacity];
+        prev = new int[capacity];
+        bucketOf = new int[capacity];
+        deadline = new long[capacity];
+        Arrays.fill(bucketOf, NONE);
+    }
+
+    // Drops every timer and makes room for ids below capacity.
+    public void reset(int capacity) {
+        Arrays.fill(head, NONE);
+        if (capacity != bucketOf.length) {
+            allocate(capacity);
+        } else {
+            Arrays.fill(bucketOf, NONE);
+        }
+        scheduled = 0;
+    }
+
+    public int size() {
+        return scheduled;
+    }
+
+    public void schedule(int id, long deadlineNanos) {
+        if (bucketOf[id] != NONE)
+            unlink(id);
+        long tick = Math.floorDiv(deadlineNanos, tickNanos);
+        if (!started)
+            currentTick = Math.min(currentTick, tick);
+        tick = Math.max(tick, currentTick);
+        tick = Math.min(tick, currentTick + bucketMask);
+        int b = (int) tick & bucketMask;
+        deadline[id] = deadlineNanos;
+        bucketOf[id] = b;
+        prev[id] = NONE;
+        next[id] = head[b];
+        if (head[b] != NONE)
+            prev[head[b]] = id;
+        head[b] = id;
+        scheduled++;
+    }
+
+    public void cancel(int id) {
+        if (bucketOf[id] != NONE)
+            unlink(id);
+    }
+
+    public long deadlineOf(int id) {
+        return deadline[id];
+    }
+
+    // Fires every id whose deadline is <= now. The callback may schedule the id again
+    // (or anything else); ids due later are moved to their proper bucket.
+    public void advance(long nowNanos, IntConsumer due) {
+        long nowTick = Math.floorDiv(nowNanos, tickNanos);
+        if (!started) {
+            started = true;
+            currentTick = Math.min(currentTick, nowTick);
+        }
+        // After a gap longer than the wheel, one pass over every bucket is enough.
+        long last = Math.min(nowTick, currentTick + bucketMask);
+        for (long t = currentTick; t <= last; t++) {
+            int b = (int) t & bucketMask;
+            int id = head[b];
+            head[b] = NONE;
+            while (id != NONE) {
+                int following = next[id];
+                bucketOf[id] = NONE;
+                scheduled--;
+                if (deadline[id] <= nowNanos) {
+                    due.accept(id);
+                } else {
+                    // Due later in this tick stays in nowTick, which the next advance revisits.
+                    reinsert(id, Math.min(nowTick, t + 1));
+                }
+                id = following;
+            }
+        }
+        currentTick = Math.max(currentTick, nowTick);
+    }
+
+    // Places an id whose deadline has not passed, never earlier than minTick.
+    private void reinsert(int id, long minTick) {
+        long tick = Math.floorDiv(deadline[id], tickNanos);
+        tick = Math.max(tick, minTick);
+        tick = Math.min(tick, minTick + bucketMask - 1);
+        int b = (int) tick & bucketMask;
+        bucketOf[id] = b;
+        prev[id] = NONE;
+        next[id] = head[b];
+        if (head[b] != NONE)
+            prev[head[b]] = id;
+        head[b] = id;
+        scheduled++;
+    }
+
+    private void unlink(int id) {
+        int b = bucketOf[id];
+        int p = prev[id], n = next[id];
+        if (p != NONE)
+            next[p] = n;
+        else
+            head[b] = n;
+        if (n != NONE)
+            prev[n] = p;
+        bucketOf[id] = NONE;
+        scheduled--;
+    }
+}
@@ -0,0 +1,565 @@
+import java.util.*;
+
+// Fixed-memory traffic summaries that run next to FlowTable and keep working when the
+// table is full and sheds new flows (e.g. a spoofed-source flood):
+//   - a Count-Min sketch of packets and bytes per (source, protocol), with a min-heap of
+//     the heaviest keys seen this window (top talkers);
+//   - rows of HyperLogLog registers estimating, per source, distinct destination ports
+//     and distinct peers, and per destination, distinct sources.
+// Each HLL row belongs to one source (or destination), found by linear probing on its
+// key, so hosts never add up each other's counts. Rows are handed out per window, first
+// come first served. Hosts seen after all hllRows are taken (say, behind a spoofed-source
+// flood) share spill rows instead: each is hashed to two of them and estimates the
+// smaller, an overestimate only by what collides there, never 0. Those hosts are also
+// counted, approximately, in one more HLL (untrackedHosts()). Everything is sized at
+// construction and cleared each window; no allocation happens per packet. Sketches of
+// the same shape merge, so capture shards can each keep one and combine them at window
+// close. Not thread-safe.
+public class TrafficSketch {
+
+    public static final int DEFAULT_CM_WIDTH = 4096;
+    public static final int DEFAULT_CM_DEPTH = 4;
+    public static final int DEFAULT_TOP_TALKERS = 64;
+    public static final int DEFAULT_HLL_ROWS = 4096;
+    public static final int DEFAULT_HLL_PRECISION = 6;
+
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+    private static final int NONE = -1;
+    private static final int SPILL_DEPTH = 2;
+
+    // Count-Min: depth rows of width counters each, row r at [r * width, (r + 1) * width).
+    private final int cmDepth, cmMask;
+    private final long[] cmPackets, cmBytes;
+
+    // Top talkers: min-heap on packet estimate, plus an open-addressing index from key
+    // to heap position.
+    private final int topCapacity;
+    private final long[] topHi, topLo, topCount, topBytes;
+    private final int[] topProtocol;
+    private final int[] indexSlot;
+    private final int indexMask;
+    private int topSize;
+
+    // HyperLogLog: rows of 2^precision byte registers, and the host owning each row. The
+    // spill rows follow the owned ones, from row spillBase on.
+    private final int hllPrecision, hllRegisters, hllRowMask;
+    private final int spillBase, spillMask;
+    private final double hllAlpha;
+    private final byte[] srcPorts, srcPeers, dstPeers;
+    private final byte[] untracked;
+    private final HostRows srcRows, dstRows;
+    private static final double[] INVERSE_POW2 = new double[65];
+
+    static {
+        for (int i = 0; i < INVERSE_POW2.length; i++) {
+            INVERSE_POW2[i] = Math.scalb(1.0, -i);
+        }
+    }
+
+    private long packets;
+
+    public TrafficSketch() {
+        this(DEFAULT_CM_WIDTH, DEFAULT_CM_DEPTH, DEFAULT_TOP_TALKERS, DEFAULT_HLL_ROWS, DEFAULT_HLL_PRECISION);
+    }
+
+    // Widths and row counts round up to powers of two; hllPrecision is 4..16.
+    public TrafficSketch(int cmWidth, int cmDepth, int topTalkers, int hllRows, int hllPrecision) {
+        if (hllPrecision < 4 || hllPrecision > 16)
+            throw new IllegalArgumentException("hllPrecision must be 4..16, got " + hllPrecision);
+        int width = powerOfTwo(cmWidth);
+        this.cmDepth = Math.max(1, cmDepth);
+        this.cmMask = width - 1;
+        this.cmPackets = new long[this.cmDepth * width];
+        this.cmBytes = new long[this.cmDepth * width];
+
+        this.topCapacity = Math.max(1, topTalkers);
+        this.topHi = new long[topCapacity];
+        this.topLo = new long[topCapacity];
+        this.topCount = new long[topCapacity];
+        this.topBytes = new long[topCapacity];
+        this.topProtocol = new int[topCapacity];
+        int indexSize = powerOfTwo(topCapacity * 2);
+        this.indexSlot = new int[indexSize];
+        this.indexMask = indexSize - 1;
+        Arrays.fill(indexSlot, NONE);
+
+        int rows = powerOfTwo(hllRows);
+        this.hllPrecision = hllPrecision;
+        this.hllRegisters = 1 << hllPrecision;
+        this.hllRowMask = rows - 1;
+        this.hllAlpha = hllRegisters == 16 ? 0.673
+                : hllRegisters == 32 ? 0.697
+                        : hllRegisters == 64 ? 0.709 : 0.7213 / (1 + 1.079 / hllRegisters);
+        int spill = powerOfTwo(rows / 16);
+        this.spillBase = rows;
+        this.spillMask = spill - 1;
+        this.srcPorts = new byte[(rows + spill) * hllRegisters];
+        this.srcPeers = new byte[(rows + spill) * hllRegisters];
+        this.dstPeers = new byte[(rows + spill) * hllRegisters];
+        this.untracked = new byte[hllRegisters];
+        this.srcRows = new HostRows(rows);
+        this.dstRows = new HostRows(rows);
+    }
+
+    // An empty sketch of the same shape, which merge() accepts.
+    public TrafficSketch copyEmpty() {
+        return new TrafficSketch(cmMask + 1, cmDepth, topCapacity, hllRowMask + 1, hllPrecision);
+    }
+
+    // Null when the config turns sketches off; unset fields take the defaults.
+    public static TrafficSketch fromConfig(Config.Sketch cfg) {
+        if (cfg == null)
+            return new TrafficSketch();
+        if (cfg.disabled)
+            return null;
+        return new TrafficSketch(
+                cfg.cmWidth > 0 ? cfg.cmWidth : DEFAULT_CM_WIDTH,
+                cfg.cmDepth > 0 ? cfg.cmDepth : DEFAULT_CM_DEPTH,
+                cfg.topTalkers > 0 ? cfg.topTalkers : DEFAULT_TOP_TALKERS,
+                cfg.hllRows > 0 ? cfg.hllRows : DEFAULT_HLL_ROWS,
+                cfg.hllPrecision > 0 ? cfg.hllPrecision : DEFAULT_HLL_PRECISION);
+    }
+
+    public void record(long sHi, long sLo, long dHi, long dLo, int protocol, int dstPort, int length) {
+        packets++;
+        long src = mix(sHi, sLo);
+        long dst = mix(dHi, dLo);
+
+        long key = mix(src, protocol);
+        long est = Long.MAX_VALUE;
+        long estBytes = Long.MAX_VALUE;
+        for (int r = 0; r < cmDepth; r++) {
+            int i = r * (cmMask + 1) + (int) (rehash(key, r) & cmMask);
+            est = Math.min(est, ++cmPackets[i]);
+            estBytes = Math.min(estBytes, cmBytes[i] += length);
+        }
+        offerTop(sHi, sLo, protocol, key, est, estBytes);
+
+        int srcRow = srcRows.claim(sHi, sLo, src);
+        if (srcRow != NONE) {
+            addHll(srcPorts, srcRow, mix(dstPort, protocol));
+            addHll(srcPeers, srcRow, dst);
+        } else {
+            for (int d = 0; d < SPILL_DEPTH; d++) {
+                int row = spillRow(src, d);
+                addHll(srcPorts, row, mix(dstPort, protocol));
+                addHll(srcPeers, row, dst);
+            }
+            addHll(untracked, 0, src);
+        }
+        int dstRow = dstRows.claim(dHi, dLo, dst);
+        if (dstRow != NONE) {
+            addHll(dstPeers, dstRow, src);
+        } else {
+            for (int d = 0; d < SPILL_DEPTH; d++) {
+                addHll(dstPeers, spillRow(dst, d), src);
+            }
+            addHll(untracked, 0, ~dst);
+        }
+    }
+
+    private int spillRow(long hostHash, int d) {
+        return spillBase + (int) (rehash(hostHash, 8 + d) & spillMask);
+    }
+
+    // Clears every counter and register for the next window.
+    public void reset() {
+        Arrays.fill(cmPackets, 0);
+        Arrays.fill(cmBytes, 0);
+        Arrays.fill(srcPorts, 0, srcRows.count * hllRegisters, (byte) 0);
+        Arrays.fill(srcPeers, 0, srcRows.count * hllRegisters, (byte) 0);
+        Arrays.fill(dstPeers, 0, dstRows.count * hllRegisters, (byte) 0);
+        Arrays.fill(srcPorts, spillBase * hllRegisters, srcPorts.length, (byte) 0);
+        Arrays.fill(srcPeers, spillBase * hllRegisters, srcPeers.length, (byte) 0);
+        Arrays.fill(dstPeers, spillBase * hllRegisters, dstPeers.length, (byte) 0);
+        Arrays.fill(untracked, (byte) 0);
+        srcRows.clear();
+        dstRows.clear();
+        Arrays.fill(indexSlot, NONE);
+        topSize = 0;
+        packets = 0;
+    }
+
+    // Adds another window's counts into this one: counters sum, each host's registers keep
+    // the max (going to its spill rows if this sketch has no row left for it), and both
+    // top-talker lists are re-ranked on the merged counts. Only keys that
+    // were in one of the lists are candidates, so a source that is heavy only summed over
+    // several sketches (its flows spread over shards) can be missing from the merged list.
+    public void merge(TrafficSketch other) {
+        if (other.cmPackets.length != cmPackets.length || other.srcPorts.length != srcPorts.length
+                || other.topCapacity != topCapacity)
+            throw new IllegalArgumentException("Cannot merge sketches of different shapes");
+        for (int i = 0; i < cmPackets.length; i++) {
+            cmPackets[i] += other.cmPackets[i];
+            cmBytes[i] += other.cmBytes[i];
+        }
+        HostRows from = other.srcRows;
+        for (int r = 0; r < from.count; r++) {
+            long hash = mix(from.hi[r], from.lo[r]);
+            int row = srcRows.claim(from.hi[r], from.lo[r], hash);
+            if (row != NONE) {
+                maxInto(srcPorts, other.srcPorts, row, r);
+                maxInto(srcPeers, other.srcPeers, row, r);
+                continue;
+            }
+            for (int d = 0; d < SPILL_DEPTH; d++) {
+                maxInto(srcPorts, other.srcPorts, spillRow(hash, d), r);
+                maxInto(srcPeers, other.srcPeers, spillRow(hash, d), r);
+            }
+            addHll(untracked, 0, hash);
+        }
+        from = other.dstRows;
+        for (int r = 0; r < from.count; r++) {
+            long hash = mix(from.hi[r], from.lo[r]);
+            int row = dstRows.claim(from.hi[r], from.lo[r], hash);
+            if (row != NONE) {
+                maxInto(dstPeers, other.dstPeers, row, r);
+                continue;
+            }
+            for (int d = 0; d < SPILL_DEPTH; d++) {
+                maxInto(dstPeers, other.dstPeers, spillRow(hash, d), r);
+            }
+            addHll(untracked, 0, ~hash);
+        }
+        for (int row = spillBase; row <= spillBase + spillMask; row++) {
+            maxInto(srcPorts, other.srcPorts, row, row);
+            maxInto(srcPeers, other.srcPeers, row, row);
+            maxInto(dstPeers, other.dstPeers, row, row);
+        }
+        maxInto(untracked, other.untracked, 0, 0);
+        packets += other.packets;
+
+        // Counts only grow, so refresh our own entries and restore heap order first.
+        for (int i = 0; i < topSize; i++) {
+            long key = topKey(i);
+            topCount[i] = cmEstimate(cmPackets, key);
+            topBytes[i] = cmEstimate(cmBytes, key);
+        }
+        for (int i = topSize / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        for (int i = 0; i < other.topSize; i++) {
+            long key = other.topKey(i);
+            offerTop(other.topHi[i], other.topLo[i], other.topProtocol[i], key, cmEstimate(cmPackets, key),
+                    cmEstimate(cmBytes, key));
+        }
+    }
+
+    private void maxInto(byte[] regs, byte[] other, int row, int otherRow) {
+        for (int i = row * hllRegisters, j = otherRow * hllRegisters, end = i + hllRegisters; i < end; i++, j++) {
+            if (other[j] > regs[i])
+                regs[i] = other[j];
+        }
+    }
+
+    public long packets() {
+        return packets;
+    }
+
+    // Count-Min upper bound of this window's packets from a source over one protocol.
+    public long sourcePackets(long sHi, long sLo, int protocol) {
+        return cmEstimate(cmPackets, mix(mix(sHi, sLo), protocol));
+    }
+
+    private long cmEstimate(long[] counters, long key) {
+        long est = Long.MAX_VALUE;
+        for (int r = 0; r < cmDepth; r++) {
+            est = Math.min(est, counters[r * (cmMask + 1) + (int) (rehash(key, r) & cmMask)]);
+        }
+        return est;
+    }
+
+    public double sourcePorts(long sHi, long sLo) {
+        long hash = mix(sHi, sLo);
+        int row = srcRows.find(sHi, sLo, hash);
+        return row != NONE ? estimate(srcPorts, row) : spillEstimate(srcPorts, hash);
+    }
+
+    public double sourcePeers(long sHi, long sLo) {
+        long hash = mix(sHi, sLo);
+        int row = srcRows.find(sHi, sLo, hash);
+        return row != NONE ? estimate(srcPeers, row) : spillEstimate(srcPeers, hash);
+    }
+
+    public double destinationPeers(long dHi, long dLo) {
+        long hash = mix(dHi, dLo);
+        int row = dstRows.find(dHi, dLo, hash);
+        return row != NONE ? estimate(dstPeers, row) : spillEstimate(dstPeers, hash);
+    }
+
+    private double spillEstimate(byte[] regs, long hostHash) {
+        double est = Double.MAX_VALUE;
+        for (int d = 0; d < SPILL_DEPTH; d++) {
+            est = Math.min(est, estimate(regs, spillRow(hostHash, d)));
+        }
+        return est;
+    }
+
+    // Distinct sources and destinations this window that found no row of their own and
+    // were counted in spill rows (a host seen in both roles counts twice).
+    public double untrackedHosts() {
+        return estimate(untracked, 0);
+    }
+
+
+    // Top talkers of the window, in no particular order (0 <= i < topCount()).
+    public int topCount() {
+        return topSize;
+    }
+
+    public long topSrcHi(int i) {
+        return topHi[i];
+    }
+
+    public long topSrcLo(int i) {
+        return topLo[i];
+    }
+
+    public int topProtocol(int i) {
+        return topProtocol[i];
+    }
+
+    public long topPackets(int i) {
+        return topCount[i];
+    }
+
+    public long topBytes(int i) {
+        return topBytes[i];
+    }
+
+    public long memoryBytes() {
+        return (cmPackets.length + cmBytes.length) * 8L
+                + topCapacity * (8L * 4 + 4) + indexSlot.length * 4L
+                + srcPorts.length + srcPeers.length + dstPeers.length + untracked.length
+                + 2L * (hllRowMask + 1) * (8 + 8 + 4 + 2 * 8);
+    }
+
+    private void offerTop(long sHi, long sLo, int protocol, long key, long est, long estBytes) {
+        int pos = find(sHi, sLo, protocol, key);
+        if (pos >= 0) {
+            topCount[pos] = est;
+            topBytes[pos] = estBytes;
+            siftDown(pos);
+            return;
+        }
+        if (topSize < topCapacity) {
+            pos = topSize++;
+        } else if (est > topCount[0]) {
+            unindex(0);
+            pos = 0;
+        } else {
+            return;
+        }
+        topHi[pos] = sHi;
+        topLo[pos] = sLo;
+        topProtocol[pos] = protocol;
+        topCount[pos] = est;
+        topBytes[pos] = estBytes;
+        index(pos, key);
+        if (pos == topSize - 1 && pos > 0) {
+            siftUp(pos);
+        } else {
+            siftDown(pos);
+        }
+    }
+
+    private void siftUp(int pos) {
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (topCount[parent] <= topCount[pos])
+                break;
+            swap(pos, parent);
+            pos = parent;
+        }
+    }
+
+    private void siftDown(int pos) {
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= topSize)
+                break;
+            if (child + 1 < topSize && topCount[child + 1] < topCount[child])
+                child++;
+            if (topCount[pos] <= topCount[child])
+                break;
+            swap(pos, child);
+            pos = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int slotA = slotOf(a), slotB = slotOf(b);
+        long h = topHi[a], l = topLo[a], c = topCount[a], by = topBytes[a];
+        int p = topProtocol[a];
+        topHi[a] = topHi[b];
+        topLo[a] = topLo[b];
+        topCount[a] = topCount[b];
+        topBytes[a] = topBytes[b];
+        topProtocol[a] = topProtocol[b];
+        topHi[b] = h;
+        topLo[b] = l;
+        topCount[b] = c;
+        topBytes[b] = by;
+        topProtocol[b] = p;
+        indexSlot[slotA] = b;
+        indexSlot[slotB] = a;
+    }
+
+    // Heap position of a key, or -1.
+    private int find(long sHi, long sLo, int protocol, long key) {
+        for (int s = (int) key & indexMask; indexSlot[s] != NONE; s = (s + 1) & indexMask) {
+            int pos = indexSlot[s];
+            if (topLo[pos] == sLo && topHi[pos] == sHi && topProtocol[pos] == protocol)
+                return pos;
+        }
+        return -1;
+    }
+
+    // Index slot currently pointing at heap position pos.
+    private int slotOf(int pos) {
+        int s = (int) topKey(pos) & indexMask;
+        while (indexSlot[s] != pos) {
+            s = (s + 1) & indexMask;
+        }
+        return s;
+    }
+
+    private void index(int pos, long key) {
+        int s = (int) key & indexMask;
+        while (indexSlot[s] != NONE) {
+            s = (s + 1) & indexMask;
+        }
+        indexSlot[s] = pos;
+    }
+
+    // Removes heap position pos from the index, shifting later probes back into the gap.
+    private void unindex(int pos) {
+        int gap = slotOf(pos);
+        indexSlot[gap] = NONE;
+        for (int s = (gap + 1) & indexMask; indexSlot[s] != NONE; s = (s + 1) & indexMask) {
+            int home = (int) topKey(indexSlot[s]) & indexMask;
+            // Move it back if its home is not cyclically within (gap, s].
+            if (((s - home) & indexMask) >= ((s - gap) & indexMask)) {
+                indexSlot[gap] = indexSlot[s];
+                indexSlot[s] = NONE;
+                gap = s;
+            }
+        }
+    }
+
+    private long topKey(int pos) {
+        return mix(mix(topHi[pos], topLo[pos]), topProtocol[pos]);
+    }
+
+    private void addHll(byte[] regs, int row, long item) {
+        long h = rehash(item, 7);
+        int reg = (int) (h >>> (64 - hllPrecision));
+        int rank = Long.numberOfLeadingZeros((h << hllPrecision) | (1L << (hllPrecision - 1))) + 1;
+        int i = row * hllRegisters + reg;
+        if (rank > regs[i])
+            regs[i] = (byte) rank;
+    }
+
+    private double estimate(byte[] regs, int row) {
+        int base = row * hllRegisters;
+        double sum = 0;
+        int zeros = 0;
+        for (int i = base; i < base + hllRegisters; i++) {
+            sum += INVERSE_POW2[regs[i]];
+            if (regs[i] == 0)
+                zeros++;
+        }
+        if (zeros == hllRegisters)
+            return 0;
+        double m = hllRegisters;
+        double e = hllAlpha * m * m / sum;
+        // Small-range correction (linear counting).
+        if (e <= 2.5 * m && zeros > 0)
+            return m * Math.log(m / zeros);
+        return e;
+    }
+
+    // Owner of each HLL row. Rows are handed out in order; an open-addressing index of
+    // twice as many slots maps a host's hash to its row. Probes compare a nonzero tag from
+    // the upper hash bits (0 = free) and only read the key on a tag match, so a miss walks
+    // one small int array even when every row is taken.
+    private final class HostRows {
+        final long[] hi, lo;
+        final int[] slotOf;
+        final int[] tag, row;
+        final int indexMask;
+        int count;
+
+        HostRows(int rows) {
+            hi = new long[rows];
+            lo = new long[rows];
+            slotOf = new int[rows];
+            tag = new int[rows * 2];
+            row = new int[rows * 2];
+            indexMask = rows * 2 - 1;
+        }
+
+        int find(long h, long l, long hash) {
+            int t = (int) (hash >>> 32) | 1;
+            for (int s = (int) hash & indexMask; tag[s] != 0; s = (s + 1) & indexMask) {
+                if (tag[s] == t) {
+                    int r = row[s];
+                    if (lo[r] == l && hi[r] == h)
+                        return r;
+                }
+            }
+            return NONE;
+        }
+
+        // The host's row, taking the next free one if it has none yet; NONE when all are
+        // taken.
+        int claim(long h, long l, long hash) {
+            int t = (int) (hash >>> 32) | 1;
+            int s = (int) hash & indexMask;
+            for (; tag[s] != 0; s = (s + 1) & indexMask) {
+                if (tag[s] == t) {
+                    int r = row[s];
+                    if (lo[r] == l && hi[r] == h)
+                        return r;
+                }
+            }
+            if (count == hi.length)
+                return NONE;
+            int r = count++;
+            tag[s] = t;
+            row[s] = r;
+            slotOf[r] = s;
+            hi[r] = h;
+            lo[r] = l;
+            return r;
+        }
+
+        void clear() {
+            for (int r = 0; r < count; r++) {
+                tag[slotOf[r]] = 0;
+            }
+            count = 0;
+        }
+    }
+
+    private static long mix(long a, long b) {
+        long h = (a * SEED ^ b) * SEED;
+        return h ^ (h >>> 29);
+    }
+
+    // Independent-enough hash per Count-Min row (and one for HLL), from the key's mix.
+    private static long rehash(long key, int row) {
+        long h = key + (row + 1) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 30)) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ (h >>> 27)) * 0x94D049BB133111EBL;
+        return h ^ (h >>> 31);
+    }
+
+    private static int powerOfTwo(int n) {
+        int cap = 16;
+        while (cap < n && cap < (1 << 28)) {
+            cap <<= 1;
+        }
+        return cap;
+    }
+}
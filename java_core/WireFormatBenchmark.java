@@ -0,0 +1,102 @@
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+// Client-side cost of the JSON and binary prediction protocols: encode time and
+// request size for a window of flows, and decode time for a matching response.
+// Run: java -cp "lib/*;." WireFormatBenchmark [flows]
+public class WireFormatBenchmark {
+
+    private static final long RUN_NANOS = 1_000_000_000L;
+
+    interface Op {
+        Object run() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        FlowBatch flows = randomFlows(n, new Random(42));
+        double[] scores = new double[n];
+        Random rnd = new Random(7);
+        for (int i = 0; i < n; i++) {
+            scores[i] = rnd.nextDouble();
+        }
+        byte[] jsonResponse = jsonResponse(scores);
+        byte[] binaryResponse = binaryResponse(scores);
+
+        System.out.printf("%d flows per request%n", n);
+        System.out.printf("%-8s %12s %12s %14s %14s%n", "format", "req bytes", "resp bytes", "encode us", "decode us");
+        report("json", PredictionCodec.encodeJson(flows, 0, n).length, jsonResponse.length,
+                time(() -> PredictionCodec.encodeJson(flows, 0, n)),
+                time(() -> PredictionCodec.decodeJson(jsonResponse, n)));
+        report("binary", PredictionCodec.encodeBinary(flows, 0, n).length, binaryResponse.length,
+                time(() -> PredictionCodec.encodeBinary(flows, 0, n)),
+                time(() -> PredictionCodec.decodeBinary(binaryResponse, n)));
+    }
+
+    private static void report(String name, int requestBytes, int responseBytes, double encodeMicros,
+            double decodeMicros) {
+        System.out.printf("%-8s %12d %12d %14.1f %14.1f%n", name, requestBytes, responseBytes, encodeMicros,
+                decodeMicros);
+    }
+
+    // Mean microseconds per call, after a warm-up pass of the same length.
+    private static double time(Op op) throws IOException {
+        measure(op, RUN_NANOS / 2);
+        return measure(op, RUN_NANOS);
+    }
+
+    private static double measure(Op op, long nanos) throws IOException {
+        long calls = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        Object sink = null;
+        do {
+            sink = op.run();
+            calls++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < nanos);
+        if (sink == null)
+            throw new IllegalStateException();
+        return elapsed / 1e3 / calls;
+    }
+
+    private static FlowBatch randomFlows(int n, Random rnd) {
+        FlowBatch flows = new FlowBatch(n);
+        double[] protocols = { 6, 17, 1 };
+        for (int i = 0; i < n; i++) {
+            double pkts = 1 + rnd.nextInt(5000);
+            double bytes = pkts * (40 + rnd.nextInt(1460));
+            double duration = 0.01 + rnd.nextDouble() * 5;
+            flows.add(duration, pkts, bytes, bytes / pkts, pkts / duration, protocols[rnd.nextInt(3)]);
+        }
+        return flows;
+    }
+
+    private static byte[] jsonResponse(double[] scores) throws IOException {
+        StringBuilder preds = new StringBuilder("{\"predictions\": [");
+        StringBuilder values = new StringBuilder("], \"scores\": [");
+        for (int i = 0; i < scores.length; i++) {
+            if (i > 0) {
+                preds.append(", ");
+                values.append(", ");
+            }
+            preds.append(scores[i] >= 0.7 ? 1 : 0);
+            values.append(scores[i]);
+        }
+        return preds.append(values).append("]}").toString().getBytes("utf-8");
+    }
+
+    private static byte[] binaryResponse(double[] scores) {
+        ByteBuffer buf = ByteBuffer.allocate(12 + scores.length * 9).order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(new byte[] { 'S', 'C', 'R', 'B' }).putShort((short) PredictionCodec.BINARY_VERSION)
+                .putShort((short) 0).putInt(scores.length);
+        for (double s : scores) {
+            buf.putDouble(s);
+        }
+        for (double s : scores) {
+            buf.put((byte) (s >= 0.7 ? 1 : 0));
+        }
+        return buf.array();
+    }
+}
@@ -0,0 +1,153 @@
+import bench.*;
+import org.pcap4j.core.PcapHandle;
+import org.pcap4j.packet.*;
+
+// The bench.Targets bridge: lives in the default package so it can call the java_core
+// classes (including PacketCapture's package-private packet and window methods), while
+// the JMH benchmarks in package bench only see the Targets interface.
+public class CoreTargets implements Targets {
+
+    @Override
+    public Target processPackets(String scenario, boolean raw, int packets) {
+        byte[][] frames = TrafficGenerator.frames(scenario, packets);
+        PacketCapture capture = newCapture(raw);
+        long[] now = { 0 };
+        if (raw) {
+            return target(packets, () -> {
+                long t = now[0];
+                for (byte[] frame : frames) {
+                    capture.processRawPacket(frame, t += TrafficGenerator.GAP_NANOS);
+                }
+                now[0] = t;
+                return capture.flowCount();
+            });
+        }
+        // Decoding is part of the decoded path's cost, as getNextPacketEx does it live.
+        return target(packets, () -> {
+            long t = now[0];
+            for (byte[] frame : frames) {
+                capture.processPacket(EthernetPacket.newPacket(frame, 0, frame.length),
+                        t += TrafficGenerator.GAP_NANOS);
+            }
+            now[0] = t;
+            return capture.flowCount();
+        });
+    }
+
+    @Override
+    public Target closeWindow(String scenario, int packets) {
+        PacketCapture capture = newCapture(true);
+        long end = feed(capture, scenario, packets);
+        int flows = capture.flowCount();
+        return target(flows, () -> capture.closeWindow(0, end).size());
+    }
+
+    @Override
+    public Target extractFeatures(String scenario, int packets) {
+        FlowBatch batch = window(scenario, packets);
+        return target(batch.size(), () -> FeatureExtractor.extractFeatures(batch).size());
+    }
+
+    @Override
+    public Target evaluateRules(String scenario, int packets, boolean batchPath) {
+        FlowBatch batch = FeatureExtractor.extractFeatures(window(scenario, packets));
+        RuleEngine engine = new RuleEngine();
+        int n = batch.size();
+        if (batchPath) {
+            RuleEngine.RuleResults results = engine.newResults(n);
+            return target(n, () -> {
+                engine.evaluateBatch(batch, results);
+                return n > 0 ? results.severity(n - 1).ordinal() : 0;
+            });
+        }
+        double[][] rows = new double[n][];
+        for (int i = 0; i < n; i++) {
+            rows[i] = new double[] { batch.duration[i], batch.totalPkts[i], batch.totalBytes[i], batch.meanPktLen[i],
+                    batch.pktRate[i], batch.protocol[i], batch.srcPktRate[i], batch.srcPorts[i], batch.srcPeers[i],
+                    batch.dstPeers[i] };
+        }
+        return target(n, () -> {
+            long severity = 0;
+            for (double[] row : rows) {
+                severity += engine.evaluate(row).severity.ordinal();
+            }
+            return severity;
+        });
+    }
+
+    @Override
+    public Target encodeRequest(String format, String scenario, int packets) {
+        FlowBatch batch = FeatureExtractor.extractFeatures(window(scenario, packets));
+        int n = batch.size();
+        if (binary(format))
+            return target(n, () -> PredictionCodec.encodeBinary(batch, 0, n).length);
+        return target(n, () -> PredictionCodec.encodeJson(batch, 0, n).length);
+    }
+
+    @Override
+    public Target decodeResponse(String format, String scenario, int packets) {
+        int n = window(scenario, packets).size();
+        if (binary(format)) {
+            byte[] body = StubPredictServer.binaryResponse(n);
+            return target(n, () -> PredictionCodec.decodeBinary(body, n).size());
+        }
+        byte[] body = StubPredictServer.jsonResponse(n);
+        return target(n, () -> PredictionCodec.decodeJson(body, n).size());
+    }
+
+    @Override
+    public Target predict(String format, String scenario, int packets, String url) {
+        FlowBatch batch = FeatureExtractor.extractFeatures(window(scenario, packets));
+        ThreatDetector detector = new ThreatDetector(url, 0, 4, 2000, 10000, binary(format));
+        return target(batch.size(), () -> detector.predictBatch(batch).size());
+    }
+
+    private static boolean binary(String format) {
+        return "binary".equalsIgnoreCase(format);
+    }
+
+    private static PacketCapture newCapture(boolean raw) {
+        PacketCapture capture = new PacketCapture((PcapHandle) null, 5, false);
+        if (raw)
+            capture.enableRawCapture(RawPacketParser.DLT_EN10MB);
+        return capture;
+    }
+
+    // Runs a scenario through raw capture; returns the last packet's capture time.
+    private static long feed(PacketCapture capture, String scenario, int packets) {
+        long now = 0;
+        for (byte[] frame : TrafficGenerator.frames(scenario, packets)) {
+            capture.processRawPacket(frame, now += TrafficGenerator.GAP_NANOS);
+        }
+        return now;
+    }
+
+    // The window a capture of the scenario would hand to the pipeline.
+    static FlowBatch window(String scenario, int packets) {
+        PacketCapture capture = newCapture(true);
+        long end = feed(capture, scenario, packets);
+        try {
+            return capture.closeWindow(0, end);
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    interface Op {
+        long run() throws Exception;
+    }
+
+    private static Target target(int items, Op op) {
+        return new Target() {
+            @Override
+            public long run() throws Exception {
+                return op.run();
+            }
+
+            @Override
+            public int items() {
+                return items;
+            }
+        };
+    }
+}
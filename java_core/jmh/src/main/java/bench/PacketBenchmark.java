@@ -0,0 +1,37 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// PacketCapture's per-packet path (parse, flow table, sketch) in packets per second, for
+// the raw parser and for pcap4j-decoded packets.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PacketBenchmark {
+
+    public static final int PACKETS = 16384;
+
+    @Param({ TrafficGenerator.BENIGN, TrafficGenerator.SYN_FLOOD, TrafficGenerator.UDP_AMPLIFICATION,
+            TrafficGenerator.PORT_SCAN })
+    public String scenario;
+
+    @Param({ "raw", "decoded" })
+    public String path;
+
+    private Target target;
+
+    @Setup
+    public void setup() {
+        target = Targets.load().processPackets(scenario, path.equals("raw"), PACKETS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public long processPacket() throws Exception {
+        return target.run();
+    }
+}
@@ -0,0 +1,53 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// ThreatDetector's side of the prediction protocol for one benign window: request
+// encoding, response decoding, and the full predictBatch round trip against
+// StubPredictServer on loopback.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PredictionBenchmark {
+
+    public static final int PACKETS = WindowBenchmark.PACKETS;
+
+    @Param({ "json", "binary" })
+    public String format;
+
+    private StubPredictServer server;
+    private Target encode, decode, roundTrip;
+
+    @Setup
+    public void setup() throws Exception {
+        server = new StubPredictServer();
+        Targets targets = Targets.load();
+        encode = targets.encodeRequest(format, TrafficGenerator.BENIGN, PACKETS);
+        decode = targets.decodeResponse(format, TrafficGenerator.BENIGN, PACKETS);
+        roundTrip = targets.predict(format, TrafficGenerator.BENIGN, PACKETS, server.url());
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public long encodeRequest() throws Exception {
+        return encode.run();
+    }
+
+    @Benchmark
+    public long decodeResponse() throws Exception {
+        return decode.run();
+    }
+
+    @Benchmark
+    public long predictBatch() throws Exception {
+        return roundTrip.run();
+    }
+}
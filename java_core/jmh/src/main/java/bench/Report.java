@@ -0,0 +1,91 @@
+package bench;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import org.openjdk.jmh.results.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.*;
+import org.openjdk.jmh.runner.options.*;
+
+// Runs the benchmarks with their annotated settings and writes a Markdown report (plus
+// JMH's raw JSON) with the environment, each score, and per-packet/per-flow rates.
+// Traffic is generated from fixed seeds, so reruns on the same machine compare directly.
+// Run: java -cp target/benchmarks.jar bench.Report [include-regex] [report.md]
+public class Report {
+
+    public static void main(String[] args) throws Exception {
+        String include = args.length > 0 ? args[0] : "bench\\..*Benchmark";
+        Path report = Paths.get(args.length > 1 ? args[1] : "target/benchmark-report.md");
+        Path json = report.resolveSibling("jmh-result.json");
+        if (report.getParent() != null)
+            Files.createDirectories(report.getParent());
+
+        Options options = new OptionsBuilder()
+                .include(include)
+                .resultFormat(ResultFormatType.JSON)
+                .result(json.toString())
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(report, StandardCharsets.UTF_8))) {
+            write(out, results);
+        }
+        System.out.println("Report: " + report + " (raw results: " + json + ")");
+    }
+
+    private static void write(PrintWriter out, Collection<RunResult> results) {
+        Runtime rt = Runtime.getRuntime();
+        out.println("# java_core benchmark report");
+        out.println();
+        out.println("| | |");
+        out.println("|---|---|");
+        out.println("| Date | " + LocalDateTime.now().withNano(0) + " |");
+        out.println("| JVM | " + System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version") + " |");
+        out.println("| OS | " + System.getProperty("os.name") + " " + System.getProperty("os.version") + " "
+                + System.getProperty("os.arch") + " |");
+        out.println("| CPUs | " + rt.availableProcessors() + " |");
+        out.println("| Max heap | " + rt.maxMemory() / (1024 * 1024) + " MB |");
+        out.println("| Traffic seed | " + TrafficGenerator.SEED + " |");
+        out.println("| Packets per window | " + WindowBenchmark.PACKETS + " |");
+        out.println();
+
+        Map<String, Integer> flows = new HashMap<>();
+        Targets targets = Targets.load();
+        out.println("| Benchmark | Params | Score | Error | Unit | Flows/window | Per packet or flow |");
+        out.println("|---|---|---:|---:|---|---:|---:|");
+        List<RunResult> sorted = new ArrayList<>(results);
+        sorted.sort(Comparator.comparing(r -> r.getParams().id()));
+        for (RunResult r : sorted) {
+            BenchmarkParams params = r.getParams();
+            Result<?> primary = r.getPrimaryResult();
+            String name = params.getBenchmark().replaceFirst("^bench\\.", "");
+            StringBuilder ps = new StringBuilder();
+            for (String key : params.getParamsKeys()) {
+                ps.append(ps.length() > 0 ? ", " : "").append(key).append('=').append(params.getParam(key));
+            }
+
+            String window = "", per = "";
+            if (name.startsWith("PacketBenchmark")) {
+                per = String.format("%.0f ns/packet", 1e9 / primary.getScore());
+            } else {
+                String scenario = params.getParam("scenario");
+                if (scenario == null)
+                    scenario = TrafficGenerator.BENIGN;
+                int n = flows.computeIfAbsent(scenario,
+                        s -> targets.closeWindow(s, WindowBenchmark.PACKETS).items());
+                window = String.valueOf(n);
+                if (n > 0)
+                    per = String.format("%.1f ns/flow", primary.getScore() * 1000 / n);
+            }
+            out.printf("| %s | %s | %.3f | %.3f | %s | %s | %s |%n", name, ps, primary.getScore(),
+                    primary.getScoreError(), primary.getScoreUnit(), window, per);
+        }
+        out.println();
+        out.println("Settings per benchmark class: 1 fork, 3 x 2 s warmup, 5 x 2 s measurement. Error is the"
+                + " 99.9% confidence half-width.");
+    }
+}
@@ -0,0 +1,94 @@
+package bench;
+
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+
+// Stand-in for predict_server.py that answers /predict and /predict_binary with fixed
+// scores and no model work, so a round-trip benchmark measures the client and the HTTP
+// exchange rather than scoring. Responses are cached by row count.
+public final class StubPredictServer implements AutoCloseable {
+
+    private static final int RESPONSE_MAGIC = 0x42524353; // "SCRB" read little-endian
+
+    private final HttpServer server;
+    private final ConcurrentHashMap<Integer, byte[]> json = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, byte[]> binary = new ConcurrentHashMap<>();
+
+    public StubPredictServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        server.createContext("/predict", exchange -> {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            reply(exchange, "application/json", json.computeIfAbsent(jsonRows(body), StubPredictServer::jsonResponse));
+        });
+        server.createContext("/predict_binary", exchange -> {
+            byte[] body = exchange.getRequestBody().readAllBytes();
+            int rows = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN).getInt(8);
+            reply(exchange, "application/octet-stream", binary.computeIfAbsent(rows, StubPredictServer::binaryResponse));
+        });
+        server.setExecutor(Executors.newFixedThreadPool(4, r -> {
+            Thread t = new Thread(r, "stub-predict");
+            t.setDaemon(true);
+            return t;
+        }));
+        server.start();
+    }
+
+    public String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/predict";
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private static void reply(HttpExchange exchange, String type, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", type);
+        exchange.sendResponseHeaders(200, body.length);
+        try (OutputStream os = exchange.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    // {"flows": [[...], [...]]}: one '[' per row plus the outer one.
+    private static int jsonRows(byte[] body) {
+        int brackets = 0;
+        for (byte b : body) {
+            if (b == '[')
+                brackets++;
+        }
+        return Math.max(0, brackets - 1);
+    }
+
+    private static double score(int i) {
+        return (i * 37 % 100) / 100.0;
+    }
+
+    public static byte[] jsonResponse(int rows) {
+        StringBuilder sb = new StringBuilder(rows * 8 + 32).append("{\"predictions\":[");
+        for (int i = 0; i < rows; i++) {
+            sb.append(i > 0 ? "," : "").append(score(i) >= 0.7 ? 1 : 0);
+        }
+        sb.append("],\"scores\":[");
+        for (int i = 0; i < rows; i++) {
+            sb.append(i > 0 ? "," : "").append(score(i));
+        }
+        return sb.append("]}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    public static byte[] binaryResponse(int rows) {
+        ByteBuffer buf = ByteBuffer.allocate(12 + rows * 9).order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt(RESPONSE_MAGIC).putShort((short) 1).putShort((short) 0).putInt(rows);
+        for (int i = 0; i < rows; i++) {
+            buf.putDouble(score(i));
+        }
+        for (int i = 0; i < rows; i++) {
+            buf.put((byte) (score(i) >= 0.7 ? 1 : 0));
+        }
+        return buf.array();
+    }
+}
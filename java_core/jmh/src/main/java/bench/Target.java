@@ -0,0 +1,13 @@
+package bench;
+
+// One benchmarked operation, built by Targets. run() returns a value derived from the
+// work so the JIT cannot drop it; items() is what one run() covers (packets or flows).
+public interface Target {
+
+    long run() throws Exception;
+
+    int items();
+
+    default void close() {
+    }
+}
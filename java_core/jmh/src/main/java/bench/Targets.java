@@ -0,0 +1,34 @@
+package bench;
+
+// The detector hot paths, as implemented by CoreTargets in the default package next to
+// the java_core classes. Scenarios are the TrafficGenerator names; windows are built by
+// feeding a scenario's packets through PacketCapture, as live capture would.
+public interface Targets {
+
+    // PacketCapture's per-packet path over the given packets, raw or pcap4j-decoded.
+    Target processPackets(String scenario, boolean raw, int packets);
+
+    // Window close (flow collection, expiry, sketch columns) after the given packets.
+    Target closeWindow(String scenario, int packets);
+
+    Target extractFeatures(String scenario, int packets);
+
+    // RuleEngine over a window: the columnar batch path or evaluate() per flow.
+    Target evaluateRules(String scenario, int packets, boolean batch);
+
+    // PredictionCodec request encoding / response decoding ("json" or "binary").
+    Target encodeRequest(String format, String scenario, int packets);
+
+    Target decodeResponse(String format, String scenario, int packets);
+
+    // ThreatDetector.predictBatch against a server at url.
+    Target predict(String format, String scenario, int packets, String url);
+
+    static Targets load() {
+        try {
+            return (Targets) Class.forName("CoreTargets").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("CoreTargets is missing from the classpath", e);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package bench;
+
+import java.util.*;
+
+// Synthetic Ethernet/IPv4 frames for the scenarios of python_ml/test_attack_simulator.py.
+// Every attack runs over a benign background (BACKGROUND of the packets), as it would on
+// a real link. Output depends only on the scenario, count and seed.
+//   benign            clients talking to servers: TCP 80/443 in both directions, DNS, ping
+//   syn-flood         one host opening connections to port 80, a new source port each time
+//   udp-amplification one host sending 64-byte UDP payloads to port 53 as fast as it can
+//   port-scan         one host probing ports 1-500 with SYNs, the target answering RST
+public final class TrafficGenerator {
+
+    public static final String BENIGN = "benign";
+    public static final String SYN_FLOOD = "syn-flood";
+    public static final String UDP_AMPLIFICATION = "udp-amplification";
+    public static final String PORT_SCAN = "port-scan";
+    public static final String[] SCENARIOS = { BENIGN, SYN_FLOOD, UDP_AMPLIFICATION, PORT_SCAN };
+
+    public static final long SEED = 20240131L;
+    // Capture-clock spacing between generated packets (100k packets/s).
+    public static final long GAP_NANOS = 10_000;
+
+    static final double BACKGROUND = 0.3;
+    static final int CLIENTS = 2000;
+    static final int SERVERS = 200;
+    static final int CONVERSATIONS = 20_000;
+
+    private static final int TCP = 6, UDP = 17, ICMP = 1;
+    private static final int SYN = 0x02, RST = 0x04, ACK = 0x10, PSH = 0x08;
+
+    private static final int ATTACKER = ip(192, 168, 66, 6);
+    private static final int VICTIM = ip(192, 168, 1, 10);
+
+    private final Random rnd;
+    private int ephemeralPort = 32768;
+    private int scanPort = 1;
+    private boolean scanReply;
+
+    private TrafficGenerator(long seed) {
+        this.rnd = new Random(seed);
+    }
+
+    public static byte[][] frames(String scenario, int count) {
+        return frames(scenario, count, SEED);
+    }
+
+    public static byte[][] frames(String scenario, int count, long seed) {
+        TrafficGenerator g = new TrafficGenerator(seed);
+        byte[][] out = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            out[i] = g.next(scenario);
+        }
+        return out;
+    }
+
+    private byte[] next(String scenario) {
+        if (scenario.equals(BENIGN) || rnd.nextDouble() < BACKGROUND)
+            return benign();
+        switch (scenario) {
+            case SYN_FLOOD:
+                return tcp(ATTACKER, VICTIM, nextEphemeral(), 80, SYN, 0);
+            case UDP_AMPLIFICATION:
+                return udp(ATTACKER, VICTIM, nextEphemeral(), 53, 64);
+            case PORT_SCAN:
+                return scan();
+            default:
+                throw new IllegalArgumentException("Unknown scenario " + scenario);
+        }
+    }
+
+    // Conversation popularity is skewed (cubed uniform), so a few flows carry most packets.
+    private byte[] benign() {
+        double u = rnd.nextDouble();
+        int conv = (int) (CONVERSATIONS * u * u * u);
+        int client = ip(10, 0, (conv % CLIENTS) >> 8, (conv % CLIENTS) & 0xFF);
+        int server = ip(10, 1, 0, 1 + conv / CLIENTS % SERVERS);
+        int clientPort = 49152 + conv % 16384;
+        boolean fromClient = rnd.nextBoolean();
+        int kind = conv % 20;
+        if (kind == 0)
+            return icmp(fromClient ? client : server, fromClient ? server : client, 56);
+        if (kind < 4) {
+            int size = 40 + rnd.nextInt(472);
+            return fromClient ? udp(client, server, clientPort, 53, size) : udp(server, client, 53, clientPort, size);
+        }
+        int port = kind < 8 ? 80 : 443;
+        double s = rnd.nextDouble();
+        int payload = s < 0.45 ? 0 : s < 0.85 ? 1460 : 60 + rnd.nextInt(940);
+        int flags = payload == 0 ? ACK : ACK | PSH;
+        return fromClient ? tcp(client, server, clientPort, port, flags, payload)
+                : tcp(server, client, port, clientPort, flags, payload);
+    }
+
+    private byte[] scan() {
+        scanReply = !scanReply;
+        if (!scanReply)
+            return tcp(VICTIM, ATTACKER, scanPort, 40000, RST | ACK, 0);
+        scanPort = scanPort % 500 + 1;
+        return tcp(ATTACKER, VICTIM, 40000, scanPort, SYN, 0);
+    }
+
+    private int nextEphemeral() {
+        ephemeralPort = ephemeralPort >= 60999 ? 32768 : ephemeralPort + 1;
+        return ephemeralPort;
+    }
+
+    private static byte[] tcp(int src, int dst, int srcPort, int dstPort, int flags, int payload) {
+        byte[] f = ipv4(src, dst, TCP, 20 + payload);
+        int o = 34;
+        u16(f, o, srcPort);
+        u16(f, o + 2, dstPort);
+        f[o + 12] = 5 << 4;
+        f[o + 13] = (byte) flags;
+        u16(f, o + 14, 65535);
+        return f;
+    }
+
+    private static byte[] udp(int src, int dst, int srcPort, int dstPort, int payload) {
+        byte[] f = ipv4(src, dst, UDP, 8 + payload);
+        int o = 34;
+        u16(f, o, srcPort);
+        u16(f, o + 2, dstPort);
+        u16(f, o + 4, 8 + payload);
+        return f;
+    }
+
+    private static byte[] icmp(int src, int dst, int payload) {
+        byte[] f = ipv4(src, dst, ICMP, 8 + payload);
+        f[34] = 8;
+        return f;
+    }
+
+    // Ethernet II + IPv4 header; the transport bytes are left for the caller. Short
+    // frames are padded to the 60-byte Ethernet minimum.
+    private static byte[] ipv4(int src, int dst, int protocol, int transportBytes) {
+        int ipLength = 20 + transportBytes;
+        byte[] f = new byte[Math.max(60, 14 + ipLength)];
+        f[0] = 0x02;
+        f[6] = 0x02;
+        f[11] = 1;
+        u16(f, 12, 0x0800);
+        f[14] = 0x45;
+        u16(f, 16, ipLength);
+        f[22] = 64;
+        f[23] = (byte) protocol;
+        u32(f, 26, src);
+        u32(f, 30, dst);
+        u16(f, 24, checksum(f, 14, 20));
+        return f;
+    }
+
+    private static int checksum(byte[] b, int off, int len) {
+        int sum = 0;
+        for (int i = off; i < off + len; i += 2) {
+            sum += (b[i] & 0xFF) << 8 | (b[i + 1] & 0xFF);
+        }
+        while (sum >>> 16 != 0)
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        return ~sum & 0xFFFF;
+    }
+
+    private static int ip(int a, int b, int c, int d) {
+        return a << 24 | b << 16 | c << 8 | d;
+    }
+
+    private static void u16(byte[] b, int off, int v) {
+        b[off] = (byte) (v >>> 8);
+        b[off + 1] = (byte) v;
+    }
+
+    private static void u32(byte[] b, int off, int v) {
+        u16(b, off, v >>> 16);
+        u16(b, off + 2, v);
+    }
+}
@@ -0,0 +1,53 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// Per-window steps on the window a capture of PACKETS packets of each scenario produces:
+// window close, feature extraction and both rule engine paths. Times are per window;
+// Report divides by the window's flow count.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WindowBenchmark {
+
+    public static final int PACKETS = 262_144;
+
+    @Param({ TrafficGenerator.BENIGN, TrafficGenerator.SYN_FLOOD, TrafficGenerator.UDP_AMPLIFICATION,
+            TrafficGenerator.PORT_SCAN })
+    public String scenario;
+
+    private Target close, extract, rulesBatch, rulesPerFlow;
+
+    @Setup
+    public void setup() {
+        Targets targets = Targets.load();
+        close = targets.closeWindow(scenario, PACKETS);
+        extract = targets.extractFeatures(scenario, PACKETS);
+        rulesBatch = targets.evaluateRules(scenario, PACKETS, true);
+        rulesPerFlow = targets.evaluateRules(scenario, PACKETS, false);
+    }
+
+    @Benchmark
+    public long closeWindow() throws Exception {
+        return close.run();
+    }
+
+    @Benchmark
+    public long extractFeatures() throws Exception {
+        return extract.run();
+    }
+
+    @Benchmark
+    public long rulesBatch() throws Exception {
+        return rulesBatch.run();
+    }
+
+    @Benchmark
+    public long rulesPerFlow() throws Exception {
+        return rulesPerFlow.run();
+    }
+}
@@ -3,6 +3,7 @@ import joblib
 import pandas as pd
 import numpy as np
 import os
+import struct
 
 MODEL_FILE = 'rf_model.pkl'
 SCALER_FILE = 'scaler.pkl'
@@ -25,7 +26,11 @@ if os.path.exists(PROTOCOL_ENCODER_FILE):
 FEATURE_COLS = ["duration", "total_pkts", "total_bytes", "mean_pkt_len", "pkt_rate", "protocol"]
 ALERT_SCORE_THRESHOLD = 0.7  
 
-latest_flows = []
+# /predict_binary framing, see java_core/PredictionCodec.java. Little-endian throughout.
+BINARY_REQUEST_MAGIC = b'FLWB'
+BINARY_RESPONSE_MAGIC = b'SCRB'
+BINARY_VERSION = 1
+BINARY_HEADER = struct.Struct('<4sHHI')
 
 
 def suppress_small_flow(flow: dict, pred: int, score: float):
@@ -47,6 +52,44 @@ def apply_score_threshold(pred: int, score: float):
         return 0, score
     return pred, score
 
+def encode_protocol(df):
+    """Map numeric protocol codes to the LabelEncoder classes used in training."""
+    if protocol_encoder is None:
+        return
+    def map_proto(v):
+        try:
+            iv = int(v)
+            if iv == 6:
+                return 'TCP'
+            elif iv == 17:
+                return 'UDP'
+            elif iv == 1:
+                return 'ICMP'
+            else:
+                return 'OTHER'
+        except Exception:
+            return str(v).upper()
+    df['protocol'] = df['protocol'].apply(map_proto)
+    try:
+        df['protocol'] = protocol_encoder.transform(df['protocol'])
+    except Exception:
+        df['protocol'] = df['protocol'].apply(lambda x: {'TCP': 6, 'UDP': 17, 'ICMP': 1, 'OTHER': 0}.get(x, 0))
+
+
+def score_flows(df):
+    """Score a batch and apply suppression/threshold."""
+    X_scaled = scaler.transform(df)
+    preds = model.predict(X_scaled).tolist()
+    preds = [int(p) for p in preds]
+
+    proba = model.predict_proba(X_scaled)
+    scores = [float(proba[i][1]) for i in range(len(proba))]
+
+    for i, row in df.iterrows():
+        preds[i], scores[i] = suppress_small_flow(row.to_dict(), preds[i], scores[i])
+        preds[i], scores[i] = apply_score_threshold(preds[i], scores[i])
+    return preds, scores
+
 @app.route('/predict', methods=['POST'])
 def predict():
     """
@@ -60,25 +103,7 @@ def predict():
         try:
             features = np.array(data['features']).reshape(1, -1)
             df = pd.DataFrame(features, columns=FEATURE_COLS)
-            if protocol_encoder is not None:
-                def map_proto(v):
-                    try:
-                        iv = int(v)
-                        if iv == 6:
-                            return 'TCP'
-                        elif iv == 17:
-                            return 'UDP'
-                        elif iv == 1:
-                            return 'ICMP'
-                        else:
-                            return 'OTHER'
-                    except Exception:
-                        return str(v).upper()
-                df['protocol'] = df['protocol'].apply(map_proto)
-                try:
-                    df['protocol'] = protocol_encoder.transform(df['protocol'])
-                except Exception as enc_err:
-                    df['protocol'] = df['protocol'].apply(lambda x: {'TCP': 6, 'UDP': 17, 'ICMP': 1, 'OTHER': 0}.get(x, 0))
+            encode_protocol(df)
             X_scaled = scaler.transform(df)
             pred = int(model.predict(X_scaled)[0])
             proba = model.predict_proba(X_scaled)
@@ -100,77 +125,57 @@ def predict():
             else:
                 df = pd.DataFrame(flows)
                 df = df[FEATURE_COLS]
-            if protocol_encoder is not None:
-                def map_proto(v):
-                    try:
-                        iv = int(v)
-                        if iv == 6:
-                            return 'TCP'
-                        elif iv == 17:
-                            return 'UDP'
-                        elif iv == 1:
-                            return 'ICMP'
-                        else:
-                            return 'OTHER'
-                    except Exception:
-                        return str(v).upper()
-                df['protocol'] = df['protocol'].apply(map_proto)
-                try:
-                    df['protocol'] = protocol_encoder.transform(df['protocol'])
-                except Exception as enc_err:
-                    df['protocol'] = df['protocol'].apply(lambda x: {'TCP': 6, 'UDP': 17, 'ICMP': 1, 'OTHER': 0}.get(x, 0))
+            encode_protocol(df)
         except Exception as e:
             return jsonify({"error": f"Could not convert flows to DataFrame: {e}"}), 400
 
         try:
-            X_scaled = scaler.transform(df)
-            preds = model.predict(X_scaled).tolist()
-            preds = [int(p) for p in preds]
-            
-            proba = model.predict_proba(X_scaled)
-            scores = [float(proba[i][1]) for i in range(len(proba))]
-
-            for i, row in df.iterrows():
-                preds[i], scores[i] = suppress_small_flow(row.to_dict(), preds[i], scores[i])
-                preds[i], scores[i] = apply_score_threshold(preds[i], scores[i])
-
-            global latest_flows
-            latest_flows = []
-            for i, row in df.iterrows():
-                flow_dict = row.to_dict()
-                flow_dict['prediction'] = int(preds[i])
-                flow_dict['score'] = scores[i]
-                latest_flows.append(flow_dict)
-
+            preds, scores = score_flows(df)
             return jsonify({"predictions": preds, "scores": scores})
         except Exception as e:
             return jsonify({"error": f"Prediction failed: {e}"}), 500
 
     return jsonify({"error": "Invalid payload. Use 'features' (single) or 'flows' (batch)."}), 400
 
-@app.route('/update_flows', methods=['POST'])
-def update_flows():
+@app.route('/predict_binary', methods=['POST'])
+def predict_binary():
     """
-    Java client posts processed flow results here:
-    [
-      {"duration":.., "total_pkts":.., "total_bytes":.., "mean_pkt_len":.., "pkt_rate":.., "protocol":.., "prediction":..},
-      ...
-    ]
+    Batch prediction over packed float64 rows (java_core/PredictionCodec.java):
+    request  "FLWB" | u16 version | u16 features | u32 rows | rows*features float64
+    response "SCRB" | u16 version | u16 reserved | u32 rows | rows float64 scores | rows u8 predictions
     """
-    global latest_flows
+    body = request.get_data()
+    if len(body) < BINARY_HEADER.size:
+        return jsonify({"error": "Truncated header"}), 400
+    magic, version, n_features, n_rows = BINARY_HEADER.unpack_from(body)
+    if magic != BINARY_REQUEST_MAGIC or version != BINARY_VERSION:
+        return jsonify({"error": f"Unsupported frame {magic!r} v{version}"}), 400
+    if n_features != len(FEATURE_COLS) or n_rows == 0:
+        return jsonify({"error": f"Expected {len(FEATURE_COLS)} features and at least one row"}), 400
+    if len(body) != BINARY_HEADER.size + n_rows * n_features * 8:
+        return jsonify({"error": "Body length does not match header"}), 400
+
     try:
-        data = request.get_json(force=True)
-        if not isinstance(data, list):
-            return jsonify({"error": "Expected a list of flow objects"}), 400
-        latest_flows.extend(data)
-        return jsonify({"status": "ok", "count": len(latest_flows)})
+        values = np.frombuffer(body, dtype='<f8', offset=BINARY_HEADER.size).reshape(n_rows, n_features)
+        df = pd.DataFrame(values, columns=FEATURE_COLS)
+        encode_protocol(df)
     except Exception as e:
-        return jsonify({"error": str(e)}), 400
+        return jsonify({"error": f"Could not convert flows to DataFrame: {e}"}), 400
+
+    try:
+        preds, scores = score_flows(df)
+    except Exception as e:
+        return jsonify({"error": f"Prediction failed: {e}"}), 500
+
+    payload = (BINARY_HEADER.pack(BINARY_RESPONSE_MAGIC, BINARY_VERSION, 0, n_rows)
+               + np.asarray(scores, dtype='<f8').tobytes()
+               + np.asarray(preds, dtype='u1').tobytes())
+    return app.response_class(payload, mimetype='application/octet-stream')
+
 @app.route('/get_flows', methods=['GET'])
 def get_flows():
-    """Return the latest flows from current session + all malicious flows from CSV"""
-    global latest_flows
-    all_flows = list(latest_flows)  
+    """Return the malicious flows logged to CSV. Live flows stream from the Java detector's feed."""
+    all_flows = []
     
     malicious_csv = os.path.join(os.path.dirname(__file__), '..', 'logs', 'malicious_flows.csv')
     if os.path.exists(malicious_csv):
@@ -183,18 +188,11 @@ def get_flows():
                 pred_tmp, score_tmp = suppress_small_flow(flow_dict, 1, 0.95)
                 if pred_tmp == 0:
                     continue
-                is_duplicate = any(
-                    f.get('duration') == flow_dict.get('duration') and
-                    f.get('total_pkts') == flow_dict.get('total_pkts') and
-                    f.get('pkt_rate') == flow_dict.get('pkt_rate')
-                    for f in latest_flows
-                )
-                if not is_duplicate:
-                    flow_dict['prediction'] = 1  
-                    flow_dict['score'] = 0.95    
-                    flow_dict['severity'] = 'CRITICAL'
-                    flow_dict['is_alert'] = True
-                    all_flows.append(flow_dict)
+                flow_dict['prediction'] = 1  
+                flow_dict['score'] = 0.95    
+                flow_dict['severity'] = 'CRITICAL'
+                flow_dict['is_alert'] = True
+                all_flows.append(flow_dict)
         except Exception as e:
             pass 
     
@@ -5,12 +5,54 @@ from sklearn.model_selection import train_test_split
 from sklearn.ensemble import RandomForestClassifier
 from sklearn.metrics import accuracy_score, classification_report, confusion_matrix
 import joblib
+import json
 import os
 
 FLOW_CSV = "../datasets/sample_traffic.csv"
 MODEL_FILE = 'rf_model.pkl'
 SCALER_FILE = 'scaler.pkl'
 PROTOCOL_ENCODER_FILE = 'protocol_label_encoder.pkl'
+MODEL_EXPORT_FILE = 'rf_model.json'
+FEATURE_COLS = ['duration','total_pkts','total_bytes','mean_pkt_len','pkt_rate','protocol']
+CHECK_ROWS = 32
+
+
+def export_forest(clf, scaler, le, X, path):
+    """Write the forest, scaler and protocol classes as flat arrays for the Java core's
+    in-process detector. A few rows with their expected scores are included so the
+    Java side can verify it reproduces predict_proba."""
+    classes = list(clf.classes_)
+    pos = classes.index(1) if 1 in classes else None
+
+    trees = []
+    for est in clf.estimators_:
+        t = est.tree_
+        values = t.value[:, 0, :]
+        totals = values.sum(axis=1)
+        totals[totals == 0] = 1
+        proba = values[:, pos] / totals if pos is not None else np.zeros(t.node_count)
+        trees.append({
+            "feature": t.feature.tolist(),
+            "threshold": t.threshold.tolist(),
+            "left": t.children_left.tolist(),
+            "right": t.children_right.tolist(),
+            "value": proba.tolist(),
+        })
+
+    check = X[:CHECK_ROWS]
+    check_scores = clf.predict_proba(scaler.transform(check))
+    export = {
+        "version": 1,
+        "features": FEATURE_COLS,
+        "scaler_mean": scaler.mean_.tolist(),
+        "scaler_scale": scaler.scale_.tolist(),
+        "protocol_classes": [str(c) for c in le.classes_],
+        "trees": trees,
+        "check_inputs": check.values.tolist(),
+        "check_scores": (check_scores[:, pos] if pos is not None else np.zeros(len(check))).tolist(),
+    }
+    with open(path, 'w') as f:
+        json.dump(export, f)
 
 def main():
     if not os.path.exists(FLOW_CSV):
@@ -27,7 +69,7 @@ def main():
     joblib.dump(le, PROTOCOL_ENCODER_FILE)
     print("Saved protocol encoder.")
 
-    X = df[['duration','total_pkts','total_bytes','mean_pkt_len','pkt_rate','protocol']]
+    X = df[FEATURE_COLS]
     y = df['label']
 
     scaler = StandardScaler()
@@ -47,5 +89,8 @@ def main():
     joblib.dump(clf, MODEL_FILE)
     print("Saved model:", MODEL_FILE)
 
+    export_forest(clf, scaler, le, X, MODEL_EXPORT_FILE)
+    print("Exported model for the Java core:", MODEL_EXPORT_FILE)
+
 if __name__ == "__main__":
     main()
@@ -1,5 +1,5 @@
-const DELAY_MS = 500;
-let displayedIndex = 0;
+const FEED_URL = 'http://127.0.0.1:8765/events';
+const RECONNECT_MS = 5000;
 let maliciousCount = 0;
 let normalCount = 0;
 let allFlows = [];
@@ -36,73 +36,107 @@ const lineChart = new Chart(lineCtx, {
     options:{ responsive:true, animation:{duration:800,easing:'easeOutCubic'}, scales:{y:{beginAtZero:true}}, plugins:{legend:{labels:{font:{size:12}}}} }
 });
 
-async function insertFlow(flow){
+// Rows and chart points kept on screen; older ones are dropped as windows arrive.
+const MAX_ROWS = 500;
+const MAX_POINTS = 120;
+
+function insertFlow(flow){
     const flowsTable = document.querySelector('#flows-table tbody');
-    const alertsList = document.querySelector('#alerts-list');
 
     const severity = (flow.severity || '').toString().trim().toUpperCase();
-    const isAlert = flow.is_alert === true || flow.is_alert === 'true';
     const highSeverity = severity === 'CRITICAL' || severity === 'HIGH';
-    const mlHigh = (flow.prediction === 1) || (flow.score !== undefined && flow.score >= 0.5);
-    const isMalicious = isAlert || highSeverity || mlHigh;
-    const severityLabel = severity || (isAlert ? 'ALERT' : '');
+    const isMalicious = flow.is_alert === true || highSeverity || flow.prediction === 1;
+    const severityLabel = severity && severity !== 'NONE' ? severity : '';
 
     const tr = document.createElement('tr');
     tr.className = isMalicious ? 'malicious new-flow' : 'normal new-flow';
     tr.innerHTML = `
-        <td>${flow.duration}</td>
+        <td>${flow.duration.toFixed(3)}</td>
         <td>${flow.total_pkts}</td>
         <td>${flow.total_bytes}</td>
-        <td>${flow.mean_pkt_len}</td>
-        <td>${flow.pkt_rate}</td>
+        <td>${flow.mean_pkt_len.toFixed(1)}</td>
+        <td>${flow.pkt_rate.toFixed(1)}</td>
         <td>${flow.protocol}</td>
         <td>${isMalicious ? (severityLabel || 'Malicious') : (severityLabel || 'Normal')}</td>
     `;
+    if(currentFilter === 'malicious' && !isMalicious) tr.style.display = 'none';
+    if(currentFilter === 'normal' && isMalicious) tr.style.display = 'none';
     flowsTable.appendChild(tr);
+    allFlows.push(flow);
+    while(flowsTable.rows.length > MAX_ROWS){
+        flowsTable.deleteRow(0);
+        allFlows.shift();
+    }
     flowsTable.parentElement.scrollTop = flowsTable.parentElement.scrollHeight;
+}
 
-    if(isMalicious){
-        maliciousCount++;
-        const li = document.createElement('li');
-        li.textContent = `🔴 ${flow.severity} threat: duration=${flow.duration}, pkts=${flow.total_pkts}, rate=${flow.pkt_rate} pkt/s`;
-        alertsList.appendChild(li);
-        alertsList.scrollTop = alertsList.scrollHeight;
-    } else normalCount++;
+function attackType(reason){
+    const upper = (reason || '').toUpperCase();
+    if(upper.includes('SYN FLOOD')) return 'SYN Flood Attack';
+    if(upper.includes('DDOS') || upper.includes('EXTREME PACKET RATE')) return 'DDoS Attack';
+    if(upper.includes('SCAN') || upper.includes('BURST')) return 'Port Scan';
+    if(upper.includes('UDP AMPLIFICATION')) return 'UDP Amplification';
+    if(upper.includes('EXFILTRATION')) return 'Data Exfiltration';
+    if(upper.startsWith('ML')) return 'ML Detection';
+    return 'Suspicious Activity';
+}
+
+function insertAlert(flow){
+    const key = `${flow.time}|${flow.interface}|${flow.total_pkts}|${flow.pkt_rate}`;
+    if(dismissedAlerts.has(key)) return;
+    const alertsList = document.querySelector('#alerts-list');
+    const critical = flow.severity === 'CRITICAL';
+    const li = document.createElement('li');
+    li.className = critical ? 'critical-alert' : 'high-alert';
+    li.setAttribute('data-alert-text', key);
+    li.innerHTML = `
+        <div class="alert-header">
+            <span class="alert-icon">${critical ? '🔴' : '🟠'}</span>
+            <span class="alert-severity">${critical ? 'CRITICAL' : (flow.severity === 'NONE' ? 'ALERT' : flow.severity)}</span>
+            <span class="alert-time">${new Date(flow.time).toTimeString().substring(0,8)}</span>
+        </div>
+        <div class="alert-body">
+            <div class="alert-type">${attackType(flow.reason)}</div>
+            <div class="alert-rate">${Math.round(flow.pkt_rate)} pkt/s</div>
+        </div>
+    `;
+    alertsList.appendChild(li);
+    while(alertsList.children.length > MAX_ROWS) alertsList.removeChild(alertsList.firstChild);
+    alertsList.scrollTop = alertsList.scrollHeight;
+}
 
+// One event per scored window (or several windows merged when this tab fell behind):
+// counts for the whole window, plus only its top flows and alerts.
+function onWindow(delta){
+    maliciousCount += delta.alerts;
+    normalCount += delta.flows - delta.alerts;
     cumulativeData.push({malicious:maliciousCount, normal:normalCount});
+    if(cumulativeData.length > MAX_POINTS) cumulativeData.shift();
+    delta.top.forEach(insertFlow);
+    delta.alertFlows.forEach(insertAlert);
     updateSummary();
     updateCharts();
-
-    await new Promise(resolve => setTimeout(resolve, 50)); 
 }
 
-async function processNewFlows(flows){
-    for(let i=displayedIndex;i<flows.length;i++){
-        await insertFlow(flows[i]);
-        displayedIndex++;
-    }
+// A fresh connection starts from the detector's running totals and recent alerts.
+function onHello(state){
+    maliciousCount = state.alerts;
+    normalCount = state.flows - state.alerts;
+    cumulativeData = [{malicious:maliciousCount, normal:normalCount}];
+    document.querySelector('#alerts-list').innerHTML = '';
+    state.recentAlerts.forEach(insertAlert);
+    updateSummary();
+    updateCharts();
 }
 
-async function fetchFlows(){
-    try{
-        const response = await fetch('http://127.0.0.1:5000/get_flows');
-        const data = await response.json();
-        const newFlows = data.flows||[];
-        
-        for(const flow of newFlows) {
-            const isDuplicate = allFlows.some(f => 
-                f.duration === flow.duration && 
-                f.total_pkts === flow.total_pkts && 
-                f.total_bytes === flow.total_bytes &&
-                f.pkt_rate === flow.pkt_rate
-            );
-            if (!isDuplicate) {
-                allFlows.push(flow);
-                await insertFlow(flow);
-            }
-        }
-        applyFilter(currentFilter);
-    }catch(err){ console.error('Error fetching flows:', err); }
+function connect(){
+    const source = new EventSource(FEED_URL);
+    source.addEventListener('hello', e => onHello(JSON.parse(e.data)));
+    source.addEventListener('window', e => onWindow(JSON.parse(e.data)));
+    // EventSource reconnects by itself; a 503 (too many clients) closes it for good.
+    source.onerror = () => {
+        if(source.readyState === EventSource.CLOSED) setTimeout(connect, RECONNECT_MS);
+    };
 }
 
 function updateSummary(){
@@ -158,63 +192,6 @@ document.querySelectorAll('.filter-buttons button').forEach(btn=>{
     });
 });
 
-async function fetchAlerts(){
-    try{
-        const res = await fetch('http://127.0.0.1:5000/get_alerts');
-        const data = await res.json();
-        const alerts = data.alerts || [];
-        const alertsList = document.querySelector('#alerts-list');
-        alertsList.innerHTML = '';
-        alerts.forEach(line=>{
-            if(dismissedAlerts.has(line)) return;
-            
-            const upper = line.toUpperCase();
-            if(upper.includes('CRITICAL') || upper.includes('HIGH')){
-                const li = document.createElement('li');
-                
-                const timeMatch = line.match(/(\d{4}-\d{2}-\d{2}T\d{2}:\d{2}:\d{2})/);
-                const timestamp = timeMatch ? timeMatch[1].split('T')[1].substring(0,8) : '';
-                
-                let severity = 'HIGH';
-                let icon = '🟠';
-                let severityClass = 'high-alert';
-                if(upper.includes('CRITICAL')){
-                    severity = 'CRITICAL';
-                    icon = '🔴';
-                    severityClass = 'critical-alert';
-                }
-                
-                let attackType = 'Suspicious Activity';
-                if(upper.includes('SYN FLOOD')) attackType = 'SYN Flood Attack';
-                else if(upper.includes('DDOS') || upper.includes('EXTREME PACKET RATE')) attackType = 'DDoS Attack';
-                else if(upper.includes('SCAN') || upper.includes('BURST')) attackType = 'Port Scan';
-                else if(upper.includes('UDP AMPLIFICATION')) attackType = 'UDP Amplification';
-                else if(upper.includes('EXFILTRATION')) attackType = 'Data Exfiltration';
-                
-                const rateMatch = line.match(/([\d.]+),\s*([\d.]+)\]$/);
-                const rate = rateMatch ? `${Math.round(parseFloat(rateMatch[2]))} pkt/s` : '';
-                
-                li.className = severityClass;
-                li.setAttribute('data-alert-text', line); 
-                li.innerHTML = `
-                    <div class="alert-header">
-                        <span class="alert-icon">${icon}</span>
-                        <span class="alert-severity">${severity}</span>
-                        <span class="alert-time">${timestamp}</span>
-                    </div>
-                    <div class="alert-body">
-                        <div class="alert-type">${attackType}</div>
-                        ${rate ? `<div class="alert-rate">${rate}</div>` : ''}
-                    </div>
-                `;
-                
-                alertsList.appendChild(li);
-            }
-        });
-        alertsList.scrollTop = alertsList.scrollHeight;
-    }catch(err){ console.error('Error fetching alerts:', err); }
-}
-
 function applyFilter(filter){
     document.querySelectorAll('#flows-table tbody tr').forEach(row=>{
         if(filter==='all') row.style.display='';
@@ -226,7 +203,7 @@ function applyFilter(filter){
 document.getElementById('export-csv').addEventListener('click',()=>{
     let csv='Duration,Total Packets,Total Bytes,Mean Packet Length,Packet Rate,Protocol,Prediction\n';
     allFlows.forEach(f=>{
-        csv+=`${f.duration},${f.total_pkts},${f.total_bytes},${f.mean_pkt_len},${f.pkt_rate},${f.protocol},${f.prediction===1?'Malicious':'Normal'}\n`;
+        csv+=`${f.duration},${f.total_pkts},${f.total_bytes},${f.mean_pkt_len},${f.pkt_rate},${f.protocol},${f.is_alert?'Malicious':'Normal'}\n`;
     });
     const blob=new Blob([csv],{type:'text/csv'});
     const url=URL.createObjectURL(blob);
@@ -240,7 +217,4 @@ document.getElementById('sidebar-toggle').addEventListener('click',()=>{
     document.querySelector('.sidebar').classList.toggle('collapsed');
 });
 
-fetchFlows();
-fetchAlerts();
-setInterval(fetchFlows, DELAY_MS);
-setInterval(fetchAlerts, 1000);
+connect();